@@ -0,0 +1,92 @@
+/**
+ * personium.io
+ * Copyright 2026 Personium Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.httpclient;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.post;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.options;
+
+import java.util.concurrent.TimeUnit;
+
+import org.mozilla.javascript.NativeObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.github.tomakehurst.wiremock.WireMockServer;
+
+/**
+ * Round trip of get / post against a local stub server.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ClientBenchmark {
+
+    private static final String PATH = "/benchmark";
+    private static final String BODY = "{\"d\":{\"results\":[{\"__id\":\"a\",\"Name\":\"benchmark\"}]}}";
+
+    private WireMockServer server;
+    private Ext_HttpClient client;
+    private String url;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        server = new WireMockServer(options().dynamicPort());
+        server.start();
+        server.stubFor(get(urlEqualTo(PATH)).willReturn(aResponse()
+                .withStatus(200)
+                .withHeader("Content-Type", "application/json")
+                .withBody(BODY)));
+        server.stubFor(post(urlEqualTo(PATH)).willReturn(aResponse()
+                .withStatus(201)
+                .withHeader("Content-Type", "application/json")
+                .withBody(BODY)));
+        client = new Ext_HttpClient();
+        url = "http://localhost:" + server.port() + PATH;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        HttpClientRegistry.shutdown();
+        server.stop();
+    }
+
+    @Benchmark
+    public NativeObject httpGet() {
+        return client.get(url, new NativeObject(), false);
+    }
+
+    @Benchmark
+    public NativeObject httpPost() {
+        return client.post(url, new NativeObject(), "application/json", BODY);
+    }
+}
@@ -0,0 +1,84 @@
+/**
+ * personium.io
+ * Copyright 2026 Personium Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.httpclient;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.mozilla.javascript.NativeObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Setting the request headers, with and without DefaultHeaders.
+ * gc.alloc.rate.norm of the gc profiler (enabled by the benchmark profile) is the bytes allocated per call.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RequestHeadersBenchmark {
+
+    /** Whether DefaultHeaders is set. */
+    @Param({"false", "true"})
+    public boolean defaultHeaders;
+
+    /** Whether headers are passed to the call. */
+    @Param({"false", "true"})
+    public boolean callHeaders;
+
+    private Ext_HttpClient client;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        if (defaultHeaders) {
+            NativeObject headers = new NativeObject();
+            headers.put("Accept", headers, "application/json");
+            headers.put("X-Personium-RequestKey", headers, "benchmark");
+            headers.put("User-Agent", headers, "personium-engine");
+            NativeObject parameters = new NativeObject();
+            parameters.put("DefaultHeaders", parameters, headers);
+            client = new Ext_HttpClient(parameters);
+        } else {
+            client = new Ext_HttpClient();
+        }
+    }
+
+    @Benchmark
+    public HttpRequestBase addRequestHeaders() {
+        // The headers object of a call is created by the script every time.
+        NativeObject headers = new NativeObject();
+        if (callHeaders) {
+            headers.put("Authorization", headers, "Bearer benchmark");
+            headers.put("X-Request-Id", headers, "1");
+        }
+        return client.addRequestHeaders(new HttpGet("http://localhost/benchmark"), headers, null);
+    }
+}
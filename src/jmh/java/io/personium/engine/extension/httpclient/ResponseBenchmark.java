@@ -0,0 +1,91 @@
+/**
+ * personium.io
+ * Copyright 2026 Personium Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.httpclient;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.message.BasicHttpResponse;
+import org.mozilla.javascript.NativeObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Conversion of a response to the javascript object, without network.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ResponseBenchmark {
+
+    /** Body size in bytes. */
+    @Param({"256", "1048576"})
+    public int bodySize;
+
+    /** Whether the body is returned as stream. */
+    @Param({"false", "true"})
+    public boolean respondsAsStream;
+
+    /** Whether headers are returned as an object (NativeHeaders). */
+    @Param({"false", "true"})
+    public boolean nativeHeaders;
+
+    private Ext_HttpClient client;
+    private BasicHttpResponse response;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        NativeObject parameters = new NativeObject();
+        parameters.put("NativeHeaders", parameters, nativeHeaders);
+        client = new Ext_HttpClient(parameters);
+        byte[] body = new byte[bodySize];
+        Arrays.fill(body, (byte) 'a');
+        response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+        response.addHeader("Content-Type", "application/json");
+        response.addHeader("Content-Length", Integer.toString(bodySize));
+        response.addHeader("Cache-Control", "no-cache");
+        response.addHeader("Date", "Sun, 18 Oct 2026 00:00:00 GMT");
+        response.addHeader("ETag", "\"1-1600000000000\"");
+        response.addHeader("Server", "benchmark");
+        response.addHeader("Set-Cookie", "a=1");
+        response.addHeader("Set-Cookie", "b=2");
+        response.addHeader("X-Personium-Version", "1.7.0");
+        // A repeatable entity can be read by every invocation.
+        response.setEntity(new ByteArrayEntity(body, ContentType.APPLICATION_JSON));
+    }
+
+    @Benchmark
+    public NativeObject createResponse() {
+        return client.createResponseToJavascript(response, respondsAsStream);
+    }
+}
@@ -0,0 +1,138 @@
+/**
+ * personium.io
+ * Copyright 2026 Personium Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.httpclient;
+
+import java.io.IOException;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.entity.BufferedHttpEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+
+/**
+ * Runs a batch of requests on the shared executor with bounded parallelism and a deadline.
+ */
+final class BatchRunner {
+
+    private BatchRunner() {
+    }
+
+    /**
+     * Run the requests.
+     * Each element of the result is the response (CloseableHttpResponse) or the exception of the request.
+     * Bodies of responses not to be streamed are buffered and their connections are released.
+     * @param client shared HttpClient
+     * @param executor executor to run the requests on
+     * @param properties extension properties
+     * @param policy retry policy
+     * @param requests requests. null elements are skipped
+     * @param respondsAsStream Flags as to whether body is returned as stream
+     * @param concurrency max number of requests in flight
+     * @param deadline max milliseconds for the whole batch. 0: no limit
+     * @return responses or exceptions in the order of requests
+     * @throws InterruptedException interrupted while waiting
+     */
+    static Object[] run(CloseableHttpClient client, ExecutorService executor, Properties properties,
+            RetryPolicy policy, HttpRequestBase[] requests, boolean[] respondsAsStream, int concurrency, long deadline)
+            throws InterruptedException {
+        int size = requests.length;
+        AtomicReferenceArray<Object> outcomes = new AtomicReferenceArray<>(size);
+        AtomicInteger next = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(size);
+
+        // Each lane takes the next request when its previous one completes.
+        Runnable lane = () -> {
+            int i;
+            while ((i = next.getAndIncrement()) < size) {
+                try {
+                    if (requests[i] != null && outcomes.get(i) == null) {
+                        Object outcome = execute(client, properties, policy, requests[i], respondsAsStream[i]);
+                        if (!outcomes.compareAndSet(i, null, outcome) && outcome instanceof CloseableHttpResponse) {
+                            // Deadline passed while executing.
+                            ScriptResources.closeQuietly((CloseableHttpResponse) outcome);
+                        }
+                    }
+                } finally {
+                    done.countDown();
+                }
+            }
+        };
+        int lanes = Math.min(Math.max(concurrency, 1), size);
+        for (int i = 0; i < lanes; i++) {
+            executor.execute(lane);
+        }
+
+        boolean completed = true;
+        if (deadline > 0) {
+            completed = done.await(deadline, TimeUnit.MILLISECONDS);
+        } else {
+            done.await();
+        }
+        Object[] result = new Object[size];
+        for (int i = 0; i < size; i++) {
+            if (!completed && requests[i] != null) {
+                outcomes.compareAndSet(i, null, new TimeoutException("Batch deadline exceeded."));
+                if (outcomes.get(i) instanceof TimeoutException) {
+                    requests[i].abort();
+                }
+            }
+            result[i] = outcomes.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * Execute a request through the guard of its host.
+     * @param client HttpClient
+     * @param properties extension properties
+     * @param policy retry policy
+     * @param request request
+     * @param respondsAsStream Flag as to whether body is returned as stream
+     * @return response or exception
+     */
+    private static Object execute(CloseableHttpClient client, Properties properties, RetryPolicy policy,
+            HttpRequestBase request, boolean respondsAsStream) {
+        try {
+            CloseableHttpResponse res = RequestExecutor.execute(client, request, properties, policy, 0);
+            HttpEntity entity = res.getEntity();
+            if (respondsAsStream && entity != null) {
+                return res;
+            }
+            try {
+                if (entity != null) {
+                    res.setEntity(new BufferedHttpEntity(entity));
+                }
+            } finally {
+                res.close();
+            }
+            return res;
+        } catch (IOException | RuntimeException e) {
+            return e;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return e;
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/**
+ * personium.io
+ * Copyright 2026 Personium Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.httpclient;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.http.Header;
+import org.apache.http.client.cache.HttpCacheEntry;
+import org.apache.http.client.cache.HttpCacheStorage;
+import org.apache.http.client.cache.HttpCacheUpdateCallback;
+import org.apache.http.client.cache.Resource;
+
+/**
+ * In-memory cache storage bounded by entry count and total bytes.
+ * The least recently used entries are evicted first.
+ */
+final class BoundedHttpCacheStorage implements HttpCacheStorage {
+
+    /** Max number of entries. */
+    private final int maxEntries;
+
+    /** Max total bytes of entries. */
+    private final long maxBytes;
+
+    /** Entries in access order. */
+    private final LinkedHashMap<String, HttpCacheEntry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    /** Total bytes of entries. */
+    private long totalBytes = 0;
+
+    /**
+     * Constructor.
+     * @param maxEntries max number of entries
+     * @param maxBytes max total bytes of entries
+     */
+    BoundedHttpCacheStorage(int maxEntries, long maxBytes) {
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+    }
+
+    @Override
+    public synchronized void putEntry(String key, HttpCacheEntry entry) throws IOException {
+        HttpCacheEntry old = entries.put(key, entry);
+        if (old != null) {
+            totalBytes -= sizeOf(old);
+        }
+        totalBytes += sizeOf(entry);
+        evict();
+    }
+
+    @Override
+    public synchronized HttpCacheEntry getEntry(String key) throws IOException {
+        return entries.get(key);
+    }
+
+    @Override
+    public synchronized void removeEntry(String key) throws IOException {
+        HttpCacheEntry old = entries.remove(key);
+        if (old != null) {
+            totalBytes -= sizeOf(old);
+        }
+    }
+
+    @Override
+    public synchronized void updateEntry(String key, HttpCacheUpdateCallback callback) throws IOException {
+        HttpCacheEntry updated = callback.update(entries.get(key));
+        if (updated == null) {
+            removeEntry(key);
+        } else {
+            putEntry(key, updated);
+        }
+    }
+
+    /**
+     * Number of entries.
+     * @return count
+     */
+    synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Total bytes of entries.
+     * @return bytes
+     */
+    synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, HttpCacheEntry>> iterator = entries.entrySet().iterator();
+        while ((entries.size() > maxEntries || totalBytes > maxBytes) && iterator.hasNext()) {
+            Map.Entry<String, HttpCacheEntry> eldest = iterator.next();
+            iterator.remove();
+            totalBytes -= sizeOf(eldest.getValue());
+        }
+    }
+
+    /**
+     * Approximate heap bytes of the entry: the body and the headers.
+     * Bodies stored in files are not counted.
+     * @param entry cache entry
+     * @return bytes
+     */
+    static long sizeOf(HttpCacheEntry entry) {
+        Resource resource = entry.getResource();
+        long size = resource == null || resource instanceof MappedFileResource ? 0 : resource.length();
+        for (Header header : entry.getAllHeaders()) {
+            size += header.getName().length() + header.getValue().length();
+        }
+        return size;
+    }
+}
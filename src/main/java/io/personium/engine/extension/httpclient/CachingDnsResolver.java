@@ -0,0 +1,330 @@
+/**
+ * personium.io
+ * Copyright 2026 Personium Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.httpclient;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.conn.DnsResolver;
+import org.apache.http.conn.util.InetAddressUtils;
+import org.apache.http.impl.conn.SystemDefaultDnsResolver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * DNS resolver with a bounded process-wide cache.
+ * Entries used near the end of their TTL are refreshed in the background, so hosts in use
+ * are resolved off the request path. Failures are cached for a shorter TTL.
+ * Each resolution rotates the addresses of the host, so connections are spread over its A/AAAA records.
+ * Concurrent misses of one host share one lookup.
+ */
+final class CachingDnsResolver implements DnsResolver {
+
+    /** Logger. */
+    private static final Logger log = LoggerFactory.getLogger(CachingDnsResolver.class);
+
+    /** Property keys (Ext_HttpClient.properties). */
+    static final String PROP_CACHE = "dns.cache";
+    static final String PROP_CACHE_SIZE = "dns.cacheSize";
+    static final String PROP_TTL = "dns.ttl";
+    static final String PROP_NEGATIVE_TTL = "dns.negativeTtl";
+    static final String PROP_RESOLVER = "dns.resolver";
+
+    /** Default values. */
+    static final int DEFAULT_CACHE_SIZE = 1000;
+    static final long DEFAULT_TTL = 30000;
+    static final long DEFAULT_NEGATIVE_TTL = 5000;
+
+    /** Entries are refreshed when used after this part of the TTL (in quarters). */
+    private static final int REFRESH_AFTER_QUARTERS = 3;
+
+    /** Shared resolver. */
+    private static volatile DnsResolver shared;
+
+    /** Resolver that does the lookups. */
+    private final DnsResolver delegate;
+
+    /** Max number of hosts. */
+    private final int maxSize;
+
+    /** TTL of resolved hosts in nanoseconds. */
+    private final long ttlNanos;
+
+    /** TTL of unknown hosts in nanoseconds. */
+    private final long negativeTtlNanos;
+
+    /** Runs the background refreshes. */
+    private final Executor refresher;
+
+    /** Cache. Key is the lower case host name. */
+    private final ConcurrentMap<String, Entry> cache = new ConcurrentHashMap<>();
+
+    /** Lookups in flight. Key is the lower case host name. */
+    private final ConcurrentMap<String, CompletableFuture<Entry>> lookups = new ConcurrentHashMap<>();
+
+    /**
+     * Constructor.
+     * @param delegate resolver that does the lookups
+     * @param maxSize max number of hosts
+     * @param ttl TTL of resolved hosts in milliseconds
+     * @param negativeTtl TTL of unknown hosts in milliseconds
+     * @param refresher runs the background refreshes
+     */
+    CachingDnsResolver(DnsResolver delegate, int maxSize, long ttl, long negativeTtl, Executor refresher) {
+        this.delegate = delegate;
+        this.maxSize = maxSize;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttl);
+        this.negativeTtlNanos = TimeUnit.MILLISECONDS.toNanos(negativeTtl);
+        this.refresher = refresher;
+    }
+
+    /**
+     * Return the shared resolver, creating it on first use.
+     * @param properties extension properties
+     * @return resolver
+     */
+    static DnsResolver get(Properties properties) {
+        DnsResolver result = shared;
+        if (result == null) {
+            synchronized (CachingDnsResolver.class) {
+                result = shared;
+                if (result == null) {
+                    result = create(properties);
+                    shared = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Discard the shared resolver and its cache.
+     */
+    static synchronized void shutdown() {
+        shared = null;
+    }
+
+    /**
+     * Create the resolver from the extension properties.
+     * @param properties extension properties
+     * @return resolver
+     */
+    private static DnsResolver create(Properties properties) {
+        DnsResolver delegate = SystemDefaultDnsResolver.INSTANCE;
+        String className = properties == null ? null : properties.getProperty(PROP_RESOLVER);
+        if (className != null && !className.trim().isEmpty()) {
+            try {
+                delegate = Class.forName(className.trim(), true, CachingDnsResolver.class.getClassLoader())
+                        .asSubclass(DnsResolver.class).getConstructor().newInstance();
+            } catch (ReflectiveOperationException | ClassCastException | LinkageError e) {
+                log.warn("Failed to create the DNS resolver [{}].", className, e);
+            }
+        }
+        if (properties != null && "false".equalsIgnoreCase(properties.getProperty(PROP_CACHE))) {
+            return delegate;
+        }
+        return new CachingDnsResolver(delegate,
+                ClientConfig.getInt(properties, PROP_CACHE_SIZE, DEFAULT_CACHE_SIZE),
+                ClientConfig.getLong(properties, PROP_TTL, DEFAULT_TTL),
+                ClientConfig.getLong(properties, PROP_NEGATIVE_TTL, DEFAULT_NEGATIVE_TTL),
+                IoExecutors.get(properties));
+    }
+
+    @Override
+    public InetAddress[] resolve(String host) throws UnknownHostException {
+        if (InetAddressUtils.isIPv4Address(host) || InetAddressUtils.isIPv6Address(host)) {
+            // Nothing to look up.
+            return delegate.resolve(host);
+        }
+        String key = host.toLowerCase(Locale.ROOT);
+        long now = System.nanoTime();
+        Entry entry = cache.get(key);
+        if (entry == null || now - entry.expiresAt >= 0) {
+            entry = lookup(key, host);
+        } else if (now - entry.refreshAt >= 0 && entry.refreshing.compareAndSet(false, true)) {
+            refresh(key, host, entry);
+        }
+        return entry.addresses();
+    }
+
+    /**
+     * Number of cached hosts.
+     * @return size
+     */
+    int size() {
+        return cache.size();
+    }
+
+    /**
+     * Look up the host and cache the result, or wait for the lookup of the host in flight.
+     * @param key cache key
+     * @param host host name
+     * @return new entry
+     */
+    private Entry lookup(String key, String host) {
+        CompletableFuture<Entry> created = new CompletableFuture<>();
+        CompletableFuture<Entry> inFlight = lookups.putIfAbsent(key, created);
+        if (inFlight != null) {
+            try {
+                return inFlight.join();
+            } catch (CompletionException e) {
+                // The lookup failed with an unexpected error. Look up on our own.
+                log.debug("Failed to look up host [{}].", host, e);
+                return doLookup(key, host);
+            }
+        }
+        try {
+            Entry entry = cache.get(key);
+            if (entry == null || System.nanoTime() - entry.expiresAt >= 0) {
+                entry = doLookup(key, host);
+            }
+            created.complete(entry);
+            return entry;
+        } catch (RuntimeException | Error e) {
+            created.completeExceptionally(e);
+            throw e;
+        } finally {
+            lookups.remove(key, created);
+        }
+    }
+
+    /**
+     * Look up the host with the delegate and cache the result.
+     * @param key cache key
+     * @param host host name
+     * @return new entry
+     */
+    private Entry doLookup(String key, String host) {
+        Entry entry;
+        long now = System.nanoTime();
+        try {
+            InetAddress[] addresses = delegate.resolve(host);
+            entry = new Entry(addresses, null, now + ttlNanos, now + ttlNanos / 4 * REFRESH_AFTER_QUARTERS);
+        } catch (UnknownHostException e) {
+            entry = new Entry(null, e, now + negativeTtlNanos, now + negativeTtlNanos);
+        }
+        put(key, entry);
+        return entry;
+    }
+
+    /**
+     * Look up the host in the background. The current entry is kept until the lookup completes.
+     * A failed refresh keeps the current entry until it expires.
+     * @param key cache key
+     * @param host host name
+     * @param current current entry
+     */
+    private void refresh(String key, String host, Entry current) {
+        try {
+            refresher.execute(() -> {
+                try {
+                    InetAddress[] addresses = delegate.resolve(host);
+                    long now = System.nanoTime();
+                    put(key, new Entry(addresses, null, now + ttlNanos,
+                            now + ttlNanos / 4 * REFRESH_AFTER_QUARTERS));
+                } catch (UnknownHostException e) {
+                    log.debug("Failed to refresh host [{}].", host, e);
+                } finally {
+                    // The next use of the current entry refreshes again.
+                    current.refreshing.set(false);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            current.refreshing.set(false);
+        }
+    }
+
+    /**
+     * Cache the entry. When the cache is full, expired entries are removed,
+     * then the entry closest to expiry.
+     * @param key cache key
+     * @param entry entry
+     */
+    private void put(String key, Entry entry) {
+        if (cache.size() >= maxSize && !cache.containsKey(key)) {
+            long now = System.nanoTime();
+            String eldest = null;
+            long eldestExpiry = 0;
+            for (Iterator<Map.Entry<String, Entry>> it = cache.entrySet().iterator(); it.hasNext();) {
+                Map.Entry<String, Entry> e = it.next();
+                long expiresAt = e.getValue().expiresAt;
+                if (now - expiresAt >= 0) {
+                    it.remove();
+                } else if (eldest == null || expiresAt - eldestExpiry < 0) {
+                    eldest = e.getKey();
+                    eldestExpiry = expiresAt;
+                }
+            }
+            if (cache.size() >= maxSize && eldest != null) {
+                cache.remove(eldest);
+            }
+        }
+        cache.put(key, entry);
+    }
+
+    /**
+     * Cached result of a host.
+     */
+    private static final class Entry {
+        /** Addresses, or null for an unknown host. */
+        private final InetAddress[] addresses;
+        private final UnknownHostException error;
+        private final long expiresAt;
+        private final long refreshAt;
+        /** Start of the next rotation. */
+        private final AtomicInteger next = new AtomicInteger();
+        private final AtomicBoolean refreshing = new AtomicBoolean();
+
+        Entry(InetAddress[] addresses, UnknownHostException error, long expiresAt, long refreshAt) {
+            this.addresses = addresses;
+            this.error = error;
+            this.expiresAt = expiresAt;
+            this.refreshAt = refreshAt;
+        }
+
+        /**
+         * Return the addresses, rotated by one on each call.
+         * @return addresses
+         * @throws UnknownHostException unknown host
+         */
+        InetAddress[] addresses() throws UnknownHostException {
+            if (error != null) {
+                throw new UnknownHostException(error.getMessage());
+            }
+            int size = addresses.length;
+            InetAddress[] result = new InetAddress[size];
+            int start = size > 1 ? Math.floorMod(next.getAndIncrement(), size) : 0;
+            for (int i = 0; i < size; i++) {
+                result[i] = addresses[(start + i) % size];
+            }
+            return result;
+        }
+    }
+}
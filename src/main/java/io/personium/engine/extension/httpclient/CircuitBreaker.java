@@ -0,0 +1,200 @@
+/**
+ * personium.io
+ * Copyright 2026 Personium Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.httpclient;
+
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Circuit breaker of a host.
+ * The outcomes of the last calls are kept in a sliding window. When the rate of failed or slow
+ * calls reaches its threshold the circuit opens and calls are rejected without touching the network.
+ * After the open duration a few probe calls are let through (half-open), and the circuit closes
+ * when all of them succeed.
+ */
+final class CircuitBreaker {
+
+    /** Logger. */
+    private static final Logger log = LoggerFactory.getLogger(CircuitBreaker.class);
+
+    /** States. */
+    enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private static final byte FAILURE = 1;
+    private static final byte SLOW = 2;
+
+    /** Name for logging. */
+    private final String name;
+
+    /** Configuration. */
+    private final int minimumCalls;
+    private final int failureRateThreshold;
+    private final int slowCallRateThreshold;
+    private final long slowCallNanos;
+    private final long openNanos;
+    private final int halfOpenCalls;
+
+    /** Outcomes of the last calls. */
+    private final byte[] window;
+    private int windowIndex = 0;
+    private int windowCount = 0;
+    private int failures = 0;
+    private int slowCalls = 0;
+
+    /** Calls left to let through, and probes succeeded while half-open. */
+    private int halfOpenPermits = 0;
+    private int halfOpenSuccesses = 0;
+
+    /** Current state. Read without lock on the fast path. */
+    private volatile State state = State.CLOSED;
+
+    /** System.nanoTime() until which the circuit stays open. */
+    private volatile long openUntil = 0;
+
+    /**
+     * Constructor.
+     * @param name name for logging
+     * @param windowSize number of calls in the sliding window
+     * @param minimumCalls calls needed in the window before the rates are evaluated
+     * @param failureRateThreshold failure rate in percent to open the circuit
+     * @param slowCallRateThreshold slow call rate in percent to open the circuit
+     * @param slowCallMillis calls longer than this are slow
+     * @param openMillis time the circuit stays open
+     * @param halfOpenCalls number of probe calls while half-open
+     */
+    CircuitBreaker(String name, int windowSize, int minimumCalls, int failureRateThreshold,
+            int slowCallRateThreshold, long slowCallMillis, long openMillis, int halfOpenCalls) {
+        this.name = name;
+        this.window = new byte[windowSize];
+        this.minimumCalls = Math.min(minimumCalls, windowSize);
+        this.failureRateThreshold = failureRateThreshold;
+        this.slowCallRateThreshold = slowCallRateThreshold;
+        this.slowCallNanos = TimeUnit.MILLISECONDS.toNanos(slowCallMillis);
+        this.openNanos = TimeUnit.MILLISECONDS.toNanos(openMillis);
+        this.halfOpenCalls = halfOpenCalls;
+    }
+
+    /**
+     * Ask for permission to call.
+     * The result of a permitted call must be passed to {@link #record}, or {@link #cancel} if it was not made.
+     * @return false if the call must be rejected
+     */
+    boolean tryAcquire() {
+        State current = state;
+        if (current == State.CLOSED) {
+            return true;
+        }
+        if (current == State.OPEN && System.nanoTime() - openUntil < 0) {
+            return false;
+        }
+        synchronized (this) {
+            if (state == State.OPEN) {
+                if (System.nanoTime() - openUntil < 0) {
+                    return false;
+                }
+                state = State.HALF_OPEN;
+                halfOpenPermits = halfOpenCalls;
+                halfOpenSuccesses = 0;
+                log.info("Circuit half-open. host:{}", name);
+            }
+            if (state == State.HALF_OPEN) {
+                if (halfOpenPermits == 0) {
+                    return false;
+                }
+                halfOpenPermits--;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Return the permission of a call that was not made.
+     */
+    synchronized void cancel() {
+        if (state == State.HALF_OPEN) {
+            halfOpenPermits++;
+        }
+    }
+
+    /**
+     * Record the outcome of a permitted call.
+     * @param success false if the call failed
+     * @param elapsedNanos duration of the call
+     */
+    synchronized void record(boolean success, long elapsedNanos) {
+        boolean slow = elapsedNanos > slowCallNanos;
+        switch (state) {
+        case HALF_OPEN:
+            if (!success || slow) {
+                open();
+            } else if (++halfOpenSuccesses >= halfOpenCalls) {
+                close();
+            }
+            break;
+        case CLOSED:
+            byte outcome = (byte) ((success ? 0 : FAILURE) | (slow ? SLOW : 0));
+            if (windowCount == window.length) {
+                byte oldest = window[windowIndex];
+                failures -= oldest & FAILURE;
+                slowCalls -= (oldest & SLOW) >> 1;
+            } else {
+                windowCount++;
+            }
+            window[windowIndex] = outcome;
+            windowIndex = (windowIndex + 1) % window.length;
+            failures += outcome & FAILURE;
+            slowCalls += (outcome & SLOW) >> 1;
+            if (windowCount >= minimumCalls
+                    && (failures * 100 >= failureRateThreshold * windowCount
+                    || slowCalls * 100 >= slowCallRateThreshold * windowCount)) {
+                open();
+            }
+            break;
+        default:
+            // Calls started before the circuit opened.
+            break;
+        }
+    }
+
+    /**
+     * Current state.
+     * @return state
+     */
+    State getState() {
+        return state;
+    }
+
+    private void open() {
+        log.warn("Circuit opened. host:{} failures:{} slowCalls:{} calls:{}",
+                name, failures, slowCalls, windowCount);
+        openUntil = System.nanoTime() + openNanos;
+        state = State.OPEN;
+    }
+
+    private void close() {
+        log.info("Circuit closed. host:{}", name);
+        windowIndex = 0;
+        windowCount = 0;
+        failures = 0;
+        slowCalls = 0;
+        state = State.CLOSED;
+    }
+}
@@ -0,0 +1,193 @@
+/**
+ * personium.io
+ * Copyright 2026 Personium Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.httpclient;
+
+import java.util.Arrays;
+import java.util.Properties;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Effective configuration of a shared HttpClient.
+ * Instances are used as keys of {@link HttpClientRegistry}, so two Ext_HttpClient objects
+ * with the same configuration share one connection pool.
+ */
+final class ClientConfig {
+
+    /** Logger. */
+    private static final Logger log = LoggerFactory.getLogger(ClientConfig.class);
+
+    /** Property keys (Ext_HttpClient.properties). */
+    static final String PROP_POOL_MAX_TOTAL = "pool.maxTotal";
+    static final String PROP_POOL_MAX_PER_ROUTE = "pool.maxPerRoute";
+
+    /** Default values. */
+    static final int DEFAULT_POOL_MAX_TOTAL = 100;
+    static final int DEFAULT_POOL_MAX_PER_ROUTE = 20;
+
+    /** System properties read by HttpClientBuilder#useSystemProperties(). */
+    private static final String[] SYSTEM_PROPERTIES = {
+        "http.proxyHost", "http.proxyPort", "https.proxyHost", "https.proxyPort", "http.nonProxyHosts",
+        "socksProxyHost", "socksProxyPort", "http.keepAlive", "http.agent", "https.protocols", "https.cipherSuites"
+    };
+
+    /** Ignore SSL verification flag. */
+    private final boolean ignoreHostnameVerification;
+
+    /** Response cache flag. */
+    private final boolean cache;
+
+    /** HTTP/2 flag. */
+    private final boolean http2;
+
+    /** Max connections in total. */
+    private final int maxTotal;
+
+    /** Max connections per route. */
+    private final int maxPerRoute;
+
+    /** Snapshot of SYSTEM_PROPERTIES. */
+    private final String[] systemProperties;
+
+    /** Extension properties the client is created with. Not a part of the key. */
+    private final Properties properties;
+
+    private ClientConfig(boolean ignoreHostnameVerification, boolean cache, boolean http2, int maxTotal,
+            int maxPerRoute, Properties properties) {
+        this.ignoreHostnameVerification = ignoreHostnameVerification;
+        this.cache = cache;
+        this.http2 = http2;
+        this.properties = properties;
+        this.maxTotal = maxTotal;
+        this.maxPerRoute = maxPerRoute;
+        this.systemProperties = new String[SYSTEM_PROPERTIES.length];
+        for (int i = 0; i < SYSTEM_PROPERTIES.length; i++) {
+            this.systemProperties[i] = System.getProperty(SYSTEM_PROPERTIES[i]);
+        }
+    }
+
+    /**
+     * Create the effective configuration.
+     * @param ignoreHostnameVerification true:Ignore ssl verification
+     * @param cache true:Use the shared response cache
+     * @param http2 true:Use HTTP/2 when the server supports it
+     * @param properties extension properties
+     * @return configuration
+     */
+    static ClientConfig create(boolean ignoreHostnameVerification, boolean cache, boolean http2,
+            Properties properties) {
+        return new ClientConfig(ignoreHostnameVerification, cache, http2,
+                getInt(properties, PROP_POOL_MAX_TOTAL, DEFAULT_POOL_MAX_TOTAL),
+                getInt(properties, PROP_POOL_MAX_PER_ROUTE, DEFAULT_POOL_MAX_PER_ROUTE),
+                properties);
+    }
+
+    /**
+     * Read a positive integer property.
+     * Invalid values are logged and replaced with the default value.
+     * @param properties extension properties
+     * @param key property key
+     * @param defaultValue default value
+     * @return property value
+     */
+    static int getInt(Properties properties, String key, int defaultValue) {
+        long result = getLong(properties, key, defaultValue);
+        if (result > Integer.MAX_VALUE) {
+            log.warn("Property [{}] is too large: {}. Using default value {}.", key, result, defaultValue);
+            return defaultValue;
+        }
+        return (int) result;
+    }
+
+    /**
+     * Read a positive long property.
+     * Invalid values are logged and replaced with the default value.
+     * @param properties extension properties
+     * @param key property key
+     * @param defaultValue default value
+     * @return property value
+     */
+    static long getLong(Properties properties, String key, long defaultValue) {
+        String value = properties == null ? null : properties.getProperty(key);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            long result = Long.parseLong(value.trim());
+            if (result > 0) {
+                return result;
+            }
+        } catch (NumberFormatException e) {
+            log.debug("Invalid number format.", e);
+        }
+        log.warn("Property [{}] is invalid: {}. Using default value {}.", key, value, defaultValue);
+        return defaultValue;
+    }
+
+    boolean isIgnoreHostnameVerification() {
+        return ignoreHostnameVerification;
+    }
+
+    boolean isCache() {
+        return cache;
+    }
+
+    boolean isHttp2() {
+        return http2;
+    }
+
+    int getMaxTotal() {
+        return maxTotal;
+    }
+
+    int getMaxPerRoute() {
+        return maxPerRoute;
+    }
+
+    Properties getProperties() {
+        return properties;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = Boolean.hashCode(ignoreHostnameVerification);
+        result = 31 * result + Boolean.hashCode(cache);
+        result = 31 * result + Boolean.hashCode(http2);
+        result = 31 * result + maxTotal;
+        result = 31 * result + maxPerRoute;
+        result = 31 * result + Arrays.hashCode(systemProperties);
+        return result;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof ClientConfig)) {
+            return false;
+        }
+        ClientConfig other = (ClientConfig) obj;
+        return ignoreHostnameVerification == other.ignoreHostnameVerification
+                && cache == other.cache
+                && http2 == other.http2
+                && maxTotal == other.maxTotal
+                && maxPerRoute == other.maxPerRoute
+                && Arrays.equals(systemProperties, other.systemProperties);
+    }
+}
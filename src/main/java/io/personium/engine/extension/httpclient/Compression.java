@@ -0,0 +1,213 @@
+/**
+ * personium.io
+ * Copyright 2026 Personium Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.httpclient;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpHeaders;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.entity.DeflateInputStreamFactory;
+import org.apache.http.client.entity.GZIPInputStreamFactory;
+import org.apache.http.client.entity.GzipCompressingEntity;
+import org.apache.http.client.entity.InputStreamFactory;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.config.Lookup;
+import org.apache.http.config.RegistryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Content encoding of requests and responses.
+ * Values are resolved in the order of the extension properties, the constructor options
+ * and the options of the call, like {@link Timeouts}.
+ */
+final class Compression {
+
+    /** Logger. */
+    private static final Logger log = LoggerFactory.getLogger(Compression.class);
+
+    /** Property keys (Ext_HttpClient.properties). */
+    static final String PROP_ACCEPT_ENCODING = "compression.acceptEncoding";
+    static final String PROP_REQUEST_THRESHOLD = "compression.requestThreshold";
+
+    /** Threshold not set at this level. */
+    static final int UNSET = -1;
+
+    /** Compression with no value set. */
+    static final Compression NONE = new Compression(null, UNSET);
+
+    /** Brotli decoder, used only when org.brotli:dec is deployed with the extension. */
+    private static final String BROTLI_INPUT_STREAM = "org.brotli.dec.BrotliInputStream";
+
+    /** Decoders of response bodies by content coding. */
+    private static final Map<String, InputStreamFactory> DECODERS = createDecoders();
+
+    /** Accept-Encoding listing all decoders. */
+    static final String DEFAULT_ACCEPT_ENCODING = createDefaultAcceptEncoding();
+
+    /** Accept-Encoding to send. "" does not advertise nor decode. null if not set. */
+    private final String acceptEncoding;
+
+    /** Request bodies longer than this in bytes are gzipped. 0: never. */
+    private final int requestThreshold;
+
+    /**
+     * Constructor.
+     * @param acceptEncoding Accept-Encoding, or null
+     * @param requestThreshold threshold in bytes, or UNSET
+     */
+    Compression(String acceptEncoding, int requestThreshold) {
+        this.acceptEncoding = acceptEncoding;
+        this.requestThreshold = requestThreshold;
+    }
+
+    /**
+     * Create the defaults from the extension properties.
+     * @param properties extension properties
+     * @return compression
+     */
+    static Compression create(Properties properties) {
+        String acceptEncoding = properties == null ? null : properties.getProperty(PROP_ACCEPT_ENCODING);
+        return new Compression(acceptEncoding == null ? DEFAULT_ACCEPT_ENCODING : acceptEncoding.trim(),
+                ClientConfig.getInt(properties, PROP_REQUEST_THRESHOLD, 0));
+    }
+
+    /**
+     * Return the compression overridden with the values set in overrides.
+     * @param overrides compression to override with
+     * @return compression
+     */
+    Compression merge(Compression overrides) {
+        if (overrides == NONE) {
+            return this;
+        }
+        return new Compression(overrides.acceptEncoding != null ? overrides.acceptEncoding : acceptEncoding,
+                overrides.requestThreshold != UNSET ? overrides.requestThreshold : requestThreshold);
+    }
+
+    /**
+     * Set Accept-Encoding to the request unless the script set it, and compress the body.
+     * Must be called after the request config is set.
+     * @param request request
+     */
+    void apply(HttpRequestBase request) {
+        if (!request.containsHeader(HttpHeaders.ACCEPT_ENCODING)) {
+            if (acceptEncoding == null || acceptEncoding.isEmpty()) {
+                RequestConfig config = request.getConfig() != null ? request.getConfig() : RequestConfig.DEFAULT;
+                request.setConfig(RequestConfig.copy(config).setContentCompressionEnabled(false).build());
+            } else {
+                request.setHeader(HttpHeaders.ACCEPT_ENCODING, acceptEncoding);
+            }
+        }
+        compressBody(request);
+    }
+
+    /**
+     * Gzip the request body if it is longer than the threshold.
+     * Bodies of unknown length (streams) and bodies already encoded are sent as is.
+     * @param request request
+     */
+    void compressBody(HttpRequestBase request) {
+        if (requestThreshold <= 0 || !(request instanceof HttpEntityEnclosingRequest)
+                || request.containsHeader(HttpHeaders.CONTENT_ENCODING)) {
+            return;
+        }
+        HttpEntityEnclosingRequest enclosing = (HttpEntityEnclosingRequest) request;
+        HttpEntity entity = enclosing.getEntity();
+        if (entity == null || entity.getContentEncoding() != null
+                || entity.getContentLength() <= requestThreshold) {
+            return;
+        }
+        enclosing.setEntity(new GzipCompressingEntity(entity));
+    }
+
+    /**
+     * Decoders of response bodies by content coding.
+     * @return decoders
+     */
+    static Map<String, InputStreamFactory> decoders() {
+        return DECODERS;
+    }
+
+    /**
+     * Decoders of response bodies as a lookup.
+     * @return decoders
+     */
+    static Lookup<InputStreamFactory> decoderLookup() {
+        RegistryBuilder<InputStreamFactory> builder = RegistryBuilder.create();
+        for (Map.Entry<String, InputStreamFactory> entry : DECODERS.entrySet()) {
+            builder.register(entry.getKey(), entry.getValue());
+        }
+        return builder.build();
+    }
+
+    private static Map<String, InputStreamFactory> createDecoders() {
+        Map<String, InputStreamFactory> decoders = new LinkedHashMap<>();
+        decoders.put("gzip", GZIPInputStreamFactory.getInstance());
+        decoders.put("x-gzip", GZIPInputStreamFactory.getInstance());
+        decoders.put("deflate", DeflateInputStreamFactory.getInstance());
+        InputStreamFactory brotli = createBrotliDecoder();
+        if (brotli != null) {
+            decoders.put("br", brotli);
+        }
+        return Collections.unmodifiableMap(decoders);
+    }
+
+    private static String createDefaultAcceptEncoding() {
+        List<String> codings = new ArrayList<>(DECODERS.keySet());
+        codings.remove("x-gzip");
+        return String.join(",", codings);
+    }
+
+    /**
+     * Create the Brotli decoder if the decoder library is available.
+     * @return decoder, or null
+     */
+    private static InputStreamFactory createBrotliDecoder() {
+        Constructor<? extends InputStream> constructor;
+        try {
+            constructor = Class.forName(BROTLI_INPUT_STREAM).asSubclass(InputStream.class)
+                    .getConstructor(InputStream.class);
+        } catch (ReflectiveOperationException | LinkageError | ClassCastException e) {
+            log.debug("Brotli decoder is not available.");
+            return null;
+        }
+        return in -> {
+            try {
+                return constructor.newInstance(in);
+            } catch (InvocationTargetException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new IOException(e.getCause());
+            } catch (ReflectiveOperationException e) {
+                throw new IOException(e);
+            }
+        };
+    }
+}
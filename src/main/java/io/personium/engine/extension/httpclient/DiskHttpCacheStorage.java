@@ -0,0 +1,589 @@
+/**
+ * personium.io
+ * Copyright 2026 Personium Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.httpclient;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.http.Header;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.client.cache.HttpCacheEntry;
+import org.apache.http.client.cache.HttpCacheStorage;
+import org.apache.http.client.cache.HttpCacheUpdateCallback;
+import org.apache.http.client.cache.Resource;
+import org.apache.http.impl.client.cache.HeapResource;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.message.BasicStatusLine;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Two tier cache storage: the in-memory tier in front of a directory on the local disk.
+ * Every entry is written through to the disk, and entries missing in the memory tier are
+ * loaded from the disk. The disk tier is bounded by total bytes and evicts the least
+ * recently used entries. Its index is rebuilt from the directory on startup, so the cache
+ * survives engine restarts.
+ * <p>
+ * Writes of one key are serialized by a lock of the key, and files are written outside the index lock,
+ * which is held only to rename the file into place and update the index. Memory hits do not wait for it.
+ */
+final class DiskHttpCacheStorage implements HttpCacheStorage {
+
+    /** Logger. */
+    private static final Logger log = LoggerFactory.getLogger(DiskHttpCacheStorage.class);
+
+    /** Suffix of entry files. */
+    static final String ENTRY_SUFFIX = ".entry";
+
+    /** Suffix of files being written. */
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    /** Version of the entry file format. */
+    private static final int FORMAT_VERSION = 1;
+
+    /** Number of key locks. */
+    private static final int KEY_LOCKS = 64;
+
+    /** Body kinds. */
+    private static final int BODY_NONE = 0;
+    private static final int BODY_INLINE = 1;
+    private static final int BODY_FILE = 2;
+
+    /** Memory tier. */
+    private final BoundedHttpCacheStorage memory;
+
+    /** Cache directory. */
+    private final File directory;
+
+    /** Max total bytes of the disk tier. */
+    private final long maxBytes;
+
+    /** Serializes the writes of a key. Taken before indexLock. */
+    private final Object[] keyLocks = new Object[KEY_LOCKS];
+
+    /** Guards index, bodyReferences and totalBytes. */
+    private final ReentrantLock indexLock = new ReentrantLock();
+
+    /** Entries on the disk in access order. */
+    private final LinkedHashMap<String, DiskRecord> index = new LinkedHashMap<>(16, 0.75f, true);
+
+    /** Number of records referring to each body file. */
+    private final Map<String, Integer> bodyReferences = new HashMap<>();
+
+    /** Total bytes of the disk tier. */
+    private long totalBytes = 0;
+
+    /**
+     * Constructor.
+     * The index is rebuilt from the entry files in the directory.
+     * @param memory memory tier
+     * @param directory cache directory
+     * @param maxBytes max total bytes of the disk tier
+     * @throws IOException directory could not be used
+     */
+    DiskHttpCacheStorage(BoundedHttpCacheStorage memory, File directory, long maxBytes) throws IOException {
+        this.memory = memory;
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        for (int i = 0; i < KEY_LOCKS; i++) {
+            keyLocks[i] = new Object();
+        }
+        Files.createDirectories(directory.toPath());
+        load();
+    }
+
+    @Override
+    public void putEntry(String key, HttpCacheEntry entry) throws IOException {
+        synchronized (keyLock(key)) {
+            File temp = null;
+            try {
+                temp = writeTemp(key, entry);
+            } catch (IOException e) {
+                log.warn("Failed to write cache entry. key:{}", key, e);
+            }
+            indexLock.lock();
+            try {
+                if (temp == null || !commit(key, entry, temp)) {
+                    // The memory tier still serves the entry.
+                    removeRecord(key);
+                }
+                memory.putEntry(key, entry);
+                evict();
+            } finally {
+                indexLock.unlock();
+            }
+        }
+    }
+
+    @Override
+    public HttpCacheEntry getEntry(String key) throws IOException {
+        HttpCacheEntry entry = memory.getEntry(key);
+        if (entry != null) {
+            // Keep the entry recent on the disk too, unless the index is busy.
+            if (indexLock.tryLock()) {
+                try {
+                    index.get(key);
+                } finally {
+                    indexLock.unlock();
+                }
+            }
+            return entry;
+        }
+        DiskRecord record;
+        indexLock.lock();
+        try {
+            record = index.get(key);
+        } finally {
+            indexLock.unlock();
+        }
+        if (record == null) {
+            return null;
+        }
+        IOException error = null;
+        try {
+            entry = readEntry(new File(directory, record.entryFile));
+        } catch (IOException e) {
+            error = e;
+        }
+        indexLock.lock();
+        try {
+            if (index.get(key) != record) {
+                // Replaced or evicted while reading.
+                return memory.getEntry(key);
+            }
+            if (error != null) {
+                log.warn("Failed to read cache entry. key:{}", key, error);
+                removeRecord(key);
+                return null;
+            }
+            memory.putEntry(key, entry);
+            return entry;
+        } finally {
+            indexLock.unlock();
+        }
+    }
+
+    @Override
+    public void removeEntry(String key) throws IOException {
+        synchronized (keyLock(key)) {
+            indexLock.lock();
+            try {
+                memory.removeEntry(key);
+                removeRecord(key);
+            } finally {
+                indexLock.unlock();
+            }
+        }
+    }
+
+    @Override
+    public void updateEntry(String key, HttpCacheUpdateCallback callback) throws IOException {
+        synchronized (keyLock(key)) {
+            HttpCacheEntry updated = callback.update(getEntry(key));
+            if (updated == null) {
+                removeEntry(key);
+            } else {
+                putEntry(key, updated);
+            }
+        }
+    }
+
+    /**
+     * Number of entries on the disk.
+     * @return count
+     */
+    int size() {
+        indexLock.lock();
+        try {
+            return index.size();
+        } finally {
+            indexLock.unlock();
+        }
+    }
+
+    /**
+     * Total bytes of the disk tier.
+     * @return bytes
+     */
+    long getTotalBytes() {
+        indexLock.lock();
+        try {
+            return totalBytes;
+        } finally {
+            indexLock.unlock();
+        }
+    }
+
+    private Object keyLock(String key) {
+        return keyLocks[Math.floorMod(key.hashCode(), KEY_LOCKS)];
+    }
+
+    /**
+     * Write the entry to its temporary file. Called with the lock of the key, without the index lock.
+     * @param key cache key
+     * @param entry cache entry
+     * @return temporary file
+     * @throws IOException I/O error
+     */
+    private File writeTemp(String key, HttpCacheEntry entry) throws IOException {
+        File temp = new File(directory, toFileName(key) + ENTRY_SUFFIX + TEMP_SUFFIX);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            writeEntry(out, key, entry, getBodyFile(entry));
+        } catch (IOException e) {
+            delete(temp.getName());
+            throw e;
+        }
+        return temp;
+    }
+
+    /**
+     * Move the temporary file into place and add its record. Called with the index lock.
+     * The entry file is replaced atomically, so a crash never leaves a partial entry.
+     * @param key cache key
+     * @param entry cache entry
+     * @param temp temporary file
+     * @return false if the file could not be moved
+     */
+    private boolean commit(String key, HttpCacheEntry entry, File temp) {
+        String entryFile = toFileName(key) + ENTRY_SUFFIX;
+        File target = new File(directory, entryFile);
+        try {
+            String bodyFile = getBodyFile(entry);
+            Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            long bodyBytes = bodyFile == null ? 0 : entry.getResource().length();
+            addRecord(new DiskRecord(key, entryFile, target.length(), bodyFile, bodyBytes));
+            return true;
+        } catch (IOException e) {
+            log.warn("Failed to write cache entry. key:{}", key, e);
+            delete(temp.getName());
+            return false;
+        }
+    }
+
+    /**
+     * Name of the body file of the entry.
+     * @param entry cache entry
+     * @return file name, or null if the body is not in a file
+     * @throws IOException body file is not in the cache directory
+     */
+    private String getBodyFile(HttpCacheEntry entry) throws IOException {
+        Resource resource = entry.getResource();
+        if (!(resource instanceof MappedFileResource)) {
+            return null;
+        }
+        File file = ((MappedFileResource) resource).getFile();
+        if (!directory.equals(file.getParentFile())) {
+            throw new IOException("Body file is not in the cache directory: " + file);
+        }
+        return file.getName();
+    }
+
+    /**
+     * Rebuild the index from the directory.
+     * Unreadable entries and body files no entry refers to are deleted.
+     * @throws IOException directory could not be listed
+     */
+    private void load() throws IOException {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            throw new IOException("Cache directory could not be listed: " + directory);
+        }
+        List<File> entryFiles = new ArrayList<>();
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(ENTRY_SUFFIX)) {
+                entryFiles.add(file);
+            } else if (name.endsWith(TEMP_SUFFIX)) {
+                delete(name);
+            }
+        }
+        // Oldest first, so the most recently used entries are evicted last.
+        entryFiles.sort((a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+        for (File file : entryFiles) {
+            try {
+                DiskRecord record = readRecord(file);
+                if (record.bodyFile != null && !new File(directory, record.bodyFile).isFile()) {
+                    throw new IOException("Body file not found: " + record.bodyFile);
+                }
+                addRecord(record);
+            } catch (IOException e) {
+                log.warn("Discard unreadable cache entry. file:{}", file, e);
+                delete(file.getName());
+            }
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(DiskResourceFactory.BODY_SUFFIX) && !bodyReferences.containsKey(name)) {
+                delete(name);
+            }
+        }
+        evict();
+        log.info("Disk cache loaded. directory:{} entries:{} bytes:{}", directory, index.size(), totalBytes);
+    }
+
+    /**
+     * Add the record to the index, replacing the record of the same key.
+     * A body file shared by several records is counted once.
+     * @param record record
+     */
+    private void addRecord(DiskRecord record) {
+        if (record.bodyFile != null && bodyReferences.merge(record.bodyFile, 1, Integer::sum) == 1) {
+            totalBytes += record.bodyBytes;
+        }
+        DiskRecord old = index.put(record.key, record);
+        totalBytes += record.entryBytes;
+        if (old != null) {
+            totalBytes -= old.entryBytes;
+            if (!old.entryFile.equals(record.entryFile)) {
+                delete(old.entryFile);
+            }
+            releaseBody(old);
+        }
+    }
+
+    private void removeRecord(String key) {
+        DiskRecord record = index.remove(key);
+        if (record != null) {
+            totalBytes -= record.entryBytes;
+            delete(record.entryFile);
+            releaseBody(record);
+        }
+    }
+
+    private void releaseBody(DiskRecord record) {
+        if (record.bodyFile == null) {
+            return;
+        }
+        Integer count = bodyReferences.get(record.bodyFile);
+        if (count == null || count <= 1) {
+            bodyReferences.remove(record.bodyFile);
+            totalBytes -= record.bodyBytes;
+            delete(record.bodyFile);
+        } else {
+            bodyReferences.put(record.bodyFile, count - 1);
+        }
+    }
+
+    private void evict() throws IOException {
+        Iterator<Map.Entry<String, DiskRecord>> iterator = index.entrySet().iterator();
+        while (totalBytes > maxBytes && iterator.hasNext()) {
+            DiskRecord eldest = iterator.next().getValue();
+            iterator.remove();
+            totalBytes -= eldest.entryBytes;
+            // The body file is deleted, so the memory tier must not serve the entry either.
+            memory.removeEntry(eldest.key);
+            delete(eldest.entryFile);
+            releaseBody(eldest);
+        }
+    }
+
+    private void delete(String name) {
+        try {
+            Files.deleteIfExists(new File(directory, name).toPath());
+        } catch (IOException e) {
+            log.debug("Failed to delete cache file. file:{}", name, e);
+        }
+    }
+
+    /**
+     * Write the entry.
+     * Layout: version, key, body kind, [body file], dates, status line, headers, request method,
+     * variants, [inline body].
+     * @param out output
+     * @param key cache key
+     * @param entry cache entry
+     * @param bodyFile name of the body file, or null to write the body inline
+     * @throws IOException I/O error
+     */
+    private static void writeEntry(DataOutputStream out, String key, HttpCacheEntry entry, String bodyFile)
+            throws IOException {
+        Resource resource = entry.getResource();
+        out.writeInt(FORMAT_VERSION);
+        out.writeUTF(key);
+        if (bodyFile != null) {
+            out.writeByte(BODY_FILE);
+            out.writeUTF(bodyFile);
+        } else {
+            out.writeByte(resource == null ? BODY_NONE : BODY_INLINE);
+        }
+        out.writeLong(entry.getRequestDate().getTime());
+        out.writeLong(entry.getResponseDate().getTime());
+        ProtocolVersion version = entry.getProtocolVersion();
+        out.writeUTF(version.getProtocol());
+        out.writeInt(version.getMajor());
+        out.writeInt(version.getMinor());
+        out.writeInt(entry.getStatusCode());
+        out.writeBoolean(entry.getReasonPhrase() != null);
+        if (entry.getReasonPhrase() != null) {
+            out.writeUTF(entry.getReasonPhrase());
+        }
+        Header[] headers = entry.getAllHeaders();
+        out.writeInt(headers.length);
+        for (Header header : headers) {
+            out.writeUTF(header.getName());
+            out.writeUTF(header.getValue());
+        }
+        out.writeUTF(entry.getRequestMethod());
+        Map<String, String> variants = entry.getVariantMap();
+        out.writeInt(variants.size());
+        for (Map.Entry<String, String> variant : variants.entrySet()) {
+            out.writeUTF(variant.getKey());
+            out.writeUTF(variant.getValue());
+        }
+        if (bodyFile == null && resource != null) {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            try (InputStream in = resource.getInputStream()) {
+                byte[] buffer = new byte[8192];
+                int len;
+                while ((len = in.read(buffer)) != -1) {
+                    body.write(buffer, 0, len);
+                }
+            }
+            out.writeInt(body.size());
+            body.writeTo(out);
+        }
+    }
+
+    /**
+     * Read the record of the entry file without reading the entry.
+     * @param file entry file
+     * @return record
+     * @throws IOException I/O error or unknown format
+     */
+    private DiskRecord readRecord(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            checkVersion(in);
+            String key = in.readUTF();
+            String bodyFile = null;
+            long bodyBytes = 0;
+            if (in.readByte() == BODY_FILE) {
+                bodyFile = in.readUTF();
+                bodyBytes = new File(directory, bodyFile).length();
+            }
+            return new DiskRecord(key, file.getName(), file.length(), bodyFile, bodyBytes);
+        }
+    }
+
+    /**
+     * Read the entry file.
+     * @param file entry file
+     * @return cache entry
+     * @throws IOException I/O error or unknown format
+     */
+    private HttpCacheEntry readEntry(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            checkVersion(in);
+            in.readUTF();
+            int bodyKind = in.readByte();
+            Resource resource = null;
+            if (bodyKind == BODY_FILE) {
+                File bodyFile = new File(directory, in.readUTF());
+                resource = new MappedFileResource(bodyFile, bodyFile.length());
+            }
+            Date requestDate = new Date(in.readLong());
+            Date responseDate = new Date(in.readLong());
+            ProtocolVersion version = new ProtocolVersion(in.readUTF(), in.readInt(), in.readInt());
+            int statusCode = in.readInt();
+            String reasonPhrase = in.readBoolean() ? in.readUTF() : null;
+            Header[] headers = new Header[in.readInt()];
+            for (int i = 0; i < headers.length; i++) {
+                headers[i] = new BasicHeader(in.readUTF(), in.readUTF());
+            }
+            String requestMethod = in.readUTF();
+            int variantCount = in.readInt();
+            Map<String, String> variants = new HashMap<>();
+            for (int i = 0; i < variantCount; i++) {
+                variants.put(in.readUTF(), in.readUTF());
+            }
+            if (bodyKind == BODY_INLINE) {
+                byte[] body = new byte[in.readInt()];
+                in.readFully(body);
+                resource = new HeapResource(body);
+            }
+            return new HttpCacheEntry(requestDate, responseDate,
+                    new BasicStatusLine(version, statusCode, reasonPhrase), headers, resource, variants,
+                    requestMethod);
+        }
+    }
+
+    private static void checkVersion(DataInputStream in) throws IOException {
+        int version = in.readInt();
+        if (version != FORMAT_VERSION) {
+            throw new IOException("Unknown cache entry format: " + version);
+        }
+    }
+
+    /**
+     * File name of the key.
+     * @param key cache key
+     * @return SHA-256 of the key in hex
+     */
+    private static String toFileName(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                sb.append(String.format("%02x", b));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // SHA-256 is always available.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Entry on the disk.
+     */
+    private static final class DiskRecord {
+        private final String key;
+        private final String entryFile;
+        private final long entryBytes;
+        private final String bodyFile;
+        private final long bodyBytes;
+
+        DiskRecord(String key, String entryFile, long entryBytes, String bodyFile, long bodyBytes) {
+            this.key = key;
+            this.entryFile = entryFile;
+            this.entryBytes = entryBytes;
+            this.bodyFile = bodyFile;
+            this.bodyBytes = bodyBytes;
+        }
+    }
+}
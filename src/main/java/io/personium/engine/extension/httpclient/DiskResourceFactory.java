@@ -0,0 +1,116 @@
+/**
+ * personium.io
+ * Copyright 2026 Personium Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.httpclient;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+
+import org.apache.http.client.cache.InputLimit;
+import org.apache.http.client.cache.Resource;
+import org.apache.http.client.cache.ResourceFactory;
+import org.apache.http.impl.client.cache.HeapResource;
+
+/**
+ * Stores small response bodies on the heap and large ones in files of the disk cache tier.
+ */
+final class DiskResourceFactory implements ResourceFactory {
+
+    /** Suffix of body files. */
+    static final String BODY_SUFFIX = ".body";
+
+    private static final int BUFFER_SIZE = 8192;
+
+    /** Cache directory. */
+    private final File directory;
+
+    /** Bodies larger than this are stored in files. */
+    private final int minObjectSize;
+
+    /**
+     * Constructor.
+     * @param directory cache directory
+     * @param minObjectSize bodies larger than this are stored in files
+     */
+    DiskResourceFactory(File directory, int minObjectSize) {
+        this.directory = directory;
+        this.minObjectSize = minObjectSize;
+    }
+
+    @Override
+    public Resource generate(String requestId, InputStream instream, InputLimit limit) throws IOException {
+        ByteArrayOutputStream heap = new ByteArrayOutputStream();
+        OutputStream out = heap;
+        File file = null;
+        long total = 0;
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try {
+            int len;
+            while ((len = instream.read(buffer)) != -1) {
+                if (file == null && total + len > minObjectSize) {
+                    // Spill to a file.
+                    file = createBodyFile();
+                    out = new FileOutputStream(file);
+                    heap.writeTo(out);
+                    heap = null;
+                }
+                out.write(buffer, 0, len);
+                total += len;
+                if (limit != null && total > limit.getValue()) {
+                    limit.reached();
+                    break;
+                }
+            }
+            out.close();
+        } catch (IOException | RuntimeException e) {
+            out.close();
+            if (file != null) {
+                Files.deleteIfExists(file.toPath());
+            }
+            throw e;
+        }
+        if (file == null) {
+            return new HeapResource(heap.toByteArray());
+        }
+        return new MappedFileResource(file, total);
+    }
+
+    @Override
+    public Resource copy(String requestId, Resource resource) throws IOException {
+        if (resource instanceof MappedFileResource) {
+            // Body files are never modified, so entries share them. The storage counts the references.
+            return resource;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = resource.getInputStream()) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int len;
+            while ((len = in.read(buffer)) != -1) {
+                out.write(buffer, 0, len);
+            }
+        }
+        return new HeapResource(out.toByteArray());
+    }
+
+    private File createBodyFile() throws IOException {
+        return File.createTempFile("body-", BODY_SUFFIX, directory);
+    }
+}
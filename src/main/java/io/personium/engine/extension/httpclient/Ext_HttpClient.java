@@ -16,23 +16,36 @@
  */
 package io.personium.engine.extension.httpclient;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
 import java.io.UnsupportedEncodingException;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.charset.UnsupportedCharsetException;
 import java.security.GeneralSecurityException;
-import java.security.cert.CertificateException;
-import java.security.cert.X509Certificate;
-import java.util.Iterator;
-import java.util.Map.Entry;
-
-import javax.net.ssl.SSLContext;
-import javax.net.ssl.TrustManager;
-import javax.net.ssl.X509TrustManager;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
 
 import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
 import org.apache.http.ParseException;
+import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpDelete;
 import org.apache.http.client.methods.HttpEntityEnclosingRequestBase;
 import org.apache.http.client.methods.HttpGet;
@@ -40,20 +53,37 @@ import org.apache.http.client.methods.HttpPatch;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpPut;
 import org.apache.http.client.methods.HttpRequestBase;
-import org.apache.http.entity.BufferedHttpEntity;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.conn.ConnectTimeoutException;
 import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.entity.mime.HttpMultipartMode;
+import org.apache.http.entity.mime.MultipartEntityBuilder;
+import org.apache.http.entity.mime.content.InputStreamBody;
+import org.apache.http.entity.mime.content.StringBody;
 import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClientBuilder;
-import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.protocol.HTTP;
 import org.apache.http.util.EntityUtils;
 import org.apache.http.util.TextUtils;
 import org.json.simple.JSONObject;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.EcmaError;
+import org.mozilla.javascript.JavaScriptException;
+import org.mozilla.javascript.NativeArray;
 import org.mozilla.javascript.NativeObject;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+import org.mozilla.javascript.Undefined;
+import org.mozilla.javascript.Wrapper;
 import org.mozilla.javascript.annotations.JSConstructor;
 import org.mozilla.javascript.annotations.JSFunction;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import io.personium.engine.extension.httpclient.HostGuard.HostUnavailableException;
 import io.personium.engine.extension.support.AbstractExtensionScriptableObject;
 import io.personium.engine.extension.support.ExtensionErrorConstructor;
 import io.personium.engine.extension.support.ExtensionLogger;
@@ -71,12 +101,89 @@ public class Ext_HttpClient extends AbstractExtensionScriptableObject { // CHECK
     /** Json keys. */
     private static final String KEY_SKIP_HOSTNAME_VERIFICATION = "IgnoreHostnameVerification";
     private static final String KEY_DEFAULT_HEADERS = "DefaultHeaders";
+    private static final String KEY_CACHE = "Cache";
+    private static final String KEY_HTTP2 = "Http2";
+    private static final String KEY_NATIVE_HEADERS = "NativeHeaders";
+    private static final String KEY_COALESCE = "Coalesce";
+    private static final String KEY_VARY_HEADERS = "VaryHeaders";
+    private static final String KEY_CONNECT_TIMEOUT = "ConnectTimeout";
+    private static final String KEY_SOCKET_TIMEOUT = "SocketTimeout";
+    private static final String KEY_CONNECTION_REQUEST_TIMEOUT = "ConnectionRequestTimeout";
+    private static final String KEY_RETRY = "Retry";
+    private static final String KEY_ACCEPT_ENCODING = "AcceptEncoding";
+    private static final String KEY_REQUEST_COMPRESSION_THRESHOLD = "RequestCompressionThreshold";
+    private static final String KEY_MAX_ATTEMPTS = "MaxAttempts";
+    private static final String KEY_INITIAL_BACKOFF = "InitialBackoff";
+    private static final String KEY_MAX_BACKOFF = "MaxBackoff";
+    private static final String KEY_STATUS_CODES = "StatusCodes";
+    private static final String KEY_RETRY_NON_IDEMPOTENT = "RetryNonIdempotent";
+
+    /** Option keys. */
+    private static final String KEY_CONCURRENCY = "Concurrency";
+    private static final String KEY_DEADLINE = "Deadline";
+
+    /** Property keys (Ext_HttpClient.properties). */
+    static final String PROP_BATCH_CONCURRENCY = "batch.concurrency";
+
+    /** Default values. */
+    static final int DEFAULT_BATCH_CONCURRENCY = 8;
+
+    /** Name of the error thrown to javascript when a request times out. */
+    static final String TIMEOUT_ERROR_NAME = "TimeoutError";
 
     /** Ignore SSL varification flag. */
     private boolean ignoreHostnameVerification = false;
 
-    /** Default headers. */
-    private NativeObject defaultHeaders = null;
+    /** Content type of postMultipart. */
+    private static final String MULTIPART_FORM_DATA = "multipart/form-data";
+
+    /** No headers. */
+    private static final Header[] NO_HEADERS = new Header[0];
+
+    /** Default headers, converted once by the constructor. */
+    private Header[] defaultHeaders = NO_HEADERS;
+
+    /** Response cache flag. */
+    private boolean cache = false;
+
+    /** HTTP/2 flag. */
+    private boolean http2 = false;
+
+    /** Native headers flag. true: headers of responses are objects, not JSON strings. */
+    private boolean nativeHeaders = false;
+
+    /** Coalesce flag. true: identical concurrent GET requests share one upstream call. */
+    private boolean coalesce = false;
+
+    /** Headers that make coalesced requests different. null: all headers. */
+    private String[] varyHeaders = null;
+
+    /** Timeouts set by the constructor. */
+    private Timeouts timeouts = Timeouts.NONE;
+
+    /** Compression set by the constructor. */
+    private Compression compression = Compression.NONE;
+
+    /** Retry policy set by the constructor. Created from the extension properties if null. */
+    private RetryPolicy retryPolicy = null;
+
+    /** Timeouts of the extension properties merged with the constructor ones. Created on first use. */
+    private Timeouts baseTimeouts = null;
+
+    /** Compression of the extension properties merged with the constructor one. Created on first use. */
+    private Compression baseCompression = null;
+
+    /** Configuration of the synchronous client. Created on first use. */
+    private transient ClientConfig clientConfig = null;
+
+    /** Configuration of the asynchronous client. Created on first use. */
+    private transient ClientConfig asyncClientConfig = null;
+
+    /** Pending asynchronous requests. */
+    private final transient Map<Integer, PendingRequest> pendingRequests = new HashMap<>();
+
+    /** Last asynchronous request id. */
+    private int lastRequestId = 0;
 
     /**
      * Default constructor.
@@ -89,6 +196,17 @@ public class Ext_HttpClient extends AbstractExtensionScriptableObject { // CHECK
      * @param parameters Json parameters.<p>
      * IgnoreHostnameVerification true:Ignore ssl verification.
      * DefaultHeaders String: Set default headers.
+     * Cache true:Use the shared response cache.
+     * Http2 true:Use HTTP/2 when the server supports it.
+     * NativeHeaders true:Return response headers as a read-only object instead of a JSON string.
+     * Coalesce true or NativeObject: Identical concurrent GET requests share one upstream call.
+     * {"VaryHeaders"} Array: Names of the headers that make requests different. Default all headers.
+     * ConnectTimeout, SocketTimeout, ConnectionRequestTimeout Number: Timeouts in milliseconds. 0:No timeout.
+     * Deadline Number: Max milliseconds of the whole request. 0:No limit.
+     * AcceptEncoding String: Accept-Encoding of requests. "":Do not decompress responses.
+     * RequestCompressionThreshold Number: Request bodies longer than this in bytes are gzipped. 0:Never.
+     * Retry NativeObject: Retry policy. {"MaxAttempts", "InitialBackoff", "MaxBackoff", "StatusCodes",
+     * "RetryNonIdempotent"}
      */
     @JSConstructor
     public Ext_HttpClient(NativeObject parameters) {
@@ -98,6 +216,15 @@ public class Ext_HttpClient extends AbstractExtensionScriptableObject { // CHECK
         if (parameters != null && !parameters.isEmpty()) {
             setIgnoreHostnameVerification(parameters);
             setDefaultHeaders(parameters);
+            setCache(parameters);
+            setHttp2(parameters);
+            setNativeHeaders(parameters);
+            setCoalesce(parameters);
+            timeouts = readTimeouts(parameters);
+            compression = readCompression(parameters);
+            if (parameters.get(KEY_RETRY) != null) {
+                retryPolicy = readRetryPolicy(parameters, RetryPolicy.create(getProperties()));
+            }
         }
     }
 
@@ -124,7 +251,90 @@ public class Ext_HttpClient extends AbstractExtensionScriptableObject { // CHECK
             this.getLogger().info(message);
             throw ExtensionErrorConstructor.construct(message);
         }
-        defaultHeaders = (NativeObject) argParam;
+        NativeObject headers = (NativeObject) argParam;
+        Object[] ids = headers.getIds();
+        Header[] result = new Header[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            Object value = getProperty(headers, ids[i]);
+            if (value == null || value instanceof Undefined || value instanceof Scriptable) {
+                String message = String.format("Parameter [%s] has an invalid value of [%s].",
+                        KEY_DEFAULT_HEADERS, ids[i]);
+                this.getLogger().info(message);
+                throw ExtensionErrorConstructor.construct(message);
+            }
+            result[i] = new BasicHeader(ids[i].toString(), value.toString());
+        }
+        defaultHeaders = result;
+    }
+
+    private void setCache(NativeObject parameters) {
+        Object argParam = parameters.get(KEY_CACHE);
+        if (argParam == null) {
+            return;
+        }
+        if (!(argParam instanceof Boolean)) {
+            String message = String.format("Parameter [%s] is not Boolean.", KEY_CACHE);
+            this.getLogger().info(message);
+            throw ExtensionErrorConstructor.construct(message);
+        }
+        cache = (Boolean) argParam;
+    }
+
+    private void setHttp2(NativeObject parameters) {
+        Object argParam = parameters.get(KEY_HTTP2);
+        if (argParam == null) {
+            return;
+        }
+        if (!(argParam instanceof Boolean)) {
+            String message = String.format("Parameter [%s] is not Boolean.", KEY_HTTP2);
+            this.getLogger().info(message);
+            throw ExtensionErrorConstructor.construct(message);
+        }
+        http2 = (Boolean) argParam;
+    }
+
+    private void setNativeHeaders(NativeObject parameters) {
+        Object argParam = parameters.get(KEY_NATIVE_HEADERS);
+        if (argParam == null) {
+            return;
+        }
+        if (!(argParam instanceof Boolean)) {
+            String message = String.format("Parameter [%s] is not Boolean.", KEY_NATIVE_HEADERS);
+            this.getLogger().info(message);
+            throw ExtensionErrorConstructor.construct(message);
+        }
+        nativeHeaders = (Boolean) argParam;
+    }
+
+    private void setCoalesce(NativeObject parameters) {
+        Object argParam = parameters.get(KEY_COALESCE);
+        if (argParam == null) {
+            return;
+        }
+        if (argParam instanceof Boolean) {
+            coalesce = (Boolean) argParam;
+            return;
+        }
+        if (!(argParam instanceof NativeObject)) {
+            String message = String.format("Parameter [%s] is not Boolean or NativeObject.", KEY_COALESCE);
+            this.getLogger().info(message);
+            throw ExtensionErrorConstructor.construct(message);
+        }
+        coalesce = true;
+        Object names = ((NativeObject) argParam).get(KEY_VARY_HEADERS);
+        if (names == null) {
+            return;
+        }
+        if (!(names instanceof NativeArray)) {
+            String message = String.format("Parameter [%s] is not Array.", KEY_VARY_HEADERS);
+            this.getLogger().info(message);
+            throw ExtensionErrorConstructor.construct(message);
+        }
+        NativeArray array = (NativeArray) names;
+        varyHeaders = new String[(int) array.getLength()];
+        for (int i = 0; i < varyHeaders.length; i++) {
+            varyHeaders[i] = String.valueOf(array.get(i, array));
+        }
     }
 
     /**
@@ -140,24 +350,64 @@ public class Ext_HttpClient extends AbstractExtensionScriptableObject { // CHECK
      * @param url String
      * @param headers JSONObject
      * @param respondsAsStream true:stream/false:text
+     * @param options {"ConnectTimeout", "SocketTimeout", "ConnectionRequestTimeout", "Deadline"}
      * @return JSONObject
      */
     @JSFunction
-    public NativeObject get(String url, NativeObject headers, boolean respondsAsStream) {
+    public NativeObject get(String url, NativeObject headers, boolean respondsAsStream, NativeObject options) {
         // Verification.
         verifyParamIsEmpty(url, "url");
 
         HttpGet get = new HttpGet(url);
         addRequestHeaders(get, headers);
 
-        try (CloseableHttpClient httpclient = createHttpClient()) {
-            // Request
-            HttpResponse res = httpclient.execute(get);
-            // Response
-            return createResponseToJavascript(res, respondsAsStream);
-        } catch (IOException e) {
-            throw ExtensionErrorConstructor.construct(createErrorMessage(e));
+        return execute(get, respondsAsStream, options);
+    }
+
+    /**
+     * get without options.
+     * @param url String
+     * @param headers JSONObject
+     * @param respondsAsStream true:stream/false:text
+     * @return JSONObject
+     */
+    public NativeObject get(String url, NativeObject headers, boolean respondsAsStream) {
+        return get(url, headers, respondsAsStream, null);
+    }
+
+    /**
+     * getJson.
+     * The body is parsed as JSON while it is read, and only the selected paths are built.
+     * @param url String
+     * @param headers JSONObject
+     * @param paths JSON Pointers or dotted paths to select, as an array or a string. null selects the whole body
+     * @param options {"ConnectTimeout", "SocketTimeout", "ConnectionRequestTimeout", "Deadline"}
+     * @return JSONObject. body is the parsed object
+     */
+    @JSFunction
+    public NativeObject getJson(String url, NativeObject headers, Object paths, NativeObject options) {
+        // Verification.
+        verifyParamIsEmpty(url, "url");
+        String[] selected = toPaths(paths);
+
+        HttpGet get = new HttpGet(url);
+        addRequestHeaders(get, headers);
+        if (get.getFirstHeader("Accept") == null) {
+            get.setHeader("Accept", ContentType.APPLICATION_JSON.getMimeType());
         }
+
+        return execute(get, false, options, res -> createJsonResponseToJavascript(res, selected));
+    }
+
+    /**
+     * getJson without options.
+     * @param url String
+     * @param headers JSONObject
+     * @param paths JSON Pointers or dotted paths to select. null selects the whole body
+     * @return JSONObject
+     */
+    public NativeObject getJson(String url, NativeObject headers, Object paths) {
+        return getJson(url, headers, paths, null);
     }
 
     /**
@@ -167,28 +417,96 @@ public class Ext_HttpClient extends AbstractExtensionScriptableObject { // CHECK
      * @param headers NativeObject
      * @param contentType String
      * @param params String
+     * @param options {"ConnectTimeout", "SocketTimeout", "ConnectionRequestTimeout", "Deadline"}
      * @return NativeObject
      */
     @JSFunction
+    public NativeObject postParam(String uri, NativeObject headers, String contentType, String params,
+            NativeObject options) {
+        return doPost(uri, headers, contentType, params, null, options);
+    }
+
+    /**
+     * postParam (String) without options.
+     * @param uri String
+     * @param headers NativeObject
+     * @param contentType String
+     * @param params String
+     * @return NativeObject
+     */
     public NativeObject postParam(String uri, NativeObject headers, String contentType, String params) {
-        return doPost(uri, headers, contentType, params, null);
-    }
-
-//    /**
-//     * postStream (PersoniumInputStream).
-//     * @param uri String
-//     * @param headers NativeObject
-//     * @param contentType String
-//     * @param params String
-//     * @param pis PersoniumInputStream
-//     * @return NativeObject
-//     */
-// PostのStreamは、動作が確認できていないためコメント。
-//    @JSFunction
-//    public NativeObject postStream(String uri, NativeObject headers, String contentType,
-//            PersoniumInputStream pis) {
-//        return doPost(uri, headers, contentType, null, pis);
-//    }
+        return postParam(uri, headers, contentType, params, null);
+    }
+
+    /**
+     * postStream (PersoniumInputStream).
+     * The body is sent with chunked transfer encoding without being copied on the heap.
+     * @param uri String
+     * @param headers NativeObject
+     * @param contentType String
+     * @param pis PersoniumInputStream
+     * @param options {"ConnectTimeout", "SocketTimeout", "ConnectionRequestTimeout", "Deadline"}
+     * @return NativeObject
+     */
+    @JSFunction
+    public NativeObject postStream(String uri, NativeObject headers, String contentType,
+            PersoniumInputStream pis, NativeObject options) {
+        return doPost(uri, headers, contentType, null, pis, options);
+    }
+
+    /**
+     * postStream (PersoniumInputStream) without options.
+     * @param uri String
+     * @param headers NativeObject
+     * @param contentType String
+     * @param pis PersoniumInputStream
+     * @return NativeObject
+     */
+    public NativeObject postStream(String uri, NativeObject headers, String contentType,
+            PersoniumInputStream pis) {
+        return postStream(uri, headers, contentType, pis, null);
+    }
+
+    /**
+     * postMultipart.
+     * The body is sent as multipart/form-data with chunked transfer encoding. Stream parts are not copied
+     * on the heap.
+     * @param uri String
+     * @param headers NativeObject
+     * @param parts NativeArray of {"name", "body", "contentType", "fileName"}.
+     * body is String for a text field, or PersoniumInputStream for a file
+     * @param options {"ConnectTimeout", "SocketTimeout", "ConnectionRequestTimeout", "Deadline"}
+     * @return NativeObject
+     */
+    @JSFunction
+    public NativeObject postMultipart(String uri, NativeObject headers, NativeArray parts, NativeObject options) {
+        // Verification.
+        verifyParamIsEmpty(uri, "url");
+        if (parts == null || parts.getLength() == 0) {
+            String message = String.format("Parameter [%s] is not set.", "parts");
+            this.getLogger().info(message);
+            throw ExtensionErrorConstructor.construct(message);
+        }
+
+        HttpPost post = new HttpPost(uri);
+        addRequestHeaders(post, headers, MULTIPART_FORM_DATA);
+        // Content-Type with the boundary is set by the entity.
+        post.removeHeaders(HTTP.CONTENT_TYPE);
+        addMultipartBody(post, parts);
+
+        return execute(post, false, options);
+    }
+
+    /**
+     * postMultipart without options.
+     * @param uri String
+     * @param headers NativeObject
+     * @param parts NativeArray of {"name", "body", "contentType", "fileName"}
+     * @return NativeObject
+     */
+    public NativeObject postMultipart(String uri, NativeObject headers, NativeArray parts) {
+        return postMultipart(uri, headers, parts, null);
+    }
 
     /**
      * post (String).
@@ -196,11 +514,25 @@ public class Ext_HttpClient extends AbstractExtensionScriptableObject { // CHECK
      * @param headers NativeObject
      * @param contentType String
      * @param params String
+     * @param options {"ConnectTimeout", "SocketTimeout", "ConnectionRequestTimeout", "Deadline"}
      * @return NativeObject
      */
     @JSFunction
+    public NativeObject post(String uri, NativeObject headers, String contentType, String params,
+            NativeObject options) {
+        return doPost(uri, headers, contentType, params, null, options);
+    }
+
+    /**
+     * post (String) without options.
+     * @param uri String
+     * @param headers NativeObject
+     * @param contentType String
+     * @param params String
+     * @return NativeObject
+     */
     public NativeObject post(String uri, NativeObject headers, String contentType, String params) {
-        return doPost(uri, headers, contentType, params, null);
+        return post(uri, headers, contentType, params, null);
     }
 
     /**
@@ -210,11 +542,25 @@ public class Ext_HttpClient extends AbstractExtensionScriptableObject { // CHECK
      * @param headers NativeObject
      * @param contentType String
      * @param params String
+     * @param options {"ConnectTimeout", "SocketTimeout", "ConnectionRequestTimeout", "Deadline"}
      * @return NativeObject
      */
     @JSFunction
+    public NativeObject putParam(String uri, NativeObject headers, String contentType, String params,
+            NativeObject options) {
+        return doPut(uri, headers, contentType, params, null, options);
+    }
+
+    /**
+     * putParam (String) without options.
+     * @param uri String
+     * @param headers NativeObject
+     * @param contentType String
+     * @param params String
+     * @return NativeObject
+     */
     public NativeObject putParam(String uri, NativeObject headers, String contentType, String params) {
-        return doPut(uri, headers, contentType, params, null);
+        return putParam(uri, headers, contentType, params, null);
     }
 
     /**
@@ -223,11 +569,54 @@ public class Ext_HttpClient extends AbstractExtensionScriptableObject { // CHECK
      * @param headers NativeObject
      * @param contentType String
      * @param params String
+     * @param options {"ConnectTimeout", "SocketTimeout", "ConnectionRequestTimeout", "Deadline"}
      * @return NativeObject
      */
     @JSFunction
+    public NativeObject put(String uri, NativeObject headers, String contentType, String params,
+            NativeObject options) {
+        return doPut(uri, headers, contentType, params, null, options);
+    }
+
+    /**
+     * put (String) without options.
+     * @param uri String
+     * @param headers NativeObject
+     * @param contentType String
+     * @param params String
+     * @return NativeObject
+     */
     public NativeObject put(String uri, NativeObject headers, String contentType, String params) {
-        return doPut(uri, headers, contentType, params, null);
+        return put(uri, headers, contentType, params, null);
+    }
+
+    /**
+     * putStream (PersoniumInputStream).
+     * The body is sent with chunked transfer encoding without being copied on the heap.
+     * @param uri String
+     * @param headers NativeObject
+     * @param contentType String
+     * @param pis PersoniumInputStream
+     * @param options {"ConnectTimeout", "SocketTimeout", "ConnectionRequestTimeout", "Deadline"}
+     * @return NativeObject
+     */
+    @JSFunction
+    public NativeObject putStream(String uri, NativeObject headers, String contentType,
+            PersoniumInputStream pis, NativeObject options) {
+        return doPut(uri, headers, contentType, null, pis, options);
+    }
+
+    /**
+     * putStream (PersoniumInputStream) without options.
+     * @param uri String
+     * @param headers NativeObject
+     * @param contentType String
+     * @param pis PersoniumInputStream
+     * @return NativeObject
+     */
+    public NativeObject putStream(String uri, NativeObject headers, String contentType,
+            PersoniumInputStream pis) {
+        return putStream(uri, headers, contentType, pis, null);
     }
 
     /**
@@ -236,33 +625,54 @@ public class Ext_HttpClient extends AbstractExtensionScriptableObject { // CHECK
      * @param headers NativeObject
      * @param contentType String
      * @param params String
+     * @param options {"ConnectTimeout", "SocketTimeout", "ConnectionRequestTimeout", "Deadline"}
      * @return NativeObject
      */
     @JSFunction
+    public NativeObject patch(String url, NativeObject headers, String contentType, String params,
+            NativeObject options) {
+        return doPatch(url, headers, contentType, params, null, options);
+    }
+
+    /**
+     * patch (String) without options.
+     * @param url String
+     * @param headers NativeObject
+     * @param contentType String
+     * @param params String
+     * @return NativeObject
+     */
     public NativeObject patch(String url, NativeObject headers, String contentType, String params) {
-        boolean respondsAsStream = false;
+        return patch(url, headers, contentType, params, null);
+    }
 
-        // Verification.
-        verifyParamIsEmpty(url, "url");
-        verifyParamIsEmpty(contentType, "contentType");
-        verifyParamIsEmpty(params, "body");
+    /**
+     * patchStream (PersoniumInputStream).
+     * The body is sent with chunked transfer encoding without being copied on the heap.
+     * @param url String
+     * @param headers NativeObject
+     * @param contentType String
+     * @param pis PersoniumInputStream
+     * @param options {"ConnectTimeout", "SocketTimeout", "ConnectionRequestTimeout", "Deadline"}
+     * @return NativeObject
+     */
+    @JSFunction
+    public NativeObject patchStream(String url, NativeObject headers, String contentType,
+            PersoniumInputStream pis, NativeObject options) {
+        return doPatch(url, headers, contentType, null, pis, options);
+    }
 
-        HttpPatch patch = new HttpPatch(url);
-        // set contentType
-        patch.addHeader("Content-Type", contentType);
-        // set headers
-        addRequestHeaders(patch, headers, contentType);
-        // set body
-        addRequestBody(patch, params);
-
-        try (CloseableHttpClient httpclient = createHttpClient()) {
-            // Request
-            HttpResponse res = httpclient.execute(patch);
-            // Response
-            return createResponseToJavascript(res, respondsAsStream);
-        } catch (IOException e) {
-            throw ExtensionErrorConstructor.construct(createErrorMessage(e));
-        }
+    /**
+     * patchStream (PersoniumInputStream) without options.
+     * @param url String
+     * @param headers NativeObject
+     * @param contentType String
+     * @param pis PersoniumInputStream
+     * @return NativeObject
+     */
+    public NativeObject patchStream(String url, NativeObject headers, String contentType,
+            PersoniumInputStream pis) {
+        return patchStream(url, headers, contentType, pis, null);
     }
 
     /**
@@ -270,96 +680,512 @@ public class Ext_HttpClient extends AbstractExtensionScriptableObject { // CHECK
      * @param url String
      * @param headers JSONObject
      * @param respondsAsStream true:stream/false:text
+     * @param options {"ConnectTimeout", "SocketTimeout", "ConnectionRequestTimeout", "Deadline"}
      * @return JSONObject
      */
     @JSFunction
-    public NativeObject delete(String url, NativeObject headers, boolean respondsAsStream) {
+    public NativeObject delete(String url, NativeObject headers, boolean respondsAsStream, NativeObject options) {
         // Verification.
         verifyParamIsEmpty(url, "url");
 
         HttpDelete delete = new HttpDelete(url);
         addRequestHeaders(delete, headers);
 
-        try (CloseableHttpClient httpclient = createHttpClient()) {
-            // Request
-            HttpResponse res = httpclient.execute(delete);
-            // Response
-            return createResponseToJavascript(res, respondsAsStream);
-        } catch (IOException e) {
-            throw ExtensionErrorConstructor.construct(createErrorMessage(e));
-        }
+        return execute(delete, respondsAsStream, options);
     }
 
     /**
-     * Post.
+     * delete without options.
      * @param url String
-     * @param headers NativeObject
-     * @param contentType String
-     * @param params String
-     * @param is PersoniumInputStream
-     * @return NativeObject
+     * @param headers JSONObject
+     * @param respondsAsStream true:stream/false:text
+     * @return JSONObject
      */
-    private NativeObject doPost(String url, NativeObject headers, String contentType,
-                              String bodyString, PersoniumInputStream pis) {
-        boolean respondsAsStream = false;
+    public NativeObject delete(String url, NativeObject headers, boolean respondsAsStream) {
+        return delete(url, headers, respondsAsStream, null);
+    }
 
+    /**
+     * getAsync.
+     * Send the request without waiting for the response.
+     * @param url String
+     * @param headers NativeObject
+     * @param respondsAsStream true:stream/false:text
+     * @return request id to pass to awaitAll
+     */
+    @JSFunction
+    public int getAsync(String url, NativeObject headers, boolean respondsAsStream) {
         // Verification.
         verifyParamIsEmpty(url, "url");
-        verifyParamIsEmpty(contentType, "contentType");
-        verifyParamIsEmpty(bodyString, "body");
 
-        HttpPost post = new HttpPost(url);
-        // set contentType
-        post.addHeader("Content-Type", contentType);
-        // set headers
-        addRequestHeaders(post, headers, contentType);
-        // set body
-        addRequestBody(post, bodyString);
-
-        try (CloseableHttpClient httpclient = createHttpClient()) {
-            // Request
-            HttpResponse res = httpclient.execute(post);
-            // Response
-            return createResponseToJavascript(res, respondsAsStream);
-        } catch (IOException e) {
-            throw ExtensionErrorConstructor.construct(createErrorMessage(e));
-        }
+        HttpGet get = new HttpGet(url);
+        addRequestHeaders(get, headers);
+
+        return executeAsync(get, respondsAsStream);
     }
 
     /**
-     * put.
+     * postAsync (String).
+     * Send the request without waiting for the response.
      * @param url String
      * @param headers NativeObject
      * @param contentType String
-     * @param bodyString String
-     * @param is PersoniumInputStream
-     * @return NativeObject
+     * @param params String
+     * @return request id to pass to awaitAll
+     */
+    @JSFunction
+    public int postAsync(String url, NativeObject headers, String contentType, String params) {
+        // Verification.
+        verifyParamIsEmpty(url, "url");
+
+        return executeAsync(prepareRequest(new HttpPost(url), headers, contentType, params, null), false);
+    }
+
+    /**
+     * putAsync (String).
+     * Send the request without waiting for the response.
+     * @param url String
+     * @param headers NativeObject
+     * @param contentType String
+     * @param params String
+     * @return request id to pass to awaitAll
+     */
+    @JSFunction
+    public int putAsync(String url, NativeObject headers, String contentType, String params) {
+        // Verification.
+        verifyParamIsEmpty(url, "url");
+
+        return executeAsync(prepareRequest(new HttpPut(url), headers, contentType, params, null), false);
+    }
+
+    /**
+     * patchAsync (String).
+     * Send the request without waiting for the response.
+     * @param url String
+     * @param headers NativeObject
+     * @param contentType String
+     * @param params String
+     * @return request id to pass to awaitAll
+     */
+    @JSFunction
+    public int patchAsync(String url, NativeObject headers, String contentType, String params) {
+        // Verification.
+        verifyParamIsEmpty(url, "url");
+
+        return executeAsync(prepareRequest(new HttpPatch(url), headers, contentType, params, null), false);
+    }
+
+    /**
+     * deleteAsync.
+     * Send the request without waiting for the response.
+     * @param url String
+     * @param headers NativeObject
+     * @param respondsAsStream true:stream/false:text
+     * @return request id to pass to awaitAll
+     */
+    @JSFunction
+    public int deleteAsync(String url, NativeObject headers, boolean respondsAsStream) {
+        // Verification.
+        verifyParamIsEmpty(url, "url");
+
+        HttpDelete delete = new HttpDelete(url);
+        addRequestHeaders(delete, headers);
+
+        return executeAsync(delete, respondsAsStream);
+    }
+
+    /**
+     * awaitAll.
+     * Wait for the responses of asynchronous requests.
+     * A failed request does not abort the others. Its element is {"error": message}.
+     * @param requestIds array of request ids returned by xxxAsync
+     * @param timeout max milliseconds to wait for all responses. 0: no limit
+     * @return array of responses in the order of requestIds
+     */
+    @JSFunction
+    public Scriptable awaitAll(NativeArray requestIds, int timeout) {
+        if (requestIds == null) {
+            String message = "Parameter [requestIds] is not set.";
+            this.getLogger().info(message);
+            throw ExtensionErrorConstructor.construct(message);
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        Object[] results = new Object[(int) requestIds.getLength()];
+        for (int i = 0; i < results.length; i++) {
+            int requestId = (int) Context.toNumber(requestIds.get(i, requestIds));
+            PendingRequest pending = pendingRequests.remove(requestId);
+            if (pending == null) {
+                results[i] = createErrorToJavascript(String.format("Request [%d] is not pending.", requestId));
+                continue;
+            }
+            try {
+                HttpResponse res;
+                if (timeout > 0) {
+                    res = pending.future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                } else {
+                    res = pending.future.get();
+                }
+                results[i] = createResponseToJavascript(res, pending.respondsAsStream);
+            } catch (TimeoutException e) {
+                pending.future.cancel(true);
+                results[i] = createErrorToJavascript(createErrorMessage(e));
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                results[i] = createErrorToJavascript(createErrorMessage(
+                        cause instanceof Exception ? (Exception) cause : e));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw ExtensionErrorConstructor.construct(createErrorMessage(e));
+            }
+        }
+        return createArrayToJavascript(results);
+    }
+
+    /**
+     * batch.
+     * Execute many requests in one call with bounded parallelism.
+     * A failed request does not abort the others. Its element is {"error": message}.
+     * @param requests array of {"method", "url", "headers", "contentType", "body", "respondsAsStream"}
+     * @param options {"Concurrency": max requests in flight, "Deadline": max milliseconds for the whole batch}
+     * @return array of responses in the order of requests
+     */
+    @JSFunction
+    public Scriptable batch(NativeArray requests, NativeObject options) {
+        if (requests == null) {
+            String message = "Parameter [requests] is not set.";
+            this.getLogger().info(message);
+            throw ExtensionErrorConstructor.construct(message);
+        }
+        int concurrency = getIntOption(options, KEY_CONCURRENCY,
+                ClientConfig.getInt(getProperties(), PROP_BATCH_CONCURRENCY, DEFAULT_BATCH_CONCURRENCY));
+        int deadline = getIntOption(options, KEY_DEADLINE, 0);
+
+        int size = (int) requests.getLength();
+        HttpRequestBase[] httpRequests = new HttpRequestBase[size];
+        boolean[] respondsAsStream = new boolean[size];
+        String[] errors = new String[size];
+        for (int i = 0; i < size; i++) {
+            try {
+                Object descriptor = requests.get(i, requests);
+                httpRequests[i] = createRequest(descriptor);
+                applyTimeouts(httpRequests[i], null);
+                getCompression(null).apply(httpRequests[i]);
+                respondsAsStream[i] = Boolean.TRUE.equals(((NativeObject) descriptor).get("respondsAsStream"));
+            } catch (EcmaError e) {
+                errors[i] = e.getErrorMessage();
+            } catch (RuntimeException e) {
+                errors[i] = createErrorMessage(e);
+            }
+        }
+
+        Object[] outcomes;
+        try {
+            outcomes = BatchRunner.run(getHttpClient(), IoExecutors.get(getProperties()), getProperties(),
+                    getRetryPolicy(null), httpRequests, respondsAsStream, concurrency, deadline);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw ExtensionErrorConstructor.construct(createErrorMessage(e));
+        }
+
+        Object[] results = new Object[size];
+        for (int i = 0; i < size; i++) {
+            if (errors[i] != null) {
+                results[i] = createErrorToJavascript(errors[i]);
+            } else if (outcomes[i] instanceof HttpResponse) {
+                results[i] = createResponseToJavascript((HttpResponse) outcomes[i], respondsAsStream[i]);
+            } else {
+                results[i] = createErrorToJavascript(createErrorMessage((Exception) outcomes[i]));
+            }
+        }
+        return createArrayToJavascript(results);
+    }
+
+    /**
+     * Create request from the request descriptor of batch.
+     * @param descriptor {"method", "url", "headers", "contentType", "body"}
+     * @return request
+     */
+    private HttpRequestBase createRequest(Object descriptor) {
+        if (!(descriptor instanceof NativeObject)) {
+            String message = "Request is not NativeObject.";
+            this.getLogger().info(message);
+            throw ExtensionErrorConstructor.construct(message);
+        }
+        NativeObject request = (NativeObject) descriptor;
+        String method = getStringOption(request, "method");
+        String url = getStringOption(request, "url");
+        Object headers = request.get("headers");
+        NativeObject headersObject = headers instanceof NativeObject ? (NativeObject) headers : new NativeObject();
+        String contentType = getStringOption(request, "contentType");
+        Object body = request.get("body");
+        PersoniumInputStream pis = body instanceof PersoniumInputStream ? (PersoniumInputStream) body : null;
+        String bodyString = body == null || pis != null ? null : Context.toString(body);
+
+        // Verification.
+        verifyParamIsEmpty(url, "url");
+        try {
+            URI.create(url);
+        } catch (IllegalArgumentException e) {
+            String message = String.format("Parameter [url] is not a valid URI. Cause: [%s]", e.getMessage());
+            this.getLogger().info(message);
+            throw ExtensionErrorConstructor.construct(message);
+        }
+
+        String methodName = method == null ? HttpGet.METHOD_NAME : method.toUpperCase(Locale.ENGLISH);
+        switch (methodName) {
+        case HttpGet.METHOD_NAME:
+            return addRequestHeaders(new HttpGet(url), headersObject);
+        case HttpDelete.METHOD_NAME:
+            return addRequestHeaders(new HttpDelete(url), headersObject);
+        case HttpPost.METHOD_NAME:
+            return prepareRequest(new HttpPost(url), headersObject, contentType, bodyString, pis);
+        case HttpPut.METHOD_NAME:
+            return prepareRequest(new HttpPut(url), headersObject, contentType, bodyString, pis);
+        case HttpPatch.METHOD_NAME:
+            return prepareRequest(new HttpPatch(url), headersObject, contentType, bodyString, pis);
+        default:
+            String message = String.format("Method [%s] is not supported.", method);
+            this.getLogger().info(message);
+            throw ExtensionErrorConstructor.construct(message);
+        }
+    }
+
+    /**
+     * Return the string value of the option.
+     * @param options options
+     * @param key key
+     * @return value, or null if not set
+     */
+    private String getStringOption(NativeObject options, String key) {
+        Object value = options.get(key);
+        if (value == null || value instanceof Undefined) {
+            return null;
+        }
+        return Context.toString(value);
+    }
+
+    /**
+     * Return the integer value of the option.
+     * @param options options
+     * @param key key
+     * @param defaultValue default value
+     * @return value
+     */
+    private int getIntOption(NativeObject options, String key, int defaultValue) {
+        Object value = options == null ? null : options.get(key);
+        if (value == null || value instanceof Undefined) {
+            return defaultValue;
+        }
+        if (!(value instanceof Number) || ((Number) value).intValue() < 0) {
+            String message = String.format("Parameter [%s] is not non-negative Number.", key);
+            this.getLogger().info(message);
+            throw ExtensionErrorConstructor.construct(message);
+        }
+        return ((Number) value).intValue();
+    }
+
+    /**
+     * Read the timeouts from the options.
+     * @param options options, or null
+     * @return timeouts. Values not set are Timeouts.UNSET
+     */
+    private Timeouts readTimeouts(NativeObject options) {
+        if (options == null) {
+            return Timeouts.NONE;
+        }
+        return new Timeouts(getIntOption(options, KEY_CONNECT_TIMEOUT, Timeouts.UNSET),
+                getIntOption(options, KEY_SOCKET_TIMEOUT, Timeouts.UNSET),
+                getIntOption(options, KEY_CONNECTION_REQUEST_TIMEOUT, Timeouts.UNSET),
+                getIntOption(options, KEY_DEADLINE, Timeouts.UNSET));
+    }
+
+    /**
+     * Return the retry policy of the call.
+     * @param options per-call options, or null
+     * @return retry policy
+     */
+    private RetryPolicy getRetryPolicy(NativeObject options) {
+        if (retryPolicy == null) {
+            retryPolicy = RetryPolicy.create(getProperties());
+        }
+        return readRetryPolicy(options, retryPolicy);
+    }
+
+    /**
+     * Read the retry policy from the "Retry" option.
+     * @param options options, or null
+     * @param base policy whose values are used for keys not set
+     * @return retry policy
+     */
+    private RetryPolicy readRetryPolicy(NativeObject options, RetryPolicy base) {
+        Object argParam = options == null ? null : options.get(KEY_RETRY);
+        if (argParam == null || argParam instanceof Undefined) {
+            return base;
+        }
+        if (!(argParam instanceof NativeObject)) {
+            String message = String.format("Parameter [%s] is not NativeObject.", KEY_RETRY);
+            this.getLogger().info(message);
+            throw ExtensionErrorConstructor.construct(message);
+        }
+        NativeObject retry = (NativeObject) argParam;
+        int[] statusCodes = base.getStatusCodes();
+        Object codes = retry.get(KEY_STATUS_CODES);
+        if (codes != null && !(codes instanceof Undefined)) {
+            if (!(codes instanceof NativeArray)) {
+                String message = String.format("Parameter [%s] is not Array.", KEY_STATUS_CODES);
+                this.getLogger().info(message);
+                throw ExtensionErrorConstructor.construct(message);
+            }
+            NativeArray array = (NativeArray) codes;
+            statusCodes = new int[(int) array.getLength()];
+            for (int i = 0; i < statusCodes.length; i++) {
+                statusCodes[i] = (int) Context.toNumber(array.get(i, array));
+            }
+        }
+        Object nonIdempotent = retry.get(KEY_RETRY_NON_IDEMPOTENT);
+        if (nonIdempotent != null && !(nonIdempotent instanceof Boolean)) {
+            String message = String.format("Parameter [%s] is not Boolean.", KEY_RETRY_NON_IDEMPOTENT);
+            this.getLogger().info(message);
+            throw ExtensionErrorConstructor.construct(message);
+        }
+        return new RetryPolicy(getIntOption(retry, KEY_MAX_ATTEMPTS, base.getMaxAttempts()),
+                getIntOption(retry, KEY_INITIAL_BACKOFF, (int) base.getInitialBackoff()),
+                getIntOption(retry, KEY_MAX_BACKOFF, (int) base.getMaxBackoff()),
+                statusCodes,
+                nonIdempotent == null ? base.isRetryNonIdempotent() : (Boolean) nonIdempotent);
+    }
+
+    /**
+     * Set the timeouts to the request.
+     * @param request http request method object
+     * @param options per-call options, or null
+     * @return effective timeouts
+     */
+    private Timeouts applyTimeouts(HttpRequestBase request, NativeObject options) {
+        if (baseTimeouts == null) {
+            baseTimeouts = Timeouts.create(getProperties()).merge(timeouts);
+        }
+        Timeouts effective = baseTimeouts.merge(readTimeouts(options));
+        request.setConfig(effective.toRequestConfig());
+        return effective;
+    }
+
+    /**
+     * Read the compression from the options.
+     * @param options options, or null
+     * @return compression
+     */
+    private Compression readCompression(NativeObject options) {
+        if (options == null) {
+            return Compression.NONE;
+        }
+        Object acceptEncoding = options.get(KEY_ACCEPT_ENCODING);
+        if (acceptEncoding instanceof Undefined) {
+            acceptEncoding = null;
+        }
+        if (acceptEncoding != null && !(acceptEncoding instanceof String)) {
+            String message = String.format("Parameter [%s] is not String.", KEY_ACCEPT_ENCODING);
+            this.getLogger().info(message);
+            throw ExtensionErrorConstructor.construct(message);
+        }
+        return new Compression((String) acceptEncoding,
+                getIntOption(options, KEY_REQUEST_COMPRESSION_THRESHOLD, Compression.UNSET));
+    }
+
+    /**
+     * Return the compression of the call.
+     * @param options per-call options, or null
+     * @return compression
+     */
+    private Compression getCompression(NativeObject options) {
+        if (baseCompression == null) {
+            baseCompression = Compression.create(getProperties()).merge(compression);
+        }
+        return baseCompression.merge(readCompression(options));
+    }
+
+    /**
+     * Post.
+     * @param url String
+     * @param headers NativeObject
+     * @param contentType String
+     * @param bodyString String
+     * @param pis PersoniumInputStream
+     * @param options per-call options
+     * @return NativeObject
+     */
+    private NativeObject doPost(String url, NativeObject headers, String contentType,
+                              String bodyString, PersoniumInputStream pis, NativeObject options) {
+        // Verification.
+        verifyParamIsEmpty(url, "url");
+
+        return execute(prepareRequest(new HttpPost(url), headers, contentType, bodyString, pis), false, options);
+    }
+
+    /**
+     * put.
+     * @param url String
+     * @param headers NativeObject
+     * @param contentType String
+     * @param bodyString String
+     * @param pis PersoniumInputStream
+     * @param options per-call options
+     * @return NativeObject
      */
     private NativeObject doPut(String url, NativeObject headers, String contentType,
-                              String bodyString, PersoniumInputStream pis) {
-        boolean respondsAsStream = false;
+                              String bodyString, PersoniumInputStream pis, NativeObject options) {
+        // Verification.
+        verifyParamIsEmpty(url, "url");
+
+        return execute(prepareRequest(new HttpPut(url), headers, contentType, bodyString, pis), false, options);
+    }
 
+    /**
+     * patch.
+     * @param url String
+     * @param headers NativeObject
+     * @param contentType String
+     * @param bodyString String
+     * @param pis PersoniumInputStream
+     * @param options per-call options
+     * @return NativeObject
+     */
+    private NativeObject doPatch(String url, NativeObject headers, String contentType,
+                              String bodyString, PersoniumInputStream pis, NativeObject options) {
         // Verification.
         verifyParamIsEmpty(url, "url");
+
+        return execute(prepareRequest(new HttpPatch(url), headers, contentType, bodyString, pis), false, options);
+    }
+
+    /**
+     * Prepare request with body.
+     * @param request http request method object
+     * @param headers NativeObject
+     * @param contentType String
+     * @param bodyString String, used if pis is null
+     * @param pis PersoniumInputStream
+     * @return Request with headers and body added
+     */
+    private HttpRequestBase prepareRequest(HttpEntityEnclosingRequestBase request, NativeObject headers,
+                              String contentType, String bodyString, PersoniumInputStream pis) {
+        // Verification.
         verifyParamIsEmpty(contentType, "contentType");
-        verifyParamIsEmpty(bodyString, "body");
+        if (pis == null) {
+            verifyParamIsEmpty(bodyString, "body");
+        }
 
-        HttpPut put = new HttpPut(url);
         // set contentType
-        put.addHeader("Content-Type", contentType);
+        request.addHeader("Content-Type", contentType);
         // set headers
-        addRequestHeaders(put, headers, contentType);
+        addRequestHeaders(request, headers, contentType);
         // set body
-        addRequestBody(put, bodyString);
-
-        try (CloseableHttpClient httpclient = createHttpClient()) {
-            // Request
-            HttpResponse res = httpclient.execute(put);
-            // Response
-            return createResponseToJavascript(res, respondsAsStream);
-        } catch (IOException e) {
-            throw ExtensionErrorConstructor.construct(createErrorMessage(e));
+        if (pis == null) {
+            addRequestBody(request, bodyString);
+        } else {
+            addRequestBody(request, pis);
         }
+        return request;
     }
 
     /**
@@ -393,24 +1219,24 @@ public class Ext_HttpClient extends AbstractExtensionScriptableObject { // CHECK
      * @param contentType
      * @return Request with header added
      */
-    private HttpRequestBase addRequestHeaders(HttpRequestBase request, NativeObject headers, String contentType) {
-        // Set default headers.
-        if (defaultHeaders != null) {
-            for (@SuppressWarnings("rawtypes") Iterator iterator = defaultHeaders.keySet().iterator();
-                    iterator.hasNext();) {
-                String key = (String) iterator.next();
-                if (key.equals("Content-Type") && contentType != null) {
-                    continue;
-                }
-                if (headers.get(key) == null) {
-                    headers.put(key, headers, (String) defaultHeaders.get(key));
+    HttpRequestBase addRequestHeaders(HttpRequestBase request, NativeObject headers, String contentType) {
+        // Set request headers. The object of the script is not modified.
+        boolean hasHeaders = headers != null && !headers.isEmpty();
+        if (hasHeaders) {
+            for (Object id : headers.getIds()) {
+                Object value = getProperty(headers, id);
+                if (value != null) {
+                    request.addHeader(id.toString(), value.toString());
                 }
             }
         }
-        // Set request headers.
-        if (headers != null) {
-            for (Entry<Object, Object> e : headers.entrySet()) {
-                request.addHeader(e.getKey().toString(), e.getValue().toString());
+        // Set default headers not set by the call.
+        for (Header header : defaultHeaders) {
+            if (contentType != null && HTTP.CONTENT_TYPE.equalsIgnoreCase(header.getName())) {
+                continue;
+            }
+            if (!hasHeaders || !request.containsHeader(header.getName())) {
+                request.addHeader(header);
             }
         }
         if (log.isDebugEnabled()) {
@@ -421,6 +1247,18 @@ public class Ext_HttpClient extends AbstractExtensionScriptableObject { // CHECK
         return request;
     }
 
+    /**
+     * Return the property of the object.
+     * @param object object
+     * @param id property id. String or Integer
+     * @return value, or null if not found
+     */
+    private static Object getProperty(NativeObject object, Object id) {
+        Object value = id instanceof Integer
+                ? object.get((Integer) id, object) : object.get(id.toString(), object);
+        return value == Scriptable.NOT_FOUND ? null : value;
+    }
+
     /**
      * Add http request body.
      * @param request http request method object
@@ -438,47 +1276,146 @@ public class Ext_HttpClient extends AbstractExtensionScriptableObject { // CHECK
     }
 
     /**
-     * Create response from HttpResponse to javascript.
-     * @param res http response
-     * @param respondsAsStream Flag as to whether body is returned as stream
-     * @return response to javascript
+     * Add http request body.
+     * The stream is sent as is with chunked transfer encoding.
+     * @param request http request method object
+     * @param pis http body stream
+     * @return Request with body added
      */
-    @SuppressWarnings("unchecked")
-    private NativeObject createResponseToJavascript(HttpResponse res, boolean respondsAsStream) {
-        // Retrieve the status.
-        int resStatus = res.getStatusLine().getStatusCode();
-        if (log.isDebugEnabled()) {
-            log.debug("status:" + resStatus);
+    private HttpRequestBase addRequestBody(HttpEntityEnclosingRequestBase request, PersoniumInputStream pis) {
+        request.setEntity(new InputStreamEntity(pis, -1));
+        return request;
+    }
+
+    /**
+     * Convert the paths argument of getJson.
+     * @param paths array of strings, a string, or null
+     * @return paths, or null to select the whole body
+     */
+    private String[] toPaths(Object paths) {
+        if (paths == null || paths instanceof Undefined) {
+            return null;
         }
+        if (paths instanceof NativeArray) {
+            NativeArray array = (NativeArray) paths;
+            String[] result = new String[(int) array.getLength()];
+            for (int i = 0; i < result.length; i++) {
+                Object path = array.get(i, array);
+                if (!(path instanceof CharSequence)) {
+                    throw ExtensionErrorConstructor.construct("Paths must be strings.");
+                }
+                result[i] = path.toString();
+            }
+            return result;
+        }
+        if (paths instanceof CharSequence) {
+            return new String[] {paths.toString()};
+        }
+        throw ExtensionErrorConstructor.construct("Paths must be an array of strings.");
+    }
 
-        // Retrieve the response headers.
-        JSONObject resHeaders = new JSONObject();
-        for (Header header : res.getAllHeaders()) {
-            resHeaders.put(header.getName(), header.getValue());
+    /**
+     * Add multipart/form-data body.
+     * The entity writes the parts in order when the request is sent, reading stream parts as it goes.
+     * @param request http request method object
+     * @param parts NativeArray of {"name", "body", "contentType", "fileName"}
+     * @return Request with body added
+     */
+    private HttpRequestBase addMultipartBody(HttpEntityEnclosingRequestBase request, NativeArray parts) {
+        // Part headers such as file names are written in UTF-8.
+        MultipartEntityBuilder builder = MultipartEntityBuilder.create().setMode(HttpMultipartMode.RFC6532);
+        for (int i = 0; i < parts.getLength(); i++) {
+            Object element = parts.get(i, parts);
+            if (!(element instanceof NativeObject)) {
+                throw createPartError(i, "is not an object");
+            }
+            NativeObject part = (NativeObject) element;
+            String name = getStringOption(part, "name");
+            if (TextUtils.isEmpty(name)) {
+                throw createPartError(i, "has no name");
+            }
+            Object body = part.get("body");
+            if (body instanceof Wrapper) {
+                body = ((Wrapper) body).unwrap();
+            }
+            String contentType = getStringOption(part, "contentType");
+            try {
+                if (body instanceof InputStream) {
+                    String fileName = getStringOption(part, "fileName");
+                    builder.addPart(name, new InputStreamBody((InputStream) body,
+                            contentType == null ? ContentType.APPLICATION_OCTET_STREAM : ContentType.parse(contentType),
+                            fileName == null ? name : fileName));
+                } else if (body instanceof CharSequence) {
+                    ContentType type = contentType == null
+                            ? ContentType.create("text/plain") : ContentType.parse(contentType);
+                    if (type.getCharset() == null) {
+                        type = type.withCharset(StandardCharsets.UTF_8);
+                    }
+                    builder.addPart(name, new StringBody(body.toString(), type));
+                } else {
+                    throw createPartError(i, "has no body of String or PersoniumInputStream");
+                }
+            } catch (ParseException | UnsupportedCharsetException e) {
+                throw createPartError(i, "has an invalid contentType");
+            }
         }
+        request.setEntity(builder.build());
+        return request;
+    }
 
-        // Set NativeObject.
-        NativeObject result = new NativeObject();
-        result.put("status", result, Integer.toString(resStatus));
-        result.put("headers", result, resHeaders.toString());
+    /**
+     * Create the error of an invalid part of postMultipart.
+     * @param index index of the part
+     * @param reason reason
+     * @return error
+     */
+    private EcmaError createPartError(int index, String reason) {
+        String message = String.format("Part [%d] of parameter [parts] %s.", index, reason);
+        this.getLogger().info(message);
+        return ExtensionErrorConstructor.construct(message);
+    }
 
+    /**
+     * Create response from HttpResponse to javascript.
+     * @param res http response
+     * @param respondsAsStream Flag as to whether body is returned as stream
+     * @return response to javascript
+     */
+    NativeObject createResponseToJavascript(HttpResponse res, boolean respondsAsStream) {
+        // Set NativeObject.
         HttpEntity entity = res.getEntity();
+        NativeObject result = entity != null && !respondsAsStream ? new LazyBodyResponse() : new NativeObject();
+        putStatusAndHeaders(result, res);
+
         if (entity != null) {
             if (respondsAsStream) {
                 try {
                     // InputStream > PersoniumInputStream.
-                    InputStream is = new BufferedHttpEntity(res.getEntity()).getContent();
-                    PersoniumInputStream pis = new PersoniumInputStream((InputStream) is);
-                    result.put("body", result, (PersoniumInputStream) pis);
+                    // The content is not buffered. The connection is released when the script
+                    // closes or drains the stream, or at the latest when the script ends.
+                    InputStream is = entity.getContent();
+                    PersoniumInputStream pis = new PersoniumInputStream(is);
+                    if (res instanceof Closeable) {
+                        ScriptResources.register(pis, (Closeable) res);
+                    }
+                    result.put("body", result, pis);
                 } catch (IOException e) {
-                    throw ExtensionErrorConstructor.construct(createErrorMessage(e));
+                    throw createError(e);
                 }
             } else {
                 try {
-                    // String.
-                    result.put("body", result, EntityUtils.toString(entity, "UTF-8"));
-                } catch (ParseException | IOException e) {
+                    // String. Decoded when the script reads it, with the charset of Content-Type or UTF-8.
+                    Charset charset = getCharset(entity);
+                    byte[] bytes = EntityUtils.toByteArray(entity);
+                    if (bytes == null) {
+                        result.put("body", result, null);
+                    } else {
+                        ((LazyBodyResponse) result).setBody(bytes, charset);
+                    }
+                } catch (ParseException e) {
                     throw ExtensionErrorConstructor.construct(createErrorMessage(e));
+                } catch (IOException e) {
+                    throw createError(e);
                 }
             }
         }
@@ -486,46 +1423,267 @@ public class Ext_HttpClient extends AbstractExtensionScriptableObject { // CHECK
     }
 
     /**
-     * Create and return instance of HttpClient.
-     * @return HttpClient
+     * Create response from HttpResponse to javascript, with the body parsed as JSON.
+     * The body is parsed as it is read from the connection and only the selected paths are built.
+     * A body that is not JSON is an error for 2xx responses, and null for others.
+     * @param res http response
+     * @param paths paths to select. null selects the whole body
+     * @return response to javascript
      */
-    private CloseableHttpClient createHttpClient() {
-        HttpClientBuilder builder = HttpClients.custom();
+    private NativeObject createJsonResponseToJavascript(HttpResponse res, String[] paths) {
+        NativeObject result = new NativeObject();
+        putStatusAndHeaders(result, res);
 
-        // SSL verify settings.
-        if (ignoreHostnameVerification) {
-            try {
-                builder.setSSLContext(createSkipSSLVerifyContext());
-            } catch (GeneralSecurityException e) {
-                throw ExtensionErrorConstructor.construct(createErrorMessage(e));
+        Object body = null;
+        HttpEntity entity = res.getEntity();
+        if (entity != null) {
+            try (InputStream is = entity.getContent();
+                    Reader reader = new InputStreamReader(is, getCharset(entity))) {
+                body = new JsonProjection(paths, getParentScope()).parse(reader);
+            } catch (ParseException | org.json.simple.parser.ParseException e) {
+                // Error responses often have an HTML or text body. The script still gets their status.
+                int status = res.getStatusLine().getStatusCode();
+                String message = "Response body is not JSON.";
+                if (status >= HttpStatus.SC_OK && status < HttpStatus.SC_MULTIPLE_CHOICES) {
+                    this.getLogger().info(message, e);
+                    throw ExtensionErrorConstructor.construct(String.format("%s Cause: [%s: %s]",
+                            message, e.getClass().getName(), e.getMessage()));
+                }
+                this.getLogger().debug(message + " Status: " + status, e);
+            } catch (IOException e) {
+                throw createError(e);
             }
         }
+        result.put("body", result, body);
+        return result;
+    }
 
-        // Proxy settings.
-        builder.useSystemProperties();
+    /**
+     * Put the status and the headers of the response.
+     * @param result response to javascript
+     * @param res http response
+     */
+    @SuppressWarnings("unchecked")
+    private void putStatusAndHeaders(NativeObject result, HttpResponse res) {
+        // Retrieve the status.
+        int resStatus = res.getStatusLine().getStatusCode();
+        if (log.isDebugEnabled()) {
+            log.debug("status:" + resStatus);
+        }
+        result.put("status", result, Integer.toString(resStatus));
+        if (nativeHeaders) {
+            // Built when the script reads it.
+            result.put("headers", result, new ResponseHeaders(res.getAllHeaders(), getParentScope()));
+        } else {
+            // Retrieve the response headers.
+            JSONObject resHeaders = new JSONObject();
+            for (Header header : res.getAllHeaders()) {
+                resHeaders.put(header.getName(), header.getValue());
+            }
+            result.put("headers", result, resHeaders.toString());
+        }
+    }
 
-        return builder.build();
+    /**
+     * Return the charset of the entity.
+     * @param entity entity
+     * @return charset of Content-Type, or UTF-8 if not set or not supported
+     * @throws ParseException invalid Content-Type
+     */
+    private static Charset getCharset(HttpEntity entity) {
+        Charset charset = null;
+        try {
+            ContentType contentType = ContentType.get(entity);
+            charset = contentType != null ? contentType.getCharset() : null;
+        } catch (UnsupportedCharsetException e) {
+            log.debug("Unsupported charset. Decoded as UTF-8.", e);
+        }
+        return charset != null ? charset : StandardCharsets.UTF_8;
+    }
+
+    /**
+     * Create error element of the response array to javascript.
+     * @param message error message
+     * @return error to javascript
+     */
+    private NativeObject createErrorToJavascript(String message) {
+        NativeObject result = new NativeObject();
+        result.put("error", result, message);
+        return result;
+    }
+
+    /**
+     * Create array to javascript.
+     * The array gets the Array prototype when called from a script.
+     * @param elements elements
+     * @return array to javascript
+     */
+    private Scriptable createArrayToJavascript(Object[] elements) {
+        Context cx = Context.getCurrentContext();
+        Scriptable scope = getParentScope();
+        if (cx != null && scope != null) {
+            return cx.newArray(ScriptableObject.getTopLevelScope(scope), elements);
+        }
+        return new NativeArray(elements);
+    }
+
+    /**
+     * Execute the request with the shared HttpClient.
+     * When the deadline passes, the request is aborted. A streamed body is not subject to the deadline
+     * once the response is returned.
+     * @param request http request method object
+     * @param respondsAsStream Flag as to whether body is returned as stream
+     * @param options per-call options, or null
+     * @return response to javascript
+     */
+    private NativeObject execute(HttpRequestBase request, boolean respondsAsStream, NativeObject options) {
+        return execute(request, respondsAsStream, options, res -> createResponseToJavascript(res, respondsAsStream));
     }
 
     /**
-     * Create and return the SSLContext that skips ssl verification.
-     * @return SSL context.
-     * @throws GeneralSecurityException security error
+     * Execute the request with the shared HttpClient.
+     * @param request http request method object
+     * @param respondsAsStream Flag as to whether body is returned as stream
+     * @param options per-call options, or null
+     * @param converter creates the response to javascript
+     * @return response to javascript
      */
-    @SuppressWarnings("PMD.ReturnEmptyArrayRatherThanNull")
-    private SSLContext createSkipSSLVerifyContext() throws GeneralSecurityException {
-        SSLContext sslContext = SSLContext.getInstance("TLSv1.2");
-        TrustManager tm = new X509TrustManager() {
-            public void checkClientTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+    private NativeObject execute(HttpRequestBase request, boolean respondsAsStream, NativeObject options,
+            Function<HttpResponse, NativeObject> converter) {
+        CloseableHttpClient httpclient = getHttpClient();
+        int deadline = applyTimeouts(request, options).getDeadline();
+        getCompression(options).apply(request);
+        RetryPolicy policy = getRetryPolicy(options);
+        AtomicBoolean expired = new AtomicBoolean();
+        ScheduledFuture<?> timer = null;
+        long deadlineNanos = 0;
+        if (deadline > 0) {
+            deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(deadline);
+            timer = IoExecutors.scheduler().schedule(() -> {
+                expired.set(true);
+                request.abort();
+            }, deadline, TimeUnit.MILLISECONDS);
+        }
+        try {
+            CloseableHttpResponse res;
+            try {
+                // Request
+                if (coalesce && !respondsAsStream && HttpGet.METHOD_NAME.equals(request.getMethod())) {
+                    long until = deadlineNanos;
+                    res = SingleFlight.execute(SingleFlight.key(httpclient, request, varyHeaders),
+                            () -> RequestExecutor.execute(httpclient, request, getProperties(), policy, until),
+                            deadlineNanos);
+                } else {
+                    res = RequestExecutor.execute(httpclient, request, getProperties(), policy, deadlineNanos);
+                }
+            } catch (IOException e) {
+                if (expired.get()) {
+                    throw createDeadlineError();
+                }
+                throw createError(e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw ExtensionErrorConstructor.construct(createErrorMessage(e));
             }
-            public void checkServerTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+            // Closing the response returns the connection to the pool.
+            // A streamed body keeps the connection until the stream is closed.
+            boolean streaming = respondsAsStream && res.getEntity() != null;
+            try {
+                // Response
+                return converter.apply(res);
+            } catch (RuntimeException e) {
+                streaming = false;
+                if (expired.get()) {
+                    throw createDeadlineError();
+                }
+                throw e;
+            } finally {
+                if (!streaming) {
+                    ScriptResources.closeQuietly(res);
+                }
             }
-            public X509Certificate[] getAcceptedIssuers() {
-                return null;
+        } finally {
+            if (timer != null) {
+                timer.cancel(false);
             }
-        };
-        sslContext.init(null, new TrustManager[] {tm}, null);
-        return sslContext;
+        }
+    }
+
+    /**
+     * Execute the request with the shared HttpAsyncClient.
+     * The response body is buffered by the client, so no connection is held after completion.
+     * @param request http request method object
+     * @param respondsAsStream Flag as to whether body is returned as stream
+     * @return request id
+     */
+    private int executeAsync(HttpRequestBase request, boolean respondsAsStream) {
+        CloseableHttpAsyncClient httpclient;
+        try {
+            if (asyncClientConfig == null) {
+                // The response cache is not supported for asynchronous requests.
+                asyncClientConfig = ClientConfig.create(ignoreHostnameVerification, false, false, getProperties());
+            }
+            httpclient = HttpClientRegistry.getAsyncClient(asyncClientConfig);
+        } catch (GeneralSecurityException | IOException e) {
+            throw ExtensionErrorConstructor.construct(createErrorMessage(e));
+        }
+        applyTimeouts(request, null);
+        // HttpAsyncClient does not decompress responses.
+        getCompression(null).compressBody(request);
+        Future<HttpResponse> future;
+        try {
+            HostGuard.Permit permit = HostGuard.get(request, getProperties()).acquire();
+            MetricsRecorder recorder = Metrics.recorder();
+            String host = recorder == MetricsRecorder.NOOP ? null : Metrics.hostKey(request.getURI());
+            future = httpclient.execute(request, new FutureCallback<HttpResponse>() {
+                @Override
+                public void completed(HttpResponse res) {
+                    permit.release(res);
+                    if (host != null) {
+                        recorder.recordRequest(host, request.getMethod(), res.getStatusLine().getStatusCode());
+                    }
+                }
+
+                @Override
+                public void failed(Exception e) {
+                    permit.release(false);
+                    if (host != null) {
+                        recorder.recordError(host, request.getMethod(), e);
+                    }
+                }
+
+                @Override
+                public void cancelled() {
+                    permit.cancel();
+                }
+            });
+        } catch (HostUnavailableException e) {
+            // Reported by awaitAll like other failures.
+            CompletableFuture<HttpResponse> rejected = new CompletableFuture<>();
+            rejected.completeExceptionally(e);
+            future = rejected;
+        }
+        // Requests that are not awaited are cancelled when the script ends.
+        Future<HttpResponse> pending = future;
+        ScriptResources.register(this, () -> pending.cancel(true));
+        int requestId = ++lastRequestId;
+        pendingRequests.put(requestId, new PendingRequest(pending, respondsAsStream));
+        return requestId;
+    }
+
+    /**
+     * Return the shared instance of HttpClient for the current settings.
+     * @return HttpClient
+     */
+    private CloseableHttpClient getHttpClient() {
+        try {
+            if (clientConfig == null) {
+                clientConfig = ClientConfig.create(ignoreHostnameVerification, cache, http2, getProperties());
+            }
+            return HttpClientRegistry.getClient(clientConfig);
+        } catch (GeneralSecurityException e) {
+            throw ExtensionErrorConstructor.construct(createErrorMessage(e));
+        }
     }
 
     /**
@@ -534,8 +1692,86 @@ public class Ext_HttpClient extends AbstractExtensionScriptableObject { // CHECK
      * @return Error message
      */
     private String createErrorMessage(Exception e) {
+        if (isTimeout(e)) {
+            return createTimeoutMessage(e);
+        }
         String message = "An error occurred.";
         this.getLogger().warn(message, e);
         return String.format("%s Cause: [%s: %s]", message, e.getClass().getName(), e.getMessage());
     }
+
+    /**
+     * Create and return error message of timeout.
+     * @param e error
+     * @return Error message
+     */
+    private String createTimeoutMessage(Exception e) {
+        String message = "Request timed out.";
+        this.getLogger().info(message, e);
+        return String.format("%s Cause: [%s: %s]", message, e.getClass().getName(), e.getMessage());
+    }
+
+    /**
+     * Whether the error is a timeout: connect, socket read, pool lease or deadline.
+     * @param e error
+     * @return true if timeout
+     */
+    private static boolean isTimeout(Exception e) {
+        // ConnectionPoolTimeoutException is a ConnectTimeoutException.
+        return e instanceof ConnectTimeoutException || e instanceof SocketTimeoutException
+                || e instanceof TimeoutException;
+    }
+
+    /**
+     * Create the error to throw to javascript.
+     * @param e error
+     * @return TimeoutError for timeouts, Error for others
+     */
+    private RuntimeException createError(IOException e) {
+        if (isTimeout(e)) {
+            return createTimeoutError(createTimeoutMessage(e));
+        }
+        return ExtensionErrorConstructor.construct(createErrorMessage(e));
+    }
+
+    /**
+     * Create the error thrown to javascript when the deadline of a request passes.
+     * @return error
+     */
+    private JavaScriptException createDeadlineError() {
+        return createTimeoutError(createTimeoutMessage(new TimeoutException("Request deadline exceeded.")));
+    }
+
+    /**
+     * Create the error thrown to javascript when a request times out.
+     * Scripts can tell it from other errors by e.name === "TimeoutError".
+     * @param message error message
+     * @return error
+     */
+    private JavaScriptException createTimeoutError(String message) {
+        Context cx = Context.getCurrentContext();
+        Scriptable scope = getParentScope();
+        Scriptable error;
+        if (cx != null && scope != null) {
+            error = cx.newObject(ScriptableObject.getTopLevelScope(scope), "Error", new Object[] {message});
+        } else {
+            error = new NativeObject();
+            error.put("message", error, message);
+        }
+        error.put("name", error, TIMEOUT_ERROR_NAME);
+        return new JavaScriptException(error, null, 0);
+    }
+
+    /**
+     * Asynchronous request waiting for awaitAll.
+     */
+    private static final class PendingRequest {
+        private final Future<HttpResponse> future;
+        private final boolean respondsAsStream;
+
+        PendingRequest(Future<HttpResponse> future, boolean respondsAsStream) {
+            this.future = future;
+            this.respondsAsStream = respondsAsStream;
+        }
+    }
 }
@@ -0,0 +1,353 @@
+/**
+ * personium.io
+ * Copyright 2026 Personium Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.httpclient;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.utils.URIUtils;
+
+/**
+ * Circuit breaker, rate limiter and bulkhead of a host, shared by all Ext_HttpClient instances.
+ * The bulkhead limits the calls in flight to the host, so a slow host cannot hold all engine threads.
+ * The rate limiter limits the calls per second, so bursts do not exceed the quota of the host.
+ * The circuit breaker and the bulkhead are enabled by the extension properties.
+ * The number of guards is bounded, guards of hosts not called for a while are dropped first.
+ */
+final class HostGuard {
+
+    /** Property keys (Ext_HttpClient.properties). */
+    static final String PROP_CB_ENABLED = "circuitBreaker.enabled";
+    static final String PROP_CB_WINDOW_SIZE = "circuitBreaker.windowSize";
+    static final String PROP_CB_MINIMUM_CALLS = "circuitBreaker.minimumCalls";
+    static final String PROP_CB_FAILURE_RATE_THRESHOLD = "circuitBreaker.failureRateThreshold";
+    static final String PROP_CB_SLOW_CALL_RATE_THRESHOLD = "circuitBreaker.slowCallRateThreshold";
+    static final String PROP_CB_SLOW_CALL_DURATION = "circuitBreaker.slowCallDuration";
+    static final String PROP_CB_OPEN_DURATION = "circuitBreaker.openDuration";
+    static final String PROP_CB_HALF_OPEN_CALLS = "circuitBreaker.halfOpenCalls";
+    static final String PROP_BULKHEAD_MAX_CONCURRENT = "bulkhead.maxConcurrent";
+    static final String PROP_BULKHEAD_MAX_WAIT = "bulkhead.maxWait";
+    static final String PROP_RETRY_BUDGET_PERCENT = "retry.budgetPercent";
+    static final String PROP_RETRY_BUDGET_CAP = "retry.budgetCap";
+    static final String PROP_MAX_HOSTS = "hostGuard.maxHosts";
+    static final String PROP_IDLE_TIMEOUT = "hostGuard.idleTimeout";
+
+    /** Default values. */
+    static final int DEFAULT_CB_WINDOW_SIZE = 20;
+    static final int DEFAULT_CB_MINIMUM_CALLS = 10;
+    static final int DEFAULT_CB_FAILURE_RATE_THRESHOLD = 50;
+    static final int DEFAULT_CB_SLOW_CALL_RATE_THRESHOLD = 100;
+    static final int DEFAULT_CB_SLOW_CALL_DURATION = 10000;
+    static final int DEFAULT_CB_OPEN_DURATION = 30000;
+    static final int DEFAULT_CB_HALF_OPEN_CALLS = 3;
+    static final int DEFAULT_BULKHEAD_MAX_CONCURRENT = 0;
+    static final int DEFAULT_BULKHEAD_MAX_WAIT = 0;
+    static final int DEFAULT_RETRY_BUDGET_PERCENT = 20;
+    static final int DEFAULT_RETRY_BUDGET_CAP = 10;
+    static final int DEFAULT_MAX_HOSTS = 1000;
+    static final long DEFAULT_IDLE_TIMEOUT = 600000;
+
+    /** Retry tokens are counted in thousandths. */
+    private static final long TOKEN = 1000;
+
+    /** Shared guards. Key is the host (scheme://host:port). */
+    private static final ConcurrentMap<String, HostGuard> GUARDS = new ConcurrentHashMap<>();
+
+    /** Host. */
+    private final String host;
+
+    /** Circuit breaker, or null if disabled. */
+    private final CircuitBreaker circuitBreaker;
+
+    /** Rate limiter, or null if no rule matches the host. */
+    private final RateLimiter rateLimiter;
+
+    /** Max milliseconds to wait for the rate limiter. */
+    private final long rateLimitMaxWait;
+
+    /** Bulkhead, or null if the calls in flight are not limited. */
+    private final Semaphore bulkhead;
+
+    /** Max milliseconds to wait for the bulkhead. */
+    private final long maxWait;
+
+    /** Retry budget. Each call deposits a fraction of a token, and each retry takes one. */
+    private final AtomicLong retryTokens;
+    private final long retryDeposit;
+    private final long retryCap;
+
+    /** System.nanoTime() of the last call. */
+    private volatile long lastUsed = System.nanoTime();
+
+    /**
+     * Constructor.
+     * @param host host
+     * @param circuitBreaker circuit breaker, or null
+     * @param rateLimiter rate limiter, or null
+     * @param rateLimitMaxWait max milliseconds to wait for the rate limiter
+     * @param maxConcurrent max calls in flight. 0: no limit
+     * @param maxWait max milliseconds to wait for the bulkhead
+     * @param retryBudgetPercent retries allowed in percent of calls
+     * @param retryBudgetCap max retries that can be saved up
+     */
+    HostGuard(String host, CircuitBreaker circuitBreaker, RateLimiter rateLimiter, long rateLimitMaxWait,
+            int maxConcurrent, long maxWait, int retryBudgetPercent, int retryBudgetCap) {
+        this.host = host;
+        this.circuitBreaker = circuitBreaker;
+        this.rateLimiter = rateLimiter;
+        this.rateLimitMaxWait = rateLimitMaxWait;
+        this.bulkhead = maxConcurrent > 0 ? new Semaphore(maxConcurrent) : null;
+        this.maxWait = maxWait;
+        this.retryDeposit = TOKEN * retryBudgetPercent / 100;
+        this.retryCap = TOKEN * retryBudgetCap;
+        this.retryTokens = new AtomicLong(retryCap);
+    }
+
+    /**
+     * Return the shared guard of the host of the request, creating it on first use.
+     * @param request request
+     * @param properties extension properties
+     * @return guard
+     */
+    static HostGuard get(HttpRequestBase request, Properties properties) {
+        HttpHost target = URIUtils.extractHost(request.getURI());
+        String host = target == null ? String.valueOf(request.getURI()) : target.toURI();
+        HostGuard guard = GUARDS.get(host);
+        if (guard == null) {
+            evict(ClientConfig.getInt(properties, PROP_MAX_HOSTS, DEFAULT_MAX_HOSTS),
+                    TimeUnit.MILLISECONDS.toNanos(
+                            ClientConfig.getLong(properties, PROP_IDLE_TIMEOUT, DEFAULT_IDLE_TIMEOUT)));
+            guard = GUARDS.computeIfAbsent(host, key -> create(key, target == null ? null : target.getHostName(),
+                    properties));
+        }
+        guard.lastUsed = System.nanoTime();
+        return guard;
+    }
+
+    /**
+     * Make room for a new guard. When the map is full, guards idle longer than idleTimeout are removed,
+     * then the least recently used one. Calls in flight keep their permits of a removed guard.
+     * @param maxHosts max number of guards
+     * @param idleTimeout idle nanoseconds after which a guard can be removed
+     */
+    private static void evict(int maxHosts, long idleTimeout) {
+        if (GUARDS.size() < maxHosts) {
+            return;
+        }
+        long now = System.nanoTime();
+        String eldest = null;
+        long eldestUsed = 0;
+        for (Iterator<Map.Entry<String, HostGuard>> it = GUARDS.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<String, HostGuard> e = it.next();
+            long used = e.getValue().lastUsed;
+            if (now - used >= idleTimeout) {
+                it.remove();
+            } else if (eldest == null || used - eldestUsed < 0) {
+                eldest = e.getKey();
+                eldestUsed = used;
+            }
+        }
+        if (GUARDS.size() >= maxHosts && eldest != null) {
+            GUARDS.remove(eldest);
+        }
+    }
+
+    /**
+     * Number of guards.
+     * @return size
+     */
+    static int size() {
+        return GUARDS.size();
+    }
+
+    /**
+     * Drop all guards.
+     */
+    static void clear() {
+        GUARDS.clear();
+        RateLimiter.clear();
+    }
+
+    private static HostGuard create(String host, String hostName, Properties properties) {
+        CircuitBreaker circuitBreaker = null;
+        if (properties != null && "true".equalsIgnoreCase(properties.getProperty(PROP_CB_ENABLED))) {
+            circuitBreaker = new CircuitBreaker(host,
+                    ClientConfig.getInt(properties, PROP_CB_WINDOW_SIZE, DEFAULT_CB_WINDOW_SIZE),
+                    ClientConfig.getInt(properties, PROP_CB_MINIMUM_CALLS, DEFAULT_CB_MINIMUM_CALLS),
+                    ClientConfig.getInt(properties, PROP_CB_FAILURE_RATE_THRESHOLD,
+                            DEFAULT_CB_FAILURE_RATE_THRESHOLD),
+                    ClientConfig.getInt(properties, PROP_CB_SLOW_CALL_RATE_THRESHOLD,
+                            DEFAULT_CB_SLOW_CALL_RATE_THRESHOLD),
+                    ClientConfig.getInt(properties, PROP_CB_SLOW_CALL_DURATION, DEFAULT_CB_SLOW_CALL_DURATION),
+                    ClientConfig.getInt(properties, PROP_CB_OPEN_DURATION, DEFAULT_CB_OPEN_DURATION),
+                    ClientConfig.getInt(properties, PROP_CB_HALF_OPEN_CALLS, DEFAULT_CB_HALF_OPEN_CALLS));
+        }
+        return new HostGuard(host, circuitBreaker, RateLimiter.get(hostName, properties),
+                ClientConfig.getInt(properties, RateLimiter.PROP_MAX_WAIT, RateLimiter.DEFAULT_MAX_WAIT),
+                ClientConfig.getInt(properties, PROP_BULKHEAD_MAX_CONCURRENT, DEFAULT_BULKHEAD_MAX_CONCURRENT),
+                ClientConfig.getInt(properties, PROP_BULKHEAD_MAX_WAIT, DEFAULT_BULKHEAD_MAX_WAIT),
+                ClientConfig.getInt(properties, PROP_RETRY_BUDGET_PERCENT, DEFAULT_RETRY_BUDGET_PERCENT),
+                ClientConfig.getInt(properties, PROP_RETRY_BUDGET_CAP, DEFAULT_RETRY_BUDGET_CAP));
+    }
+
+    /**
+     * Ask for permission to call the host.
+     * Fails fast when the circuit is open, and after the max waits when the rate limit is exceeded
+     * or the bulkhead is full.
+     * @return permit that must be released when the call completes
+     * @throws HostUnavailableException call rejected
+     */
+    Permit acquire() throws HostUnavailableException {
+        if (circuitBreaker != null && !circuitBreaker.tryAcquire()) {
+            throw new HostUnavailableException(String.format("Circuit breaker is open. Host: [%s]", host));
+        }
+        boolean acquired = true;
+        try {
+            if (rateLimiter != null) {
+                acquired = rateLimiter.tryAcquire(rateLimitMaxWait);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            acquired = false;
+        }
+        if (!acquired) {
+            if (circuitBreaker != null) {
+                circuitBreaker.cancel();
+            }
+            throw new HostUnavailableException(String.format("Rate limit exceeded. Host: [%s]", host));
+        }
+        try {
+            if (bulkhead != null) {
+                acquired = maxWait > 0 ? bulkhead.tryAcquire(maxWait, TimeUnit.MILLISECONDS)
+                        : bulkhead.tryAcquire();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            acquired = false;
+        }
+        if (!acquired) {
+            if (circuitBreaker != null) {
+                circuitBreaker.cancel();
+            }
+            throw new HostUnavailableException(String.format("Too many concurrent requests. Host: [%s]", host));
+        }
+        return new Permit();
+    }
+
+    /**
+     * Add the share of a call to the retry budget. Called once per call, not per attempt.
+     */
+    void depositRetryToken() {
+        long current;
+        long next;
+        do {
+            current = retryTokens.get();
+            next = Math.min(retryCap, current + retryDeposit);
+        } while (next != current && !retryTokens.compareAndSet(current, next));
+    }
+
+    /**
+     * Take a token from the retry budget.
+     * @return false if the budget is exhausted
+     */
+    boolean tryRetry() {
+        long current;
+        do {
+            current = retryTokens.get();
+            if (current < TOKEN) {
+                return false;
+            }
+        } while (!retryTokens.compareAndSet(current, current - TOKEN));
+        return true;
+    }
+
+    /**
+     * Circuit breaker.
+     * @return circuit breaker, or null if disabled
+     */
+    CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    /**
+     * Permission to call the host.
+     */
+    final class Permit {
+        private final long start = System.nanoTime();
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        /**
+         * Release the permit with the response. 5xx responses count as failures.
+         * @param res response
+         */
+        void release(HttpResponse res) {
+            release(res.getStatusLine().getStatusCode() < 500);
+        }
+
+        /**
+         * Release the permit. Releasing twice is harmless.
+         * @param success false if the call failed
+         */
+        void release(boolean success) {
+            if (!released.compareAndSet(false, true)) {
+                return;
+            }
+            if (circuitBreaker != null) {
+                circuitBreaker.record(success, System.nanoTime() - start);
+            }
+            if (bulkhead != null) {
+                bulkhead.release();
+            }
+        }
+
+        /**
+         * Release the permit of a call that was cancelled by the caller. The outcome is not recorded.
+         */
+        void cancel() {
+            if (!released.compareAndSet(false, true)) {
+                return;
+            }
+            if (circuitBreaker != null) {
+                circuitBreaker.cancel();
+            }
+            if (bulkhead != null) {
+                bulkhead.release();
+            }
+        }
+    }
+
+    /**
+     * Call rejected by the circuit breaker or the bulkhead.
+     */
+    @SuppressWarnings("serial")
+    static final class HostUnavailableException extends IOException {
+        HostUnavailableException(String message) {
+            super(message);
+        }
+    }
+}
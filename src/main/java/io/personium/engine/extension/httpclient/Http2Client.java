@@ -0,0 +1,488 @@
+/**
+ * personium.io
+ * Copyright 2026 Personium Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.httpclient;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.io.UncheckedIOException;
+import java.net.ProxySelector;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.http.HttpClient;
+import java.net.http.HttpClient.Redirect;
+import java.net.http.HttpClient.Version;
+import java.net.http.HttpConnectTimeoutException;
+import java.net.http.HttpRequest.BodyPublisher;
+import java.net.http.HttpRequest.BodyPublishers;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.net.http.HttpTimeoutException;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpException;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.ProtocolException;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.RedirectException;
+import org.apache.http.client.RedirectStrategy;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.Configurable;
+import org.apache.http.client.methods.HttpExecutionAware;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.client.protocol.ResponseContentEncoding;
+import org.apache.http.client.utils.URIUtils;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.ClientConnectionRequest;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.conn.ManagedClientConnection;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.impl.EnglishReasonPhraseCatalog;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultRedirectStrategy;
+import org.apache.http.impl.conn.SchemeRegistryFactory;
+import org.apache.http.impl.execchain.RequestAbortedException;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.personium.engine.extension.httpclient.MetricsRecorder.Phase;
+
+/**
+ * HttpClient that sends requests with the JDK client over HTTP/2.
+ * Requests to one origin are multiplexed over one connection with HPACK header compression.
+ * Servers that do not speak HTTP/2 (no ALPN "h2", or no h2c upgrade) are served over HTTP/1.1.
+ * Requests and responses are converted from and to HttpClient 4 objects,
+ * so the rest of the extension works the same for both transports.
+ * Redirects are followed by the redirect strategy of HttpClient 4 (GET and HEAD only, and 303 as GET),
+ * not by the JDK client, so both transports redirect the same requests.
+ */
+final class Http2Client extends CloseableHttpClient {
+
+    /** Logger. */
+    private static final Logger log = LoggerFactory.getLogger(Http2Client.class);
+
+    /** Protocol version of HTTP/2 responses. */
+    private static final ProtocolVersion HTTP_2 = new ProtocolVersion("HTTP", 2, 0);
+
+    /** Headers set by the JDK client, or not allowed in HTTP/2 (RFC 7540 8.1.2.2). */
+    private static final Set<String> RESTRICTED_HEADERS = new HashSet<>(Arrays.asList(
+            "connection", "content-length", "expect", "host", "upgrade", "keep-alive", "proxy-connection",
+            "te", "transfer-encoding"));
+
+    /** Redirect strategy. Same as HttpClientBuilder uses. */
+    private static final RedirectStrategy REDIRECT_STRATEGY = DefaultRedirectStrategy.INSTANCE;
+
+    /** JDK client. */
+    private final HttpClient client;
+
+    /** Extension properties. */
+    private final Properties properties;
+
+    /**
+     * Constructor.
+     * The connect timeout is taken from "timeout.connect", as the JDK client sets it per client.
+     * @param properties extension properties
+     */
+    Http2Client(Properties properties) {
+        this.properties = properties;
+        HttpClient.Builder builder = HttpClient.newBuilder()
+                .version(Version.HTTP_2)
+                .followRedirects(Redirect.NEVER)
+                // Proxy settings.
+                .proxy(ProxySelector.getDefault());
+        int connectTimeout = ClientConfig.getInt(properties, Timeouts.PROP_CONNECT, 0);
+        if (connectTimeout > 0) {
+            builder.connectTimeout(Duration.ofMillis(connectTimeout));
+        }
+        this.client = builder.build();
+    }
+
+    @Override
+    protected CloseableHttpResponse doExecute(HttpHost target, HttpRequest request, HttpContext context)
+            throws IOException, ClientProtocolException {
+        HttpClientContext clientContext = HttpClientContext.adapt(context != null ? context : new BasicHttpContext());
+        RequestConfig config = getConfig(request);
+        clientContext.setRequestConfig(config);
+        HttpExecutionAware executionAware = request instanceof HttpExecutionAware
+                ? (HttpExecutionAware) request : null;
+        HttpHost host = target;
+        HttpRequest current = request;
+        for (int redirects = 0;; redirects++) {
+            CloseableHttpResponse response = send(host, current, executionAware);
+            // Relative locations are resolved against the target host.
+            clientContext.setAttribute(HttpClientContext.HTTP_TARGET_HOST, host);
+            if (!config.isRedirectsEnabled()) {
+                return response;
+            }
+            HttpUriRequest redirect;
+            try {
+                if (!REDIRECT_STRATEGY.isRedirected(current, response, clientContext)) {
+                    return response;
+                }
+                if (redirects >= config.getMaxRedirects()) {
+                    throw new RedirectException("Maximum redirects (" + config.getMaxRedirects() + ") exceeded");
+                }
+                redirect = REDIRECT_STRATEGY.getRedirect(current, response, clientContext);
+            } catch (ProtocolException e) {
+                response.close();
+                throw new ClientProtocolException(e);
+            } catch (RuntimeException e) {
+                response.close();
+                throw e;
+            }
+            response.close();
+            // Same as RedirectExec.
+            if (!redirect.headerIterator().hasNext()) {
+                redirect.setHeaders(request.getAllHeaders());
+            }
+            if (redirect instanceof HttpRequestBase) {
+                ((HttpRequestBase) redirect).setConfig(config);
+            }
+            log.debug("Redirecting to {}", redirect.getURI());
+            current = redirect;
+            host = URIUtils.extractHost(redirect.getURI());
+        }
+    }
+
+    /**
+     * Send the request with the JDK client.
+     * @param target target host
+     * @param request request
+     * @param executionAware request to set the cancellable to, or null
+     * @return response
+     * @throws IOException I/O error
+     */
+    private CloseableHttpResponse send(HttpHost target, HttpRequest request, HttpExecutionAware executionAware)
+            throws IOException {
+        java.net.http.HttpRequest jdkRequest;
+        try {
+            jdkRequest = toJdkRequest(target, request);
+        } catch (IllegalArgumentException e) {
+            throw new ClientProtocolException(e.getMessage(), e);
+        }
+        String method = jdkRequest.method();
+        MetricsRecorder recorder = Metrics.recorder();
+        long start = System.nanoTime();
+        CompletableFuture<java.net.http.HttpResponse<InputStream>> future =
+                client.sendAsync(jdkRequest, BodyHandlers.ofInputStream());
+        if (executionAware != null) {
+            executionAware.setCancellable(() -> future.cancel(true));
+        }
+        java.net.http.HttpResponse<InputStream> jdkResponse;
+        try {
+            jdkResponse = future.get();
+        } catch (CancellationException e) {
+            throw new RequestAbortedException("Request aborted");
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Request interrupted");
+        } catch (ExecutionException e) {
+            throw translate(e.getCause());
+        }
+        if (recorder != MetricsRecorder.NOOP) {
+            recorder.recordPhase(Metrics.hostKey(jdkRequest.uri()), Phase.TTFB, System.nanoTime() - start);
+        }
+        InputStream body = jdkResponse.body();
+        if (executionAware != null) {
+            // Aborting from now on closes the body.
+            executionAware.setCancellable(() -> {
+                closeQuietly(body);
+                return true;
+            });
+        }
+        log.debug("{} {} {} {}", method, jdkResponse.uri(), jdkResponse.version(), jdkResponse.statusCode());
+        try {
+            return toResponse(method, jdkResponse, body, getConfig(request));
+        } catch (HttpException e) {
+            closeQuietly(body);
+            throw new ClientProtocolException(e);
+        }
+    }
+
+    /**
+     * Convert the request.
+     * @param target target host
+     * @param request request
+     * @return JDK request
+     * @throws IOException body could not be opened
+     */
+    private java.net.http.HttpRequest toJdkRequest(HttpHost target, HttpRequest request) throws IOException {
+        URI uri = request instanceof HttpUriRequest ? ((HttpUriRequest) request).getURI()
+                : URI.create(request.getRequestLine().getUri());
+        if (!uri.isAbsolute() && target != null) {
+            try {
+                uri = URIUtils.rewriteURI(uri, target);
+            } catch (URISyntaxException e) {
+                throw new ClientProtocolException(e);
+            }
+        }
+        java.net.http.HttpRequest.Builder builder = java.net.http.HttpRequest.newBuilder(uri);
+        RequestConfig config = getConfig(request);
+        if (config.getSocketTimeout() > 0) {
+            // The JDK client has no read timeout. It is applied to waiting for the response headers.
+            builder.timeout(Duration.ofMillis(config.getSocketTimeout()));
+        }
+        for (Header header : request.getAllHeaders()) {
+            addHeader(builder, header);
+        }
+        if (!request.containsHeader(HttpHeaders.ACCEPT_ENCODING) && config.isContentCompressionEnabled()) {
+            // Same as RequestAcceptEncoding. Bodies are decompressed by ResponseContentEncoding.
+            builder.header(HttpHeaders.ACCEPT_ENCODING, Compression.DEFAULT_ACCEPT_ENCODING);
+        }
+        HttpEntity entity = request instanceof HttpEntityEnclosingRequest
+                ? ((HttpEntityEnclosingRequest) request).getEntity() : null;
+        BodyPublisher publisher = BodyPublishers.noBody();
+        if (entity != null) {
+            if (!request.containsHeader(HttpHeaders.CONTENT_TYPE)) {
+                addHeader(builder, entity.getContentType());
+            }
+            if (!request.containsHeader(HttpHeaders.CONTENT_ENCODING)) {
+                addHeader(builder, entity.getContentEncoding());
+            }
+            publisher = BodyPublishers.ofInputStream(() -> openContent(entity));
+            if (entity.getContentLength() >= 0) {
+                publisher = BodyPublishers.fromPublisher(publisher, entity.getContentLength());
+            }
+        }
+        return builder.method(request.getRequestLine().getMethod(), publisher).build();
+    }
+
+    private static RequestConfig getConfig(HttpRequest request) {
+        RequestConfig config = request instanceof Configurable ? ((Configurable) request).getConfig() : null;
+        return config != null ? config : RequestConfig.DEFAULT;
+    }
+
+    private static void addHeader(java.net.http.HttpRequest.Builder builder, Header header) {
+        if (header == null) {
+            return;
+        }
+        if (RESTRICTED_HEADERS.contains(header.getName().toLowerCase(Locale.ROOT))) {
+            log.debug("Header [{}] is not sent over the JDK client.", header.getName());
+            return;
+        }
+        builder.header(header.getName(), header.getValue());
+    }
+
+    /**
+     * Open the content of the entity.
+     * Entities that cannot be read as a stream (such as multipart) are written through a pipe.
+     * @param entity entity
+     * @return content
+     */
+    private InputStream openContent(HttpEntity entity) {
+        try {
+            if (entity.isStreaming() || entity.isRepeatable()) {
+                try {
+                    return entity.getContent();
+                } catch (UnsupportedOperationException | IOException e) {
+                    log.debug("Entity content is written through a pipe.", e);
+                }
+            }
+            PipedInputStream in = new PipedInputStream();
+            PipedOutputStream out = new PipedOutputStream(in);
+            IoExecutors.get(properties).execute(() -> {
+                try (PipedOutputStream pipe = out) {
+                    entity.writeTo(pipe);
+                } catch (IOException e) {
+                    log.debug("Failed to write the entity.", e);
+                }
+            });
+            return in;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Convert the response.
+     * The body is decompressed the same way as HttpClient 4 does.
+     * @param method request method
+     * @param jdkResponse JDK response
+     * @param body body stream
+     * @param config request config
+     * @return response
+     * @throws HttpException unknown content encoding
+     * @throws IOException I/O error
+     */
+    private static CloseableHttpResponse toResponse(String method, java.net.http.HttpResponse<InputStream> jdkResponse,
+            InputStream body, RequestConfig config) throws HttpException, IOException {
+        int status = jdkResponse.statusCode();
+        Http2Response response = new Http2Response(
+                jdkResponse.version() == Version.HTTP_2 ? HTTP_2 : HttpVersion.HTTP_1_1,
+                status, EnglishReasonPhraseCatalog.INSTANCE.getReason(status, null), body);
+        for (Map.Entry<String, List<String>> entry : jdkResponse.headers().map().entrySet()) {
+            if (entry.getKey().startsWith(":")) {
+                // Pseudo header.
+                continue;
+            }
+            for (String value : entry.getValue()) {
+                response.addHeader(entry.getKey(), value);
+            }
+        }
+        if ("HEAD".equals(method) || status < HttpStatus.SC_OK
+                || status == HttpStatus.SC_NO_CONTENT || status == HttpStatus.SC_NOT_MODIFIED) {
+            closeQuietly(body);
+            return response;
+        }
+        BasicHttpEntity entity = new BasicHttpEntity();
+        entity.setContent(body);
+        entity.setContentLength(jdkResponse.headers().firstValueAsLong(HttpHeaders.CONTENT_LENGTH).orElse(-1));
+        entity.setContentType(response.getFirstHeader(HttpHeaders.CONTENT_TYPE));
+        entity.setContentEncoding(response.getFirstHeader(HttpHeaders.CONTENT_ENCODING));
+        response.setEntity(entity);
+        HttpClientContext context = HttpClientContext.create();
+        context.setRequestConfig(config);
+        new ResponseContentEncoding(Compression.decoderLookup()).process(response, context);
+        return response;
+    }
+
+    /**
+     * Translate an exception of the JDK client to the one HttpClient 4 would throw.
+     * @param cause exception
+     * @return exception to throw
+     */
+    private static IOException translate(Throwable cause) {
+        if (cause instanceof HttpConnectTimeoutException) {
+            ConnectTimeoutException e = new ConnectTimeoutException(cause.getMessage());
+            e.initCause(cause);
+            return e;
+        }
+        if (cause instanceof HttpTimeoutException) {
+            SocketTimeoutException e = new SocketTimeoutException(cause.getMessage());
+            e.initCause(cause);
+            return e;
+        }
+        if (cause instanceof UncheckedIOException) {
+            return ((UncheckedIOException) cause).getCause();
+        }
+        if (cause instanceof IOException) {
+            return (IOException) cause;
+        }
+        return new ClientProtocolException(cause);
+    }
+
+    private static void closeQuietly(InputStream in) {
+        try {
+            in.close();
+        } catch (IOException e) {
+            log.debug("Failed to close response body.", e);
+        }
+    }
+
+    @Override
+    public void close() {
+        // Connections of the JDK client are closed when it becomes unreachable.
+    }
+
+    @Override
+    @Deprecated
+    public HttpParams getParams() {
+        return new BasicHttpParams();
+    }
+
+    /**
+     * Return a view of the connections of the JDK client, the same way as MinimalHttpClient.
+     * Shutting it down closes the client. Leasing or releasing connections throws
+     * UnsupportedOperationException, as MinimalHttpClient does.
+     * @return connection manager
+     */
+    @Override
+    @Deprecated
+    public ClientConnectionManager getConnectionManager() {
+        return new ClientConnectionManager() {
+            @Override
+            public void shutdown() {
+                close();
+            }
+
+            @Override
+            public ClientConnectionRequest requestConnection(HttpRoute route, Object state) {
+                throw new UnsupportedOperationException("Connections are managed by the JDK client.");
+            }
+
+            @Override
+            public void releaseConnection(ManagedClientConnection conn, long validDuration, TimeUnit timeUnit) {
+                throw new UnsupportedOperationException("Connections are managed by the JDK client.");
+            }
+
+            @Override
+            public SchemeRegistry getSchemeRegistry() {
+                return SchemeRegistryFactory.createSystemDefault();
+            }
+
+            @Override
+            public void closeIdleConnections(long idletime, TimeUnit timeUnit) {
+                // Idle connections are closed by the JDK client.
+            }
+
+            @Override
+            public void closeExpiredConnections() {
+                // Same as closeIdleConnections.
+            }
+        };
+    }
+
+    /**
+     * Response whose close() closes the body stream.
+     * For HTTP/2 this resets the stream, not the connection.
+     */
+    private static final class Http2Response extends BasicHttpResponse implements CloseableHttpResponse {
+        private final InputStream body;
+
+        Http2Response(ProtocolVersion version, int status, String reason, InputStream body) {
+            super(version, status, reason);
+            this.body = body;
+        }
+
+        @Override
+        public void close() throws IOException {
+            body.close();
+        }
+    }
+}
@@ -0,0 +1,145 @@
+/**
+ * personium.io
+ * Copyright 2026 Personium Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.httpclient;
+
+import java.util.Map;
+
+/**
+ * JMX view of the metrics of outgoing requests.
+ * Keys of the maps are "host", "host method", "host phase" or "host exception class".
+ */
+public interface HttpClientMetricsMXBean {
+
+    /** Object name of the MBean. */
+    String OBJECT_NAME = "io.personium.engine.extension.httpclient:type=HttpClientMetrics";
+
+    /**
+     * Number of requests that received a response.
+     * @return count
+     */
+    long getRequestCount();
+
+    /**
+     * Number of requests that failed without a response.
+     * @return count
+     */
+    long getErrorCount();
+
+    /**
+     * Requests by host and method.
+     * @return counts
+     */
+    Map<String, Long> getRequestCounts();
+
+    /**
+     * Responses by host and status class (2xx, 3xx, 4xx, 5xx).
+     * @return counts
+     */
+    Map<String, Long> getStatusCounts();
+
+    /**
+     * Errors by host and exception class.
+     * @return counts
+     */
+    Map<String, Long> getErrorCounts();
+
+    /**
+     * Latency in microseconds by host and phase (DNS, CONNECT, TLS, TTFB, BODY).
+     * @return distributions
+     */
+    Map<String, Distribution> getLatencyMicros();
+
+    /**
+     * Response body size in bytes by host.
+     * @return distributions
+     */
+    Map<String, Distribution> getResponseBytes();
+
+    /**
+     * Pooled connections in use.
+     * @return count
+     */
+    int getLeasedConnections();
+
+    /**
+     * Pooled connections idle.
+     * @return count
+     */
+    int getAvailableConnections();
+
+    /**
+     * Requests waiting for a pooled connection.
+     * @return count
+     */
+    int getPendingConnections();
+
+    /**
+     * Max pooled connections.
+     * @return count
+     */
+    int getMaxConnections();
+
+    /**
+     * Reset the counters and distributions.
+     */
+    void reset();
+
+    /**
+     * Summary of a distribution. Percentiles are upper bounds of power of two buckets.
+     */
+    final class Distribution {
+        private final long count;
+        private final double mean;
+        private final long p50;
+        private final long p90;
+        private final long p99;
+        private final long max;
+
+        Distribution(long count, double mean, long p50, long p90, long p99, long max) {
+            this.count = count;
+            this.mean = mean;
+            this.p50 = p50;
+            this.p90 = p90;
+            this.p99 = p99;
+            this.max = max;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getMean() {
+            return mean;
+        }
+
+        public long getP50() {
+            return p50;
+        }
+
+        public long getP90() {
+            return p90;
+        }
+
+        public long getP99() {
+            return p99;
+        }
+
+        public long getMax() {
+            return max;
+        }
+    }
+}
@@ -0,0 +1,364 @@
+/**
+ * personium.io
+ * Copyright 2026 Personium Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.httpclient;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.ManagedNHttpClientConnectionFactory;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.conn.NoopIOSessionStrategy;
+import org.apache.http.nio.conn.SchemeIOSessionStrategy;
+import org.apache.http.nio.conn.ssl.SSLIOSessionStrategy;
+import org.apache.http.pool.PoolStats;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Process-wide registry of pooled HttpClients.
+ * One client (and one connection pool) is created per {@link ClientConfig}
+ * and reused across Ext_HttpClient instances and script invocations.
+ */
+final class HttpClientRegistry {
+
+    /** Logger. */
+    private static final Logger log = LoggerFactory.getLogger(HttpClientRegistry.class);
+
+    /** Property keys (Ext_HttpClient.properties). */
+    static final String PROP_IDLE_TIMEOUT = "pool.idleTimeout";
+    static final String PROP_EVICTION_INTERVAL = "pool.evictionInterval";
+    static final String PROP_VALIDATE_AFTER_INACTIVITY = "pool.validateAfterInactivity";
+
+    /** Default values. */
+    static final long DEFAULT_IDLE_TIMEOUT = 60000;
+    static final long DEFAULT_EVICTION_INTERVAL = 5000;
+    static final int DEFAULT_VALIDATE_AFTER_INACTIVITY = 2000;
+
+    /** Shared clients. */
+    private static final ConcurrentMap<ClientConfig, SharedClient> CLIENTS = new ConcurrentHashMap<>();
+
+    /** Shared asynchronous clients. */
+    private static final ConcurrentMap<ClientConfig, SharedAsyncClient> ASYNC_CLIENTS = new ConcurrentHashMap<>();
+
+    /** Closes expired and idle connections of all pools. */
+    private static ScheduledFuture<?> evictor;
+
+    /** Shutdown hook is added. */
+    private static final AtomicBoolean HOOK_ADDED = new AtomicBoolean();
+
+    private HttpClientRegistry() {
+    }
+
+    /**
+     * Return the shared client for the configuration, creating it on first use.
+     * @param config effective configuration
+     * @return HttpClient
+     * @throws GeneralSecurityException SSL context could not be created
+     */
+    static CloseableHttpClient getClient(ClientConfig config) throws GeneralSecurityException {
+        return getSharedClient(config).client;
+    }
+
+    /**
+     * Return the shared asynchronous client for the configuration, creating and starting it on first use.
+     * The client runs its I/O on a few reactor threads, not on a thread per request.
+     * @param config effective configuration
+     * @return HttpAsyncClient
+     * @throws GeneralSecurityException SSL context could not be created
+     * @throws IOException I/O reactor could not be created
+     */
+    static CloseableHttpAsyncClient getAsyncClient(ClientConfig config) throws GeneralSecurityException, IOException {
+        SharedAsyncClient shared = ASYNC_CLIENTS.get(config);
+        if (shared != null) {
+            return shared.client;
+        }
+        Metrics.init(config.getProperties());
+        SharedAsyncClient created = createAsyncClient(config);
+        created.client.start();
+        shared = ASYNC_CLIENTS.putIfAbsent(config, created);
+        if (shared != null) {
+            // Lost the race, discard ours.
+            closeQuietly(created.client);
+            return shared.client;
+        }
+        startEvictor(config.getProperties());
+        return created.client;
+    }
+
+    /**
+     * Return the statistics of the connection pool for the configuration.
+     * @param config effective configuration
+     * @return pool statistics, or null if the client is not created yet
+     */
+    static PoolStats getPoolStats(ClientConfig config) {
+        SharedClient shared = CLIENTS.get(config);
+        if (shared == null || shared.connectionManager == null) {
+            return null;
+        }
+        return shared.connectionManager.getTotalStats();
+    }
+
+    /**
+     * Return the statistics of all connection pools.
+     * @return sum of the pool statistics
+     */
+    static PoolStats getTotalPoolStats() {
+        int leased = 0;
+        int pending = 0;
+        int available = 0;
+        int max = 0;
+        for (SharedClient shared : CLIENTS.values()) {
+            if (shared.connectionManager != null) {
+                PoolStats stats = shared.connectionManager.getTotalStats();
+                leased += stats.getLeased();
+                pending += stats.getPending();
+                available += stats.getAvailable();
+                max += stats.getMax();
+            }
+        }
+        return new PoolStats(leased, pending, available, max);
+    }
+
+    /**
+     * Close all shared clients and their connection pools, stop the evictor, and disable the metrics.
+     */
+    static void shutdown() {
+        for (ClientConfig config : CLIENTS.keySet()) {
+            SharedClient shared = CLIENTS.remove(config);
+            if (shared != null) {
+                closeQuietly(shared.client);
+            }
+        }
+        for (ClientConfig config : ASYNC_CLIENTS.keySet()) {
+            SharedAsyncClient shared = ASYNC_CLIENTS.remove(config);
+            if (shared != null) {
+                closeQuietly(shared.client);
+            }
+        }
+        synchronized (HttpClientRegistry.class) {
+            if (evictor != null) {
+                evictor.cancel(false);
+                evictor = null;
+            }
+        }
+        CachingDnsResolver.shutdown();
+        Metrics.shutdown();
+    }
+
+    private static SharedClient getSharedClient(ClientConfig config) throws GeneralSecurityException {
+        SharedClient shared = CLIENTS.get(config);
+        if (shared != null) {
+            return shared;
+        }
+        Metrics.init(config.getProperties());
+        SharedClient created = createClient(config);
+        shared = CLIENTS.putIfAbsent(config, created);
+        if (shared != null) {
+            // Lost the race, discard ours.
+            closeQuietly(created.client);
+            return shared;
+        }
+        if (created.connectionManager != null) {
+            startEvictor(config.getProperties());
+        }
+        return created;
+    }
+
+    /**
+     * Start the evictor of idle connections once, and add the shutdown hook.
+     * Connections closed by servers or load balancers while idle in the pool are closed here,
+     * not found broken by the next request.
+     * @param properties extension properties
+     */
+    private static synchronized void startEvictor(Properties properties) {
+        if (HOOK_ADDED.compareAndSet(false, true)) {
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                shutdown();
+                IoExecutors.shutdown();
+            }, "personium-httpclient-shutdown"));
+        }
+        if (evictor != null) {
+            return;
+        }
+        long idleTimeout = ClientConfig.getLong(properties, PROP_IDLE_TIMEOUT, DEFAULT_IDLE_TIMEOUT);
+        long interval = ClientConfig.getLong(properties, PROP_EVICTION_INTERVAL, DEFAULT_EVICTION_INTERVAL);
+        evictor = IoExecutors.scheduler().scheduleWithFixedDelay(
+                () -> evictConnections(idleTimeout), interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Close expired connections, and connections idle longer than the timeout.
+     * @param idleTimeout idle timeout in milliseconds
+     */
+    private static void evictConnections(long idleTimeout) {
+        try {
+            for (SharedClient shared : CLIENTS.values()) {
+                if (shared.connectionManager != null) {
+                    shared.connectionManager.closeExpiredConnections();
+                    shared.connectionManager.closeIdleConnections(idleTimeout, TimeUnit.MILLISECONDS);
+                }
+            }
+            for (SharedAsyncClient shared : ASYNC_CLIENTS.values()) {
+                shared.connectionManager.closeExpiredConnections();
+                shared.connectionManager.closeIdleConnections(idleTimeout, TimeUnit.MILLISECONDS);
+            }
+        } catch (RuntimeException e) {
+            // Keep the schedule.
+            log.warn("Failed to evict idle connections.", e);
+        }
+    }
+
+    /**
+     * Create HttpClient backed by a pooling connection manager, or the HTTP/2 client.
+     * @param config effective configuration
+     * @return shared client
+     * @throws GeneralSecurityException SSL context could not be created
+     */
+    private static SharedClient createClient(ClientConfig config) throws GeneralSecurityException {
+        if (config.isHttp2()) {
+            if (config.isCache() || config.isIgnoreHostnameVerification()) {
+                // The cache is built on HttpClient 4, and the JDK client always verifies host names.
+                log.info("HTTP/2 is not used with the response cache or IgnoreHostnameVerification.");
+            } else {
+                log.debug("Create HTTP/2 HttpClient.");
+                return new SharedClient(new Http2Client(config.getProperties()), null);
+            }
+        }
+        SSLConnectionSocketFactory sslSocketFactory =
+                SSLSocketFactories.get(config.isIgnoreHostnameVerification(), config.getProperties());
+        Registry<ConnectionSocketFactory> socketFactoryRegistry = RegistryBuilder.<ConnectionSocketFactory>create()
+                .register("http", new Metrics.TimedPlainSocketFactory())
+                .register("https", sslSocketFactory)
+                .build();
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager(
+                socketFactoryRegistry, new Metrics.TimedDnsResolver(CachingDnsResolver.get(config.getProperties())));
+        connectionManager.setMaxTotal(config.getMaxTotal());
+        connectionManager.setDefaultMaxPerRoute(config.getMaxPerRoute());
+        // Checked only when reused after inactivity, instead of a stale check on each request.
+        connectionManager.setValidateAfterInactivity(ClientConfig.getInt(config.getProperties(),
+                PROP_VALIDATE_AFTER_INACTIVITY, DEFAULT_VALIDATE_AFTER_INACTIVITY));
+
+        log.debug("Create pooled HttpClient. maxTotal:{} maxPerRoute:{} ignoreHostnameVerification:{} cache:{}",
+                config.getMaxTotal(), config.getMaxPerRoute(), config.isIgnoreHostnameVerification(),
+                config.isCache());
+
+        HttpClientBuilder builder;
+        if (config.isCache()) {
+            builder = ResponseCache.custom(config.getProperties());
+        } else {
+            builder = HttpClients.custom();
+        }
+        CloseableHttpClient client = builder
+                .setConnectionManager(connectionManager)
+                .setKeepAliveStrategy(new KeepAliveStrategy(config.getProperties()))
+                .setContentDecoderRegistry(Compression.decoders())
+                .setRequestExecutor(new Metrics.TimedRequestExecutor())
+                // Proxy settings.
+                .useSystemProperties()
+                .build();
+        return new SharedClient(client, connectionManager);
+    }
+
+    /**
+     * Create HttpAsyncClient backed by a pooling connection manager.
+     * @param config effective configuration
+     * @return shared asynchronous client
+     * @throws GeneralSecurityException SSL context could not be created
+     * @throws IOException I/O reactor could not be created
+     */
+    private static SharedAsyncClient createAsyncClient(ClientConfig config)
+            throws GeneralSecurityException, IOException {
+        SSLIOSessionStrategy sslSessionStrategy = new SSLIOSessionStrategy(
+                SSLSocketFactories.getSSLContext(config.isIgnoreHostnameVerification(), config.getProperties()),
+                SSLSocketFactories.getSupportedProtocols(),
+                SSLSocketFactories.getSupportedCipherSuites(),
+                SSLSocketFactories.createHostnameVerifier());
+        Registry<SchemeIOSessionStrategy> sessionStrategyRegistry = RegistryBuilder.<SchemeIOSessionStrategy>create()
+                .register("http", NoopIOSessionStrategy.INSTANCE)
+                .register("https", sslSessionStrategy)
+                .build();
+        PoolingNHttpClientConnectionManager connectionManager = new PoolingNHttpClientConnectionManager(
+                new DefaultConnectingIOReactor(IOReactorConfig.DEFAULT), ManagedNHttpClientConnectionFactory.INSTANCE,
+                sessionStrategyRegistry, CachingDnsResolver.get(config.getProperties()));
+        connectionManager.setMaxTotal(config.getMaxTotal());
+        connectionManager.setDefaultMaxPerRoute(config.getMaxPerRoute());
+
+        log.debug("Create pooled HttpAsyncClient. maxTotal:{} maxPerRoute:{} ignoreHostnameVerification:{}",
+                config.getMaxTotal(), config.getMaxPerRoute(), config.isIgnoreHostnameVerification());
+
+        CloseableHttpAsyncClient client = HttpAsyncClients.custom()
+                .setConnectionManager(connectionManager)
+                .setKeepAliveStrategy(new KeepAliveStrategy(config.getProperties()))
+                // Proxy settings.
+                .useSystemProperties()
+                .build();
+        return new SharedAsyncClient(client, connectionManager);
+    }
+
+    private static void closeQuietly(Closeable client) {
+        try {
+            client.close();
+        } catch (IOException e) {
+            log.debug("Failed to close HttpClient.", e);
+        }
+    }
+
+    /**
+     * Shared client and its connection pool. The HTTP/2 client has no pool.
+     */
+    private static final class SharedClient {
+        private final CloseableHttpClient client;
+        private final PoolingHttpClientConnectionManager connectionManager;
+
+        SharedClient(CloseableHttpClient client, PoolingHttpClientConnectionManager connectionManager) {
+            this.client = client;
+            this.connectionManager = connectionManager;
+        }
+    }
+
+    /**
+     * Shared asynchronous client and its connection pool.
+     */
+    private static final class SharedAsyncClient {
+        private final CloseableHttpAsyncClient client;
+        private final PoolingNHttpClientConnectionManager connectionManager;
+
+        SharedAsyncClient(CloseableHttpAsyncClient client, PoolingNHttpClientConnectionManager connectionManager) {
+            this.client = client;
+            this.connectionManager = connectionManager;
+        }
+    }
+}
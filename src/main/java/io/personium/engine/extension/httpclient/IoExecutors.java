@@ -0,0 +1,204 @@
+/**
+ * personium.io
+ * Copyright 2026 Personium Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.httpclient;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Shared executor that runs blocking HTTP calls off the script thread.
+ * On runtimes with virtual threads (Java 21+), each task runs on a virtual thread, so blocked calls
+ * do not hold OS threads. Otherwise tasks run on a bounded pool of platform threads.
+ */
+final class IoExecutors {
+
+    /** Logger. */
+    private static final Logger log = LoggerFactory.getLogger(IoExecutors.class);
+
+    /** Property keys (Ext_HttpClient.properties). */
+    static final String PROP_MAX_THREADS = "executor.maxThreads";
+    static final String PROP_VIRTUAL_THREADS = "executor.virtualThreads";
+    static final String PROP_PINNED_THRESHOLD = "executor.pinnedThreshold";
+
+    /** Default values. */
+    static final int DEFAULT_MAX_THREADS = 64;
+    static final long DEFAULT_PINNED_THRESHOLD = 0;
+
+    /** Idle threads are terminated after this time. */
+    private static final long KEEP_ALIVE_SECONDS = 60;
+
+    /** Shared executor. */
+    private static volatile ExecutorService executor;
+
+    /** Shared scheduler. */
+    private static volatile ScheduledExecutorService scheduler;
+
+    /** The shared executor runs tasks on virtual threads. */
+    private static volatile boolean virtual;
+
+    /** Reports pinned virtual threads, or null. */
+    private static PinnedThreadMonitor pinnedMonitor;
+
+    private IoExecutors() {
+    }
+
+    /**
+     * Return the shared executor, creating it on first use.
+     * With platform threads, tasks are queued when all threads are busy.
+     * @param properties extension properties
+     * @return executor
+     */
+    static ExecutorService get(Properties properties) {
+        ExecutorService result = executor;
+        if (result == null) {
+            synchronized (IoExecutors.class) {
+                result = executor;
+                if (result == null) {
+                    if (!"false".equalsIgnoreCase(properties == null ? null
+                            : properties.getProperty(PROP_VIRTUAL_THREADS))) {
+                        result = createVirtualThreadExecutor("personium-httpclient-io-");
+                    }
+                    virtual = result != null;
+                    if (virtual) {
+                        log.info("Blocking calls run on virtual threads.");
+                        long threshold = ClientConfig.getLong(properties, PROP_PINNED_THRESHOLD,
+                                DEFAULT_PINNED_THRESHOLD);
+                        if (threshold > 0) {
+                            try {
+                                pinnedMonitor = PinnedThreadMonitor.start(threshold);
+                            } catch (LinkageError e) {
+                                log.warn("Failed to start the pinned thread monitor. JFR is not available.", e);
+                            }
+                        }
+                    } else {
+                        int maxThreads = ClientConfig.getInt(properties, PROP_MAX_THREADS, DEFAULT_MAX_THREADS);
+                        ThreadPoolExecutor pool = new ThreadPoolExecutor(maxThreads, maxThreads,
+                                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                                new DaemonThreadFactory("personium-httpclient-io-"));
+                        pool.allowCoreThreadTimeOut(true);
+                        result = pool;
+                    }
+                    executor = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Return the shared scheduler for timers such as request deadlines, creating it on first use.
+     * Timers must be short, as they run on a single thread.
+     * @return scheduler
+     */
+    static ScheduledExecutorService scheduler() {
+        ScheduledExecutorService result = scheduler;
+        if (result == null) {
+            synchronized (IoExecutors.class) {
+                result = scheduler;
+                if (result == null) {
+                    ScheduledThreadPoolExecutor pool =
+                            new ScheduledThreadPoolExecutor(1, new DaemonThreadFactory("personium-httpclient-timer-"));
+                    // Most timers are cancelled, do not keep them in the queue.
+                    pool.setRemoveOnCancelPolicy(true);
+                    scheduler = pool;
+                    result = pool;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Return whether the shared executor runs tasks on virtual threads.
+     * @return true if virtual threads are used
+     */
+    static boolean isVirtual() {
+        return executor != null && virtual;
+    }
+
+    /**
+     * Stop the shared executor and scheduler.
+     */
+    static synchronized void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+        if (pinnedMonitor != null) {
+            pinnedMonitor.close();
+            pinnedMonitor = null;
+        }
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    /**
+     * Create an executor that starts a virtual thread per task.
+     * Called by reflection, as the project is built for runtimes without virtual threads.
+     * @param prefix thread name prefix
+     * @return executor, or null if the runtime has no virtual threads
+     */
+    private static ExecutorService createVirtualThreadExecutor(String prefix) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, prefix, 0L);
+            ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+            return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+                    .invoke(null, factory);
+        } catch (NoSuchMethodException | ClassNotFoundException e) {
+            log.debug("Virtual threads are not supported.", e);
+        } catch (IllegalAccessException | InvocationTargetException e) {
+            // Preview feature not enabled (Java 19, 20).
+            log.debug("Virtual threads are not available.", e);
+        }
+        return null;
+    }
+
+    /**
+     * Creates named daemon threads so that the executor never blocks engine shutdown.
+     */
+    static final class DaemonThreadFactory implements ThreadFactory {
+        private final String prefix;
+        private final AtomicInteger count = new AtomicInteger();
+
+        DaemonThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, prefix + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,205 @@
+/**
+ * personium.io
+ * Copyright 2026 Personium Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.httpclient;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Built-in recorder that keeps the metrics in memory and exposes them over JMX.
+ * The number of hosts is bounded. Hosts past the bound are recorded under {@link #OTHER_HOST}.
+ */
+final class JmxMetricsRecorder implements MetricsRecorder, HttpClientMetricsMXBean {
+
+    /** Status classes by the first digit of the status code. */
+    private static final String[] STATUS_CLASSES = {"0xx", "1xx", "2xx", "3xx", "4xx", "5xx"};
+
+    /** Key of the hosts past the bound. */
+    static final String OTHER_HOST = "other";
+
+    /** Max number of hosts recorded separately. */
+    private final int maxHosts;
+
+    /** Metrics by host. */
+    private volatile ConcurrentMap<String, HostMetrics> hosts = new ConcurrentHashMap<>();
+
+    /**
+     * Constructor.
+     * @param maxHosts max number of hosts recorded separately
+     */
+    JmxMetricsRecorder(int maxHosts) {
+        this.maxHosts = maxHosts;
+    }
+
+    @Override
+    public void recordRequest(String host, String method, int status) {
+        HostMetrics metrics = get(host);
+        metrics.requests.computeIfAbsent(method, k -> new LongAdder()).increment();
+        metrics.statuses[Math.min(Math.max(status / 100, 0), STATUS_CLASSES.length - 1)].increment();
+    }
+
+    @Override
+    public void recordError(String host, String method, Throwable error) {
+        get(host).errors.computeIfAbsent(error.getClass().getName(), k -> new LongAdder()).increment();
+    }
+
+    @Override
+    public void recordPhase(String host, Phase phase, long nanos) {
+        get(host).latency.get(phase).record(TimeUnit.NANOSECONDS.toMicros(nanos));
+    }
+
+    @Override
+    public void recordResponseSize(String host, long bytes) {
+        get(host).responseBytes.record(bytes);
+    }
+
+    private HostMetrics get(String host) {
+        ConcurrentMap<String, HostMetrics> current = hosts;
+        HostMetrics metrics = current.get(host);
+        if (metrics != null) {
+            return metrics;
+        }
+        String key = current.size() < maxHosts ? host : OTHER_HOST;
+        return current.computeIfAbsent(key, k -> new HostMetrics());
+    }
+
+    @Override
+    public long getRequestCount() {
+        long count = 0;
+        for (HostMetrics metrics : hosts.values()) {
+            for (LongAdder adder : metrics.requests.values()) {
+                count += adder.sum();
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public long getErrorCount() {
+        long count = 0;
+        for (HostMetrics metrics : hosts.values()) {
+            for (LongAdder adder : metrics.errors.values()) {
+                count += adder.sum();
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public Map<String, Long> getRequestCounts() {
+        Map<String, Long> result = new TreeMap<>();
+        hosts.forEach((host, metrics) ->
+                metrics.requests.forEach((method, adder) -> result.put(host + " " + method, adder.sum())));
+        return result;
+    }
+
+    @Override
+    public Map<String, Long> getStatusCounts() {
+        Map<String, Long> result = new TreeMap<>();
+        hosts.forEach((host, metrics) -> {
+            for (int i = 0; i < STATUS_CLASSES.length; i++) {
+                long count = metrics.statuses[i].sum();
+                if (count > 0) {
+                    result.put(host + " " + STATUS_CLASSES[i], count);
+                }
+            }
+        });
+        return result;
+    }
+
+    @Override
+    public Map<String, Long> getErrorCounts() {
+        Map<String, Long> result = new TreeMap<>();
+        hosts.forEach((host, metrics) ->
+                metrics.errors.forEach((error, adder) -> result.put(host + " " + error, adder.sum())));
+        return result;
+    }
+
+    @Override
+    public Map<String, Distribution> getLatencyMicros() {
+        Map<String, Distribution> result = new TreeMap<>();
+        hosts.forEach((host, metrics) -> metrics.latency.forEach((phase, histogram) -> {
+            Distribution distribution = histogram.snapshot();
+            if (distribution.getCount() > 0) {
+                result.put(host + " " + phase, distribution);
+            }
+        }));
+        return result;
+    }
+
+    @Override
+    public Map<String, Distribution> getResponseBytes() {
+        Map<String, Distribution> result = new TreeMap<>();
+        hosts.forEach((host, metrics) -> {
+            Distribution distribution = metrics.responseBytes.snapshot();
+            if (distribution.getCount() > 0) {
+                result.put(host, distribution);
+            }
+        });
+        return result;
+    }
+
+    @Override
+    public int getLeasedConnections() {
+        return HttpClientRegistry.getTotalPoolStats().getLeased();
+    }
+
+    @Override
+    public int getAvailableConnections() {
+        return HttpClientRegistry.getTotalPoolStats().getAvailable();
+    }
+
+    @Override
+    public int getPendingConnections() {
+        return HttpClientRegistry.getTotalPoolStats().getPending();
+    }
+
+    @Override
+    public int getMaxConnections() {
+        return HttpClientRegistry.getTotalPoolStats().getMax();
+    }
+
+    @Override
+    public void reset() {
+        hosts = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Metrics of a host.
+     */
+    private static final class HostMetrics {
+        private final ConcurrentMap<String, LongAdder> requests = new ConcurrentHashMap<>();
+        private final ConcurrentMap<String, LongAdder> errors = new ConcurrentHashMap<>();
+        private final LongAdder[] statuses = new LongAdder[STATUS_CLASSES.length];
+        private final Map<Phase, Histogram> latency = new EnumMap<>(Phase.class);
+        private final Histogram responseBytes = new Histogram();
+
+        HostMetrics() {
+            for (int i = 0; i < statuses.length; i++) {
+                statuses[i] = new LongAdder();
+            }
+            for (Phase phase : Phase.values()) {
+                latency.put(phase, new Histogram());
+            }
+        }
+    }
+}
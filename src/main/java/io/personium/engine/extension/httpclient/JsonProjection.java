@@ -0,0 +1,288 @@
+/**
+ * personium.io
+ * Copyright 2026 Personium Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.httpclient;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+
+import org.json.simple.parser.ContentHandler;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.NativeArray;
+import org.mozilla.javascript.NativeObject;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+
+/**
+ * Builds javascript objects from a JSON stream, keeping only the selected paths.
+ * The document is never held as a whole: values outside of the paths are dropped as they are parsed,
+ * so memory is proportional to the selected data.
+ * <p>
+ * A path is a JSON Pointer ("/d/results/0/Name") or dotted names ("d.results.0.Name").
+ * "*" matches any name or index. The result keeps the structure of the document; arrays keep
+ * only the elements that contain selected values, in order.
+ */
+final class JsonProjection implements ContentHandler {
+
+    /** Matches any name or index. */
+    static final String WILDCARD = "*";
+
+    /** Paths split into names. */
+    private final String[][] paths;
+
+    /** Scope to create objects in, or null. */
+    private final Scriptable scope;
+
+    /** Frames of the containers being parsed. The bottom is the document. */
+    private final Deque<Frame> stack = new ArrayDeque<>();
+
+    /** Result. */
+    private Object result;
+
+    /**
+     * Constructor.
+     * @param paths paths to select. null or empty selects the whole document
+     * @param scope scope to create objects in, or null
+     */
+    JsonProjection(String[] paths, Scriptable scope) {
+        this.scope = scope == null ? null : ScriptableObject.getTopLevelScope(scope);
+        if (paths == null || paths.length == 0) {
+            this.paths = new String[][] {new String[0]};
+        } else {
+            this.paths = new String[paths.length][];
+            for (int i = 0; i < paths.length; i++) {
+                this.paths[i] = split(paths[i]);
+            }
+        }
+    }
+
+    /**
+     * Parse the JSON and return the selected values.
+     * @param reader JSON
+     * @return result. null if nothing is selected
+     * @throws IOException I/O error
+     * @throws ParseException not JSON
+     */
+    Object parse(Reader reader) throws IOException, ParseException {
+        new JSONParser().parse(reader, this);
+        return result;
+    }
+
+    /**
+     * Split a path into names.
+     * @param path JSON Pointer or dotted names
+     * @return names
+     */
+    static String[] split(String path) {
+        if (path.isEmpty()) {
+            return new String[0];
+        }
+        if (path.startsWith("/")) {
+            String[] names = path.substring(1).split("/", -1);
+            for (int i = 0; i < names.length; i++) {
+                names[i] = names[i].replace("~1", "/").replace("~0", "~");
+            }
+            return names;
+        }
+        return path.split("\\.", -1);
+    }
+
+    @Override
+    public void startJSON() {
+        stack.clear();
+        result = null;
+        int[] positions = new int[paths.length];
+        stack.push(new Frame(false, null, positions, isFull(positions)));
+    }
+
+    @Override
+    public void endJSON() {
+        stack.clear();
+    }
+
+    @Override
+    public boolean startObjectEntry(String key) {
+        stack.peek().key = key;
+        return true;
+    }
+
+    @Override
+    public boolean endObjectEntry() {
+        return true;
+    }
+
+    @Override
+    public boolean startObject() {
+        return startContainer(false);
+    }
+
+    @Override
+    public boolean endObject() {
+        return endContainer();
+    }
+
+    @Override
+    public boolean startArray() {
+        return startContainer(true);
+    }
+
+    @Override
+    public boolean endArray() {
+        return endContainer();
+    }
+
+    @Override
+    public boolean primitive(Object value) {
+        Frame parent = stack.peek();
+        String name = nextName(parent);
+        if (parent.full || isFull(advance(parent, name))) {
+            // JSON numbers are doubles in javascript.
+            attach(parent, name, value instanceof Long ? Double.valueOf((Long) value) : value);
+        }
+        return true;
+    }
+
+    private boolean startContainer(boolean array) {
+        Frame parent = stack.peek();
+        String name = nextName(parent);
+        int[] positions = parent.full ? null : advance(parent, name);
+        Frame frame = new Frame(array, name, positions, parent.full || isFull(positions));
+        if (frame.full) {
+            // Selected as a whole, kept even if empty.
+            frame.container = newContainer(array);
+        }
+        stack.push(frame);
+        return true;
+    }
+
+    private boolean endContainer() {
+        Frame frame = stack.pop();
+        if (frame.container != null) {
+            attach(stack.peek(), frame.name, frame.container);
+        }
+        return true;
+    }
+
+    /**
+     * Return the name of the next value in the container.
+     * @param parent container
+     * @return key, index, or null for the document
+     */
+    private String nextName(Frame parent) {
+        if (parent.name == null && stack.size() == 1) {
+            return null;
+        }
+        return parent.array ? Integer.toString(parent.index++) : parent.key;
+    }
+
+    /**
+     * Return the positions in the paths after the name.
+     * @param parent container
+     * @param name key or index, or null for the document
+     * @return positions, or null if no path goes on
+     */
+    private int[] advance(Frame parent, String name) {
+        if (parent.positions == null) {
+            return null;
+        }
+        if (name == null) {
+            return parent.positions;
+        }
+        int[] next = null;
+        for (int i = 0; i < paths.length; i++) {
+            int position = parent.positions[i];
+            if (position < 0 || position >= paths[i].length) {
+                continue;
+            }
+            String segment = paths[i][position];
+            if (WILDCARD.equals(segment) || segment.equals(name)) {
+                if (next == null) {
+                    next = new int[paths.length];
+                    Arrays.fill(next, -1);
+                }
+                next[i] = position + 1;
+            }
+        }
+        return next;
+    }
+
+    private boolean isFull(int[] positions) {
+        if (positions == null) {
+            return false;
+        }
+        for (int i = 0; i < paths.length; i++) {
+            if (positions[i] == paths[i].length) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void attach(Frame parent, String name, Object value) {
+        if (name == null) {
+            result = value;
+            return;
+        }
+        if (parent.container == null) {
+            parent.container = newContainer(parent.array);
+        }
+        if (parent.array) {
+            NativeArray array = (NativeArray) parent.container;
+            array.put((int) array.getLength(), array, value);
+        } else {
+            parent.container.put(name, parent.container, value);
+        }
+    }
+
+    private Scriptable newContainer(boolean array) {
+        Context cx = Context.getCurrentContext();
+        if (cx != null && scope != null) {
+            return array ? cx.newArray(scope, 0) : cx.newObject(scope);
+        }
+        return array ? new NativeArray(0) : new NativeObject();
+    }
+
+    /**
+     * Object or array being parsed.
+     */
+    private static final class Frame {
+        private final boolean array;
+        /** Key or index in the parent. null for the document. */
+        private final String name;
+        /** Positions in the paths. -1: the path does not match. null: no path matches. */
+        private final int[] positions;
+        /** The whole value is selected. */
+        private final boolean full;
+        /** Built when the first value is selected. */
+        private Scriptable container;
+        /** Key of the current entry of an object. */
+        private String key;
+        /** Index of the next element of an array. */
+        private int index;
+
+        Frame(boolean array, String name, int[] positions, boolean full) {
+            this.array = array;
+            this.name = name;
+            this.positions = positions;
+            this.full = full;
+        }
+    }
+}
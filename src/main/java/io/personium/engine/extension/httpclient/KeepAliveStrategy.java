@@ -0,0 +1,56 @@
+/**
+ * personium.io
+ * Copyright 2026 Personium Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.httpclient;
+
+import java.util.Properties;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * Keeps a connection alive for the "Keep-Alive: timeout=" of the response,
+ * or for a default time when the server does not send it.
+ * Without the default, connections without the header would be kept until a server or
+ * load balancer closes them, and the next request on them would fail.
+ */
+final class KeepAliveStrategy implements ConnectionKeepAliveStrategy {
+
+    /** Property keys (Ext_HttpClient.properties). */
+    static final String PROP_KEEP_ALIVE = "pool.keepAlive";
+
+    /** Default values. */
+    static final long DEFAULT_KEEP_ALIVE = 30000;
+
+    /** Milliseconds a connection is kept when the response has no Keep-Alive header. */
+    private final long defaultKeepAlive;
+
+    /**
+     * Constructor.
+     * @param properties extension properties
+     */
+    KeepAliveStrategy(Properties properties) {
+        this.defaultKeepAlive = ClientConfig.getLong(properties, PROP_KEEP_ALIVE, DEFAULT_KEEP_ALIVE);
+    }
+
+    @Override
+    public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+        long duration = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+        return duration > 0 ? duration : defaultKeepAlive;
+    }
+}
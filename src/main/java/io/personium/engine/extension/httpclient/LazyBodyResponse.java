@@ -0,0 +1,72 @@
+/**
+ * personium.io
+ * Copyright 2026 Personium Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.httpclient;
+
+import java.nio.charset.Charset;
+
+import org.mozilla.javascript.NativeObject;
+import org.mozilla.javascript.Scriptable;
+
+/**
+ * Response to javascript whose "body" string is decoded on first access.
+ * The raw bytes are read when the response is created, so the connection is released at once,
+ * and scripts that only look at the status or the headers never allocate the decoded string.
+ */
+final class LazyBodyResponse extends NativeObject {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Name of the body property. */
+    static final String BODY = "body";
+
+    /** Placeholder of the body until it is decoded. */
+    private static final Object PENDING = new Object();
+
+    /** Raw body. null once decoded. */
+    private transient byte[] raw;
+
+    /** Charset to decode with. */
+    private transient Charset charset;
+
+    /**
+     * Set the raw body to decode on first access.
+     * @param body raw body
+     * @param bodyCharset charset to decode with
+     */
+    void setBody(byte[] body, Charset bodyCharset) {
+        this.raw = body;
+        this.charset = bodyCharset;
+        super.put(BODY, this, PENDING);
+    }
+
+    @Override
+    public Object get(String name, Scriptable start) {
+        Object value = super.get(name, start);
+        if (value != PENDING) {
+            return value;
+        }
+        synchronized (this) {
+            value = super.get(name, start);
+            if (value == PENDING) {
+                value = new String(raw, charset);
+                super.put(BODY, this, value);
+                raw = null;
+            }
+        }
+        return value;
+    }
+}
@@ -0,0 +1,133 @@
+/**
+ * personium.io
+ * Copyright 2026 Personium Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.httpclient;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+import org.apache.http.client.cache.Resource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Cached response body stored in a file of the disk cache tier.
+ * The body is read through a memory mapping, so it is served from the page cache
+ * without being copied onto the heap.
+ */
+final class MappedFileResource implements Resource {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Logger. */
+    private static final Logger log = LoggerFactory.getLogger(MappedFileResource.class);
+
+    /** Body file. */
+    private final File file;
+
+    /** Body length. */
+    private final long length;
+
+    /**
+     * Constructor.
+     * @param file body file
+     * @param length body length
+     */
+    MappedFileResource(File file, long length) {
+        this.file = file;
+        this.length = length;
+    }
+
+    /**
+     * Body file.
+     * @return file
+     */
+    File getFile() {
+        return file;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        if (length > Integer.MAX_VALUE) {
+            // Too large to map at once.
+            return Files.newInputStream(file.toPath());
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            // The mapping stays valid after the channel is closed.
+            return new ByteBufferInputStream(channel.map(FileChannel.MapMode.READ_ONLY, 0, length));
+        }
+    }
+
+    @Override
+    public long length() {
+        return length;
+    }
+
+    @Override
+    public void dispose() {
+        try {
+            Files.deleteIfExists(file.toPath());
+        } catch (IOException e) {
+            log.debug("Failed to delete cache file. file:{}", file, e);
+        }
+    }
+
+    /**
+     * InputStream over a ByteBuffer.
+     */
+    private static final class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public long skip(long n) {
+            int skipped = (int) Math.max(0, Math.min(n, buffer.remaining()));
+            buffer.position(buffer.position() + skipped);
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
@@ -0,0 +1,414 @@
+/**
+ * personium.io
+ * Copyright 2026 Personium Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.httpclient;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpException;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.conn.DnsResolver;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestExecutor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.personium.engine.extension.httpclient.MetricsRecorder.Phase;
+
+/**
+ * Holder of the metrics recorder, and the hooks that measure the phases of requests.
+ * Metrics are disabled by default. Then the recorder is {@link MetricsRecorder#NOOP}
+ * and the hooks cost one volatile read.
+ */
+final class Metrics {
+
+    /** Logger. */
+    private static final Logger log = LoggerFactory.getLogger(Metrics.class);
+
+    /** Property keys (Ext_HttpClient.properties). */
+    static final String PROP_ENABLED = "metrics.enabled";
+    static final String PROP_JMX = "metrics.jmx";
+    static final String PROP_RECORDER = "metrics.recorder";
+    static final String PROP_MAX_HOSTS = "metrics.maxHosts";
+
+    /** Default values. */
+    static final int DEFAULT_MAX_HOSTS = 1000;
+
+    /** Default ports. */
+    private static final int HTTP_PORT = 80;
+    private static final int HTTPS_PORT = 443;
+
+    /**
+     * Resolution time of the host the current thread is connecting to, recorded by the connect hook,
+     * which knows the scheme and port of the host key.
+     */
+    private static final ThreadLocal<Long> PENDING_DNS = new ThreadLocal<>();
+
+    /** Current recorder. */
+    private static volatile MetricsRecorder recorder = MetricsRecorder.NOOP;
+
+    /** Built-in recorder registered to JMX, or null. */
+    private static JmxMetricsRecorder jmxRecorder;
+
+    /** Whether init has been done. */
+    private static boolean initialized = false;
+
+    private Metrics() {
+    }
+
+    /**
+     * Set up the recorders from the extension properties once.
+     * @param properties extension properties
+     */
+    static synchronized void init(Properties properties) {
+        if (initialized) {
+            return;
+        }
+        initialized = true;
+        if (properties == null || !Boolean.parseBoolean(properties.getProperty(PROP_ENABLED))) {
+            return;
+        }
+        List<MetricsRecorder> recorders = new ArrayList<>();
+        if (!"false".equalsIgnoreCase(properties.getProperty(PROP_JMX))) {
+            JmxMetricsRecorder jmx = new JmxMetricsRecorder(
+                    ClientConfig.getInt(properties, PROP_MAX_HOSTS, DEFAULT_MAX_HOSTS));
+            try {
+                MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+                ObjectName name = new ObjectName(HttpClientMetricsMXBean.OBJECT_NAME);
+                if (server.isRegistered(name)) {
+                    server.unregisterMBean(name);
+                }
+                server.registerMBean(jmx, name);
+                jmxRecorder = jmx;
+                recorders.add(jmx);
+            } catch (JMException e) {
+                log.warn("Failed to register the metrics MBean.", e);
+            }
+        }
+        String className = properties.getProperty(PROP_RECORDER);
+        if (className != null && !className.trim().isEmpty()) {
+            try {
+                recorders.add(Class.forName(className.trim(), true, Metrics.class.getClassLoader())
+                        .asSubclass(MetricsRecorder.class).getConstructor().newInstance());
+            } catch (ReflectiveOperationException | ClassCastException | LinkageError e) {
+                log.warn("Failed to create the metrics recorder [{}].", className, e);
+            }
+        }
+        if (recorders.size() == 1) {
+            recorder = recorders.get(0);
+        } else if (!recorders.isEmpty()) {
+            recorder = new CompositeRecorder(recorders.toArray(new MetricsRecorder[0]));
+        }
+        log.info("Metrics enabled. recorders:{}", recorders.size());
+    }
+
+    /**
+     * Return the current recorder.
+     * @return recorder
+     */
+    static MetricsRecorder recorder() {
+        return recorder;
+    }
+
+    /**
+     * Return whether metrics are recorded.
+     * @return true if enabled
+     */
+    static boolean isEnabled() {
+        return recorder != MetricsRecorder.NOOP;
+    }
+
+    /**
+     * Disable metrics and unregister the MBean. init can be called again after this.
+     */
+    static synchronized void shutdown() {
+        recorder = MetricsRecorder.NOOP;
+        initialized = false;
+        if (jmxRecorder != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer()
+                        .unregisterMBean(new ObjectName(HttpClientMetricsMXBean.OBJECT_NAME));
+            } catch (JMException e) {
+                log.debug("Failed to unregister the metrics MBean.", e);
+            }
+            jmxRecorder = null;
+        }
+    }
+
+    /**
+     * Return the host key of the metrics: scheme, host and port, without the default port.
+     * @param uri request URI
+     * @return host key
+     */
+    static String hostKey(URI uri) {
+        return hostKey(uri.getScheme(), uri.getHost(), uri.getPort());
+    }
+
+    /**
+     * Return the host key of the metrics: scheme, host and port, without the default port.
+     * @param scheme scheme
+     * @param hostname host name
+     * @param port port, or -1
+     * @return host key
+     */
+    static String hostKey(String scheme, String hostname, int port) {
+        boolean defaultPort = port < 0 || "http".equalsIgnoreCase(scheme) && port == HTTP_PORT
+                || "https".equalsIgnoreCase(scheme) && port == HTTPS_PORT;
+        return defaultPort ? scheme + "://" + hostname : scheme + "://" + hostname + ":" + port;
+    }
+
+    /**
+     * Wrap the response entity to record the body phase and size when it is read to the end or closed.
+     * @param entity entity, or null
+     * @param host scheme, host and port
+     * @return wrapped entity
+     */
+    static HttpEntity meter(HttpEntity entity, String host) {
+        if (entity == null || !isEnabled()) {
+            return entity;
+        }
+        return new MeteredEntity(entity, host);
+    }
+
+    /**
+     * Record the resolution time measured by TimedDnsResolver on this thread, if any.
+     * The connection operator resolves the host and connects the socket on the same thread.
+     * @param host scheme, host and port
+     */
+    static void recordDns(String host) {
+        Long nanos = PENDING_DNS.get();
+        if (nanos != null) {
+            PENDING_DNS.remove();
+            recorder.recordPhase(host, Phase.DNS, nanos);
+        }
+    }
+
+    /**
+     * DNS resolver that measures the resolution time.
+     * The time is recorded when the socket is connected, under the same host key as the other phases.
+     */
+    static final class TimedDnsResolver implements DnsResolver {
+        private final DnsResolver delegate;
+
+        TimedDnsResolver(DnsResolver delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public InetAddress[] resolve(String host) throws UnknownHostException {
+            MetricsRecorder current = recorder;
+            if (current == MetricsRecorder.NOOP) {
+                return delegate.resolve(host);
+            }
+            long start = System.nanoTime();
+            try {
+                InetAddress[] addresses = delegate.resolve(host);
+                PENDING_DNS.set(System.nanoTime() - start);
+                return addresses;
+            } catch (UnknownHostException | RuntimeException e) {
+                PENDING_DNS.remove();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Plain socket factory that records the connect time.
+     * The TLS socket factory records its own phases (see SSLSocketFactories).
+     */
+    static final class TimedPlainSocketFactory implements ConnectionSocketFactory {
+        private final PlainConnectionSocketFactory delegate = PlainConnectionSocketFactory.getSocketFactory();
+
+        @Override
+        public Socket createSocket(HttpContext context) throws IOException {
+            return delegate.createSocket(context);
+        }
+
+        @Override
+        public Socket connectSocket(int connectTimeout, Socket sock, HttpHost host, InetSocketAddress remoteAddress,
+                InetSocketAddress localAddress, HttpContext context) throws IOException {
+            MetricsRecorder current = recorder;
+            if (current == MetricsRecorder.NOOP) {
+                return delegate.connectSocket(connectTimeout, sock, host, remoteAddress, localAddress, context);
+            }
+            String key = hostKey(host.getSchemeName(), host.getHostName(), host.getPort());
+            recordDns(key);
+            long start = System.nanoTime();
+            Socket socket = delegate.connectSocket(connectTimeout, sock, host, remoteAddress, localAddress, context);
+            current.recordPhase(key, Phase.CONNECT, System.nanoTime() - start);
+            return socket;
+        }
+    }
+
+    /**
+     * Request executor that records the time to first byte.
+     * It runs once the connection is established, so the time does not include
+     * leasing the connection, DNS, connect or TLS, which are recorded as their own phases.
+     */
+    static final class TimedRequestExecutor extends HttpRequestExecutor {
+        @Override
+        public HttpResponse execute(HttpRequest request, HttpClientConnection conn, HttpContext context)
+                throws IOException, HttpException {
+            MetricsRecorder current = recorder;
+            if (current == MetricsRecorder.NOOP) {
+                return super.execute(request, conn, context);
+            }
+            long start = System.nanoTime();
+            HttpResponse response = super.execute(request, conn, context);
+            HttpHost target = HttpClientContext.adapt(context).getTargetHost();
+            if (target != null) {
+                current.recordPhase(hostKey(target.getSchemeName(), target.getHostName(), target.getPort()),
+                        Phase.TTFB, System.nanoTime() - start);
+            }
+            return response;
+        }
+    }
+
+    /**
+     * Entity that records the body phase and size.
+     */
+    private static final class MeteredEntity extends HttpEntityWrapper {
+        private final String host;
+        private final long start = System.nanoTime();
+        private boolean recorded = false;
+        private long bytes = 0;
+
+        MeteredEntity(HttpEntity wrapped, String host) {
+            super(wrapped);
+            this.host = host;
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            return new FilterInputStream(super.getContent()) {
+                @Override
+                public int read() throws IOException {
+                    int b = super.read();
+                    if (b < 0) {
+                        record();
+                    } else {
+                        bytes++;
+                    }
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] buf, int off, int len) throws IOException {
+                    int n = super.read(buf, off, len);
+                    if (n < 0) {
+                        record();
+                    } else {
+                        bytes += n;
+                    }
+                    return n;
+                }
+
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        record();
+                    }
+                }
+            };
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            try (InputStream in = getContent()) {
+                byte[] buf = new byte[8192];
+                int n;
+                while ((n = in.read(buf)) != -1) {
+                    out.write(buf, 0, n);
+                }
+            }
+        }
+
+        private synchronized void record() {
+            if (recorded) {
+                return;
+            }
+            recorded = true;
+            MetricsRecorder current = recorder;
+            current.recordPhase(host, Phase.BODY, System.nanoTime() - start);
+            current.recordResponseSize(host, bytes);
+        }
+    }
+
+    /**
+     * Recorder that forwards to several recorders.
+     */
+    private static final class CompositeRecorder implements MetricsRecorder {
+        private final MetricsRecorder[] recorders;
+
+        CompositeRecorder(MetricsRecorder[] recorders) {
+            this.recorders = recorders;
+        }
+
+        @Override
+        public void recordRequest(String host, String method, int status) {
+            for (MetricsRecorder r : recorders) {
+                r.recordRequest(host, method, status);
+            }
+        }
+
+        @Override
+        public void recordError(String host, String method, Throwable error) {
+            for (MetricsRecorder r : recorders) {
+                r.recordError(host, method, error);
+            }
+        }
+
+        @Override
+        public void recordPhase(String host, Phase phase, long nanos) {
+            for (MetricsRecorder r : recorders) {
+                r.recordPhase(host, phase, nanos);
+            }
+        }
+
+        @Override
+        public void recordResponseSize(String host, long bytes) {
+            for (MetricsRecorder r : recorders) {
+                r.recordResponseSize(host, bytes);
+            }
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/**
+ * personium.io
+ * Copyright 2026 Personium Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.httpclient;
+
+/**
+ * Receives the measurements of outgoing requests.
+ * An implementation can be plugged in with "metrics.recorder" of the extension properties,
+ * for example to forward the measurements to a Micrometer registry.
+ * Implementations are called on the request threads and must be thread safe and fast.
+ * They need a public constructor with no parameters.
+ */
+public interface MetricsRecorder {
+
+    /**
+     * Phases of a request.
+     */
+    enum Phase {
+        /** Host name resolution. */
+        DNS,
+        /** TCP connect. */
+        CONNECT,
+        /** TLS handshake. */
+        TLS,
+        /**
+         * From sending the request on the established connection to receiving the response headers.
+         * Over HTTP/2 it includes opening a new connection, as the JDK client does not report the other phases.
+         */
+        TTFB,
+        /** Reading the response body. */
+        BODY
+    }
+
+    /** Recorder that does nothing. */
+    MetricsRecorder NOOP = new MetricsRecorder() {
+        @Override
+        public void recordRequest(String host, String method, int status) {
+        }
+
+        @Override
+        public void recordError(String host, String method, Throwable error) {
+        }
+
+        @Override
+        public void recordPhase(String host, Phase phase, long nanos) {
+        }
+
+        @Override
+        public void recordResponseSize(String host, long bytes) {
+        }
+    };
+
+    /**
+     * Record a request that received a response.
+     * @param host scheme, host and port
+     * @param method request method
+     * @param status status code
+     */
+    void recordRequest(String host, String method, int status);
+
+    /**
+     * Record a request that failed without a response.
+     * @param host scheme, host and port
+     * @param method request method
+     * @param error error
+     */
+    void recordError(String host, String method, Throwable error);
+
+    /**
+     * Record the duration of a phase.
+     * @param host scheme, host and port, or host name for DNS
+     * @param phase phase
+     * @param nanos duration in nanoseconds
+     */
+    void recordPhase(String host, Phase phase, long nanos);
+
+    /**
+     * Record the size of a response body as received.
+     * @param host scheme, host and port
+     * @param bytes size in bytes
+     */
+    void recordResponseSize(String host, long bytes);
+}
@@ -0,0 +1,92 @@
+/**
+ * personium.io
+ * Copyright 2026 Personium Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.httpclient;
+
+import java.time.Duration;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordingStream;
+
+/**
+ * Logs virtual threads that block while pinned to their carrier thread, such as in synchronized blocks
+ * or native frames. A pinned thread holds an OS thread, and many of them defeat virtual threads.
+ * The events are streamed from JFR in the process.
+ */
+final class PinnedThreadMonitor {
+
+    /** Logger. */
+    private static final Logger log = LoggerFactory.getLogger(PinnedThreadMonitor.class);
+
+    /** JFR event of a virtual thread that blocked while pinned. */
+    private static final String PINNED_EVENT = "jdk.VirtualThreadPinned";
+
+    /** Frames of a pinned stack logged. */
+    private static final int MAX_FRAMES = 20;
+
+    /** Event stream. */
+    private final RecordingStream stream;
+
+    private PinnedThreadMonitor(RecordingStream stream) {
+        this.stream = stream;
+    }
+
+    /**
+     * Start logging pinned virtual threads.
+     * @param threshold milliseconds of blocking to log
+     * @return monitor, or null if JFR is not available
+     */
+    static PinnedThreadMonitor start(long threshold) {
+        try {
+            RecordingStream stream = new RecordingStream();
+            stream.enable(PINNED_EVENT).withThreshold(Duration.ofMillis(threshold)).withStackTrace();
+            stream.onEvent(PINNED_EVENT, PinnedThreadMonitor::log);
+            stream.startAsync();
+            return new PinnedThreadMonitor(stream);
+        } catch (RuntimeException | LinkageError e) {
+            log.warn("Failed to start the pinned thread monitor. JFR is not available.", e);
+            return null;
+        }
+    }
+
+    /**
+     * Stop logging.
+     */
+    void close() {
+        stream.close();
+    }
+
+    private static void log(RecordedEvent event) {
+        StringBuilder stack = new StringBuilder();
+        if (event.getStackTrace() != null) {
+            int count = 0;
+            for (RecordedFrame frame : event.getStackTrace().getFrames()) {
+                if (count++ == MAX_FRAMES) {
+                    stack.append(System.lineSeparator()).append("\t...");
+                    break;
+                }
+                stack.append(System.lineSeparator()).append("\tat ")
+                        .append(frame.getMethod().getType().getName()).append('.')
+                        .append(frame.getMethod().getName()).append(':').append(frame.getLineNumber());
+            }
+        }
+        log.warn("Virtual thread pinned for {} ms.{}", event.getDuration().toMillis(), stack);
+    }
+}
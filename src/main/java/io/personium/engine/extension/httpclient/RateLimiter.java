@@ -0,0 +1,157 @@
+/**
+ * personium.io
+ * Copyright 2026 Personium Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.httpclient;
+
+import java.util.Locale;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Token bucket rate limiter shared by the hosts that match a rule, implemented as GCRA
+ * (generic cell rate algorithm): the state is a single theoretical arrival time updated with CAS,
+ * so acquiring takes no lock.
+ * <p>
+ * Rules are read from "rateLimit.rules", as comma separated "pattern:permitsPerSecond[:burst]".
+ * The pattern is a host name, "*.domain" for its subdomains, or "*" for all hosts.
+ * The first rule that matches the host applies.
+ */
+final class RateLimiter {
+
+    /** Logger. */
+    private static final Logger log = LoggerFactory.getLogger(RateLimiter.class);
+
+    /** Property keys (Ext_HttpClient.properties). */
+    static final String PROP_RULES = "rateLimit.rules";
+    static final String PROP_MAX_WAIT = "rateLimit.maxWait";
+
+    /** Default values. */
+    static final int DEFAULT_MAX_WAIT = 0;
+
+    /** Shared limiters. Key is the rule. */
+    private static final ConcurrentMap<String, RateLimiter> LIMITERS = new ConcurrentHashMap<>();
+
+    /** Nanoseconds between permits. */
+    private final long interval;
+
+    /** Nanoseconds a permit can be taken ahead of its time, for the burst. */
+    private final long tolerance;
+
+    /** Theoretical arrival time of the next permit, in System.nanoTime(). */
+    private final AtomicLong arrival;
+
+    /**
+     * Constructor.
+     * @param permitsPerSecond permits per second
+     * @param burst permits that can be taken at once
+     */
+    RateLimiter(double permitsPerSecond, int burst) {
+        this.interval = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / permitsPerSecond));
+        this.tolerance = interval * (Math.max(burst, 1) - 1);
+        this.arrival = new AtomicLong(System.nanoTime());
+    }
+
+    /**
+     * Return the shared limiter of the first rule that matches the host.
+     * @param hostName host name
+     * @param properties extension properties
+     * @return limiter, or null if no rule matches
+     */
+    static RateLimiter get(String hostName, Properties properties) {
+        String rules = properties == null ? null : properties.getProperty(PROP_RULES);
+        if (hostName == null || rules == null || rules.trim().isEmpty()) {
+            return null;
+        }
+        String host = hostName.toLowerCase(Locale.ROOT);
+        for (String rule : rules.split(",")) {
+            String[] fields = rule.trim().split(":");
+            if (fields.length < 2 || !matches(fields[0].trim().toLowerCase(Locale.ROOT), host)) {
+                continue;
+            }
+            try {
+                double permitsPerSecond = Double.parseDouble(fields[1].trim());
+                int burst = fields.length > 2 ? Integer.parseInt(fields[2].trim()) : 1;
+                if (permitsPerSecond > 0 && burst > 0) {
+                    return LIMITERS.computeIfAbsent(rule.trim(), key -> new RateLimiter(permitsPerSecond, burst));
+                }
+            } catch (NumberFormatException e) {
+                log.debug("Invalid number format.", e);
+            }
+            log.warn("Property [{}] has an invalid rule: {}. Ignored.", PROP_RULES, rule);
+        }
+        return null;
+    }
+
+    /**
+     * Drop all limiters.
+     */
+    static void clear() {
+        LIMITERS.clear();
+    }
+
+    private static boolean matches(String pattern, String host) {
+        if ("*".equals(pattern)) {
+            return true;
+        }
+        if (pattern.startsWith("*.")) {
+            return host.endsWith(pattern.substring(1));
+        }
+        return pattern.equals(host);
+    }
+
+    /**
+     * Take a permit, waiting at most maxWait for it.
+     * @param maxWait max milliseconds to wait. 0: do not wait
+     * @return false if no permit is available in time
+     * @throws InterruptedException interrupted while waiting
+     */
+    boolean tryAcquire(long maxWait) throws InterruptedException {
+        long wait = reserve(TimeUnit.MILLISECONDS.toNanos(maxWait));
+        if (wait < 0) {
+            return false;
+        }
+        if (wait > 0) {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+        return true;
+    }
+
+    /**
+     * Reserve the next permit if it is available within maxWait.
+     * @param maxWait max nanoseconds to wait
+     * @return nanoseconds to wait for the reserved permit, or -1 if not reserved
+     */
+    long reserve(long maxWait) {
+        long now = System.nanoTime();
+        while (true) {
+            long current = arrival.get();
+            long start = current - now > 0 ? current : now;
+            long wait = start - tolerance - now;
+            if (wait > maxWait) {
+                return -1;
+            }
+            if (arrival.compareAndSet(current, start + interval)) {
+                return Math.max(wait, 0);
+            }
+        }
+    }
+}
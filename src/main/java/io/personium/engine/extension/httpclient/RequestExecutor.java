@@ -0,0 +1,115 @@
+/**
+ * personium.io
+ * Copyright 2026 Personium Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.httpclient;
+
+import java.io.IOException;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Executes a request through the guard of its host, retrying transient failures by the policy.
+ */
+final class RequestExecutor {
+
+    /** Logger. */
+    private static final Logger log = LoggerFactory.getLogger(RequestExecutor.class);
+
+    private RequestExecutor() {
+    }
+
+    /**
+     * Execute the request.
+     * @param client HttpClient
+     * @param request request
+     * @param properties extension properties
+     * @param policy retry policy
+     * @param deadline System.nanoTime() after which no attempt is started. 0: no limit
+     * @return response of the last attempt
+     * @throws IOException failure of the last attempt, or the call was rejected
+     * @throws InterruptedException interrupted while waiting to retry
+     */
+    static CloseableHttpResponse execute(CloseableHttpClient client, HttpRequestBase request,
+            Properties properties, RetryPolicy policy, long deadline) throws IOException, InterruptedException {
+        HostGuard guard = HostGuard.get(request, properties);
+        guard.depositRetryToken();
+        boolean retryable = policy.isRetryable(request);
+        MetricsRecorder recorder = Metrics.recorder();
+        String host = recorder == MetricsRecorder.NOOP ? null : Metrics.hostKey(request.getURI());
+        for (int attempt = 1;; attempt++) {
+            HostGuard.Permit permit = guard.acquire();
+            CloseableHttpResponse res;
+            try {
+                res = client.execute(request);
+            } catch (IOException e) {
+                permit.release(false);
+                if (host != null) {
+                    recorder.recordError(host, request.getMethod(), e);
+                }
+                long backoff = retryable && policy.isRetryable(e) ? policy.backoff(attempt) : -1;
+                if (!canRetry(request, policy, guard, attempt, backoff, deadline)) {
+                    throw e;
+                }
+                log.info("Retry {} {} in {}ms. attempt:{} cause:{}",
+                        request.getMethod(), request.getURI(), backoff, attempt, e.toString());
+                Thread.sleep(backoff);
+                continue;
+            } catch (RuntimeException e) {
+                permit.release(false);
+                throw e;
+            }
+            permit.release(res);
+            if (host != null) {
+                recorder.recordRequest(host, request.getMethod(), res.getStatusLine().getStatusCode());
+                res.setEntity(Metrics.meter(res.getEntity(), host));
+            }
+            if (retryable && policy.isRetryable(res)) {
+                long backoff = policy.backoff(res, attempt);
+                if (canRetry(request, policy, guard, attempt, backoff, deadline)) {
+                    log.info("Retry {} {} in {}ms. attempt:{} status:{}",
+                            request.getMethod(), request.getURI(), backoff, attempt,
+                            res.getStatusLine().getStatusCode());
+                    // Release the connection for the next attempt.
+                    EntityUtils.consumeQuietly(res.getEntity());
+                    res.close();
+                    Thread.sleep(backoff);
+                    continue;
+                }
+            }
+            return res;
+        }
+    }
+
+    /**
+     * Whether another attempt is allowed.
+     * The retry budget is checked last, so a token is taken only when the request is retried.
+     */
+    private static boolean canRetry(HttpRequestBase request, RetryPolicy policy, HostGuard guard, int attempt,
+            long backoff, long deadline) {
+        return backoff >= 0
+                && attempt < policy.getMaxAttempts()
+                && !request.isAborted()
+                && (deadline == 0 || System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(backoff) - deadline < 0)
+                && guard.tryRetry();
+    }
+}
@@ -0,0 +1,143 @@
+/**
+ * personium.io
+ * Copyright 2026 Personium Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.httpclient;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Properties;
+
+import org.apache.http.client.cache.HttpCacheStorage;
+import org.apache.http.client.cache.ResourceFactory;
+import org.apache.http.impl.client.cache.CacheConfig;
+import org.apache.http.impl.client.cache.CachingHttpClientBuilder;
+import org.apache.http.impl.client.cache.CachingHttpClients;
+import org.apache.http.impl.client.cache.HeapResourceFactory;
+import org.apache.http.util.TextUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Process-wide HTTP response cache (RFC 7234) shared by clients created with the "Cache" option.
+ * Entries are held in memory, and optionally written through to a local directory
+ * where large bodies are stored in files instead of on the heap.
+ */
+final class ResponseCache {
+
+    /** Logger. */
+    private static final Logger log = LoggerFactory.getLogger(ResponseCache.class);
+
+    /** Property keys (Ext_HttpClient.properties). */
+    static final String PROP_MAX_ENTRIES = "cache.maxEntries";
+    static final String PROP_MAX_BYTES = "cache.maxBytes";
+    static final String PROP_MAX_OBJECT_SIZE = "cache.maxObjectSize";
+    static final String PROP_DISK_DIRECTORY = "cache.disk.directory";
+    static final String PROP_DISK_MAX_BYTES = "cache.disk.maxBytes";
+    static final String PROP_DISK_MAX_OBJECT_SIZE = "cache.disk.maxObjectSize";
+    static final String PROP_DISK_MIN_OBJECT_SIZE = "cache.disk.minObjectSize";
+
+    /** Default values. */
+    static final int DEFAULT_MAX_ENTRIES = 1000;
+    static final int DEFAULT_MAX_BYTES = 64 * 1024 * 1024;
+    static final int DEFAULT_MAX_OBJECT_SIZE = 1024 * 1024;
+    static final long DEFAULT_DISK_MAX_BYTES = 1024L * 1024 * 1024;
+    static final long DEFAULT_DISK_MAX_OBJECT_SIZE = 100L * 1024 * 1024;
+    static final int DEFAULT_DISK_MIN_OBJECT_SIZE = 64 * 1024;
+
+    /** Shared storage. */
+    private static HttpCacheStorage storage;
+
+    /** Shared resource factory. */
+    private static ResourceFactory resourceFactory;
+
+    /** Whether the disk tier is used. */
+    private static boolean diskEnabled;
+
+    private ResponseCache() {
+    }
+
+    /**
+     * Create the builder of a caching client that uses the shared cache.
+     * @param properties extension properties
+     * @return builder
+     */
+    static synchronized CachingHttpClientBuilder custom(Properties properties) {
+        init(properties);
+        return CachingHttpClients.custom()
+                .setCacheConfig(createCacheConfig(properties))
+                .setHttpCacheStorage(storage)
+                .setResourceFactory(resourceFactory);
+    }
+
+    /**
+     * Create the cache configuration.
+     * The cache behaves as a shared cache, so responses to requests with Authorization are
+     * stored only if the server explicitly allows it.
+     * @param properties extension properties
+     * @return cache configuration
+     */
+    private static CacheConfig createCacheConfig(Properties properties) {
+        long maxObjectSize = diskEnabled
+                ? ClientConfig.getLong(properties, PROP_DISK_MAX_OBJECT_SIZE, DEFAULT_DISK_MAX_OBJECT_SIZE)
+                : ClientConfig.getInt(properties, PROP_MAX_OBJECT_SIZE, DEFAULT_MAX_OBJECT_SIZE);
+        return CacheConfig.custom()
+                .setSharedCache(true)
+                .setMaxCacheEntries(ClientConfig.getInt(properties, PROP_MAX_ENTRIES, DEFAULT_MAX_ENTRIES))
+                .setMaxObjectSize(maxObjectSize)
+                .build();
+    }
+
+    /**
+     * Create the shared storage on first use.
+     * If the disk directory is not usable, only the memory tier is used.
+     * @param properties extension properties
+     */
+    private static void init(Properties properties) {
+        if (storage != null) {
+            return;
+        }
+        BoundedHttpCacheStorage memory = new BoundedHttpCacheStorage(
+                ClientConfig.getInt(properties, PROP_MAX_ENTRIES, DEFAULT_MAX_ENTRIES),
+                ClientConfig.getInt(properties, PROP_MAX_BYTES, DEFAULT_MAX_BYTES));
+        storage = memory;
+        resourceFactory = new HeapResourceFactory();
+        diskEnabled = false;
+
+        String directory = properties == null ? null : properties.getProperty(PROP_DISK_DIRECTORY);
+        if (TextUtils.isBlank(directory)) {
+            return;
+        }
+        File dir = new File(directory.trim());
+        try {
+            storage = new DiskHttpCacheStorage(memory, dir,
+                    ClientConfig.getLong(properties, PROP_DISK_MAX_BYTES, DEFAULT_DISK_MAX_BYTES));
+            resourceFactory = new DiskResourceFactory(dir,
+                    ClientConfig.getInt(properties, PROP_DISK_MIN_OBJECT_SIZE, DEFAULT_DISK_MIN_OBJECT_SIZE));
+            diskEnabled = true;
+        } catch (IOException e) {
+            log.warn("Disk cache is disabled. directory:{}", dir, e);
+        }
+    }
+
+    /**
+     * Drop the shared storage. Entries on the disk are kept.
+     */
+    static synchronized void clear() {
+        storage = null;
+        resourceFactory = null;
+        diskEnabled = false;
+    }
+}
@@ -0,0 +1,159 @@
+/**
+ * personium.io
+ * Copyright 2026 Personium Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.httpclient;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.http.Header;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.NativeArray;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+
+/**
+ * Read-only javascript view of response headers.
+ * The properties are built on first access. A header that appears once is a string, and a repeated
+ * header (such as Set-Cookie) is an array of strings in the received order.
+ * Names are as received, and are also found case-insensitively.
+ */
+final class ResponseHeaders extends ScriptableObject {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Headers. */
+    private final transient Header[] headers;
+
+    /** Properties. Built on first access. */
+    private transient Map<String, Object> properties;
+
+    /**
+     * Constructor.
+     * @param headers response headers
+     * @param scope scope to get the prototypes from, or null
+     */
+    ResponseHeaders(Header[] headers, Scriptable scope) {
+        this.headers = headers;
+        if (scope != null) {
+            Scriptable top = ScriptableObject.getTopLevelScope(scope);
+            setParentScope(top);
+            setPrototype(ScriptableObject.getObjectPrototype(top));
+        }
+    }
+
+    @Override
+    public String getClassName() {
+        return "Object";
+    }
+
+    @Override
+    public Object get(String name, Scriptable start) {
+        Object value = find(name);
+        return value != null ? value : NOT_FOUND;
+    }
+
+    @Override
+    public boolean has(String name, Scriptable start) {
+        return find(name) != null;
+    }
+
+    @Override
+    public void put(String name, Scriptable start, Object value) {
+        // Read-only.
+    }
+
+    @Override
+    public void put(int index, Scriptable start, Object value) {
+        // Read-only.
+    }
+
+    @Override
+    public void delete(String name) {
+        // Read-only.
+    }
+
+    @Override
+    public void delete(int index) {
+        // Read-only.
+    }
+
+    @Override
+    public Object[] getIds() {
+        return properties().keySet().toArray();
+    }
+
+    @Override
+    public Object[] getAllIds() {
+        return getIds();
+    }
+
+    private Object find(String name) {
+        Map<String, Object> map = properties();
+        Object value = map.get(name);
+        if (value == null) {
+            for (Map.Entry<String, Object> entry : map.entrySet()) {
+                if (entry.getKey().equalsIgnoreCase(name)) {
+                    return entry.getValue();
+                }
+            }
+        }
+        return value;
+    }
+
+    private Map<String, Object> properties() {
+        if (properties != null) {
+            return properties;
+        }
+        Map<String, List<String>> values = new LinkedHashMap<>();
+        for (Header header : headers) {
+            String name = header.getName();
+            List<String> list = values.get(name);
+            if (list == null) {
+                // Repeated headers with different cases are merged into the first name.
+                for (Map.Entry<String, List<String>> entry : values.entrySet()) {
+                    if (entry.getKey().equalsIgnoreCase(name)) {
+                        list = entry.getValue();
+                        break;
+                    }
+                }
+            }
+            if (list == null) {
+                list = new ArrayList<>(1);
+                values.put(name, list);
+            }
+            list.add(header.getValue());
+        }
+        Map<String, Object> result = new LinkedHashMap<>();
+        for (Map.Entry<String, List<String>> entry : values.entrySet()) {
+            List<String> list = entry.getValue();
+            result.put(entry.getKey(), list.size() == 1 ? list.get(0) : newArray(list.toArray()));
+        }
+        properties = result;
+        return result;
+    }
+
+    private Scriptable newArray(Object[] elements) {
+        Context cx = Context.getCurrentContext();
+        Scriptable scope = getParentScope();
+        if (cx != null && scope != null) {
+            return cx.newArray(scope, elements);
+        }
+        return new NativeArray(elements);
+    }
+}
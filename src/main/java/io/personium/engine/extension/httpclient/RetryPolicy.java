@@ -0,0 +1,238 @@
+/**
+ * personium.io
+ * Copyright 2026 Personium Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.httpclient;
+
+import java.io.IOException;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Properties;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLException;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.utils.DateUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Retry policy: which failures are retried and how long to wait before the next attempt.
+ * The wait grows exponentially with full jitter. "Retry-After" of 429 and 503 responses is honored.
+ * Only idempotent methods are retried unless configured otherwise, and request bodies
+ * that cannot be repeated (streams) are never sent twice.
+ */
+final class RetryPolicy {
+
+    /** Logger. */
+    private static final Logger log = LoggerFactory.getLogger(RetryPolicy.class);
+
+    /** Property keys (Ext_HttpClient.properties). */
+    static final String PROP_MAX_ATTEMPTS = "retry.maxAttempts";
+    static final String PROP_INITIAL_BACKOFF = "retry.initialBackoff";
+    static final String PROP_MAX_BACKOFF = "retry.maxBackoff";
+    static final String PROP_STATUS_CODES = "retry.statusCodes";
+
+    /** 429 Too Many Requests (RFC 6585). Not defined in HttpStatus. */
+    static final int SC_TOO_MANY_REQUESTS = 429;
+
+    /** Default values. */
+    static final int DEFAULT_MAX_ATTEMPTS = 1;
+    static final int DEFAULT_INITIAL_BACKOFF = 100;
+    static final int DEFAULT_MAX_BACKOFF = 10000;
+    static final int[] DEFAULT_STATUS_CODES = {
+        SC_TOO_MANY_REQUESTS, HttpStatus.SC_BAD_GATEWAY,
+        HttpStatus.SC_SERVICE_UNAVAILABLE, HttpStatus.SC_GATEWAY_TIMEOUT
+    };
+
+    /** Idempotent methods (RFC 7231). */
+    private static final String[] IDEMPOTENT_METHODS = {"GET", "HEAD", "OPTIONS", "PUT", "DELETE", "TRACE"};
+
+    /** Max number of attempts including the first one. 1: no retry. */
+    private final int maxAttempts;
+
+    /** Wait before the first retry in milliseconds. */
+    private final long initialBackoff;
+
+    /** Max wait between attempts in milliseconds. A longer Retry-After is not waited for. */
+    private final long maxBackoff;
+
+    /** Status codes to retry, sorted. */
+    private final int[] statusCodes;
+
+    /** Whether non idempotent methods (POST, PATCH) are retried. */
+    private final boolean retryNonIdempotent;
+
+    /**
+     * Constructor.
+     * @param maxAttempts max number of attempts including the first one
+     * @param initialBackoff wait before the first retry in milliseconds
+     * @param maxBackoff max wait between attempts in milliseconds
+     * @param statusCodes status codes to retry
+     * @param retryNonIdempotent whether non idempotent methods are retried
+     */
+    RetryPolicy(int maxAttempts, long initialBackoff, long maxBackoff, int[] statusCodes,
+            boolean retryNonIdempotent) {
+        this.maxAttempts = maxAttempts;
+        this.initialBackoff = initialBackoff;
+        this.maxBackoff = maxBackoff;
+        this.statusCodes = statusCodes.clone();
+        Arrays.sort(this.statusCodes);
+        this.retryNonIdempotent = retryNonIdempotent;
+    }
+
+    /**
+     * Create the default policy from the extension properties.
+     * @param properties extension properties
+     * @return policy
+     */
+    static RetryPolicy create(Properties properties) {
+        return new RetryPolicy(ClientConfig.getInt(properties, PROP_MAX_ATTEMPTS, DEFAULT_MAX_ATTEMPTS),
+                ClientConfig.getInt(properties, PROP_INITIAL_BACKOFF, DEFAULT_INITIAL_BACKOFF),
+                ClientConfig.getInt(properties, PROP_MAX_BACKOFF, DEFAULT_MAX_BACKOFF),
+                parseStatusCodes(properties == null ? null : properties.getProperty(PROP_STATUS_CODES)),
+                false);
+    }
+
+    /**
+     * Parse comma separated status codes.
+     * @param value status codes
+     * @return status codes, or the default if not set or invalid
+     */
+    private static int[] parseStatusCodes(String value) {
+        if (value == null || value.trim().isEmpty()) {
+            return DEFAULT_STATUS_CODES;
+        }
+        try {
+            return Arrays.stream(value.split(",")).map(String::trim).mapToInt(Integer::parseInt).toArray();
+        } catch (NumberFormatException e) {
+            log.warn("Property [{}] is invalid: {}. Using default value.", PROP_STATUS_CODES, value);
+            return DEFAULT_STATUS_CODES;
+        }
+    }
+
+    int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    long getInitialBackoff() {
+        return initialBackoff;
+    }
+
+    long getMaxBackoff() {
+        return maxBackoff;
+    }
+
+    int[] getStatusCodes() {
+        return statusCodes.clone();
+    }
+
+    boolean isRetryNonIdempotent() {
+        return retryNonIdempotent;
+    }
+
+    /**
+     * Whether the request may be sent again.
+     * @param request request
+     * @return false for non idempotent methods (unless configured) and non repeatable bodies
+     */
+    boolean isRetryable(HttpRequestBase request) {
+        if (maxAttempts <= 1 || request.isAborted()) {
+            return false;
+        }
+        if (request instanceof HttpEntityEnclosingRequest) {
+            HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+            if (entity != null && !entity.isRepeatable()) {
+                return false;
+            }
+        }
+        return retryNonIdempotent || Arrays.asList(IDEMPOTENT_METHODS).contains(request.getMethod());
+    }
+
+    /**
+     * Whether the failure is transient.
+     * Name resolution, TLS and rejections by the circuit breaker or bulkhead are not retried.
+     * @param e failure
+     * @return true to retry
+     */
+    boolean isRetryable(IOException e) {
+        return !(e instanceof UnknownHostException || e instanceof SSLException
+                || e instanceof HostGuard.HostUnavailableException);
+    }
+
+    /**
+     * Whether the response status is to be retried.
+     * @param res response
+     * @return true to retry
+     */
+    boolean isRetryable(HttpResponse res) {
+        return Arrays.binarySearch(statusCodes, res.getStatusLine().getStatusCode()) >= 0;
+    }
+
+    /**
+     * Wait before the next attempt: random between 0 and initialBackoff * 2^(attempt - 1), capped by maxBackoff.
+     * @param attempt number of the attempt that failed, from 1
+     * @return milliseconds
+     */
+    long backoff(int attempt) {
+        long ceiling = initialBackoff << Math.min(attempt - 1, 30);
+        if (ceiling <= 0 || ceiling > maxBackoff) {
+            ceiling = maxBackoff;
+        }
+        return ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+
+    /**
+     * Wait before the next attempt after the response.
+     * @param res response
+     * @param attempt number of the attempt, from 1
+     * @return milliseconds, or -1 if Retry-After is longer than maxBackoff
+     */
+    long backoff(HttpResponse res, int attempt) {
+        long backoff = backoff(attempt);
+        Header retryAfter = res.getFirstHeader(HttpHeaders.RETRY_AFTER);
+        if (retryAfter == null) {
+            return backoff;
+        }
+        long wait = parseRetryAfter(retryAfter.getValue());
+        if (wait > maxBackoff) {
+            return -1;
+        }
+        return Math.max(wait, backoff);
+    }
+
+    /**
+     * Parse Retry-After: delay seconds or HTTP-date.
+     * @param value header value
+     * @return milliseconds, 0 if invalid
+     */
+    private static long parseRetryAfter(String value) {
+        try {
+            return TimeUnit.SECONDS.toMillis(Math.max(0, Long.parseLong(value.trim())));
+        } catch (NumberFormatException e) {
+            Date date = DateUtils.parseDate(value);
+            return date == null ? 0 : Math.max(0, date.getTime() - System.currentTimeMillis());
+        }
+    }
+}
@@ -0,0 +1,269 @@
+/**
+ * personium.io
+ * Copyright 2026 Personium Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.httpclient;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+import org.apache.http.HttpHost;
+import org.apache.http.conn.ssl.DefaultHostnameVerifier;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.conn.util.PublicSuffixMatcherLoader;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.ssl.SSLContexts;
+import org.apache.http.util.TextUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.personium.engine.extension.httpclient.MetricsRecorder.Phase;
+
+/**
+ * Shared SSL contexts and socket factories.
+ * SSL contexts are created once per process so that their client session cache
+ * is shared and repeated calls to the same host can resume TLS sessions.
+ */
+final class SSLSocketFactories {
+
+    /** Logger. */
+    private static final Logger log = LoggerFactory.getLogger(SSLSocketFactories.class);
+
+    /** Property keys (Ext_HttpClient.properties). */
+    static final String PROP_SESSION_CACHE_SIZE = "tls.sessionCacheSize";
+    static final String PROP_SESSION_TIMEOUT = "tls.sessionTimeout";
+
+    /** Default values. */
+    static final int DEFAULT_SESSION_CACHE_SIZE = 1000;
+    static final int DEFAULT_SESSION_TIMEOUT = 86400;
+
+    /** Shared socket factories. Key is the verification flag and the system properties. */
+    private static final ConcurrentMap<String, SSLConnectionSocketFactory> FACTORIES = new ConcurrentHashMap<>();
+
+    /** SSLContext that skips ssl verification. */
+    private static volatile SSLContext skipSSLVerifyContext;
+
+    /** Handshake counters. */
+    private static final LongAdder FULL_HANDSHAKES = new LongAdder();
+    private static final LongAdder RESUMED_HANDSHAKES = new LongAdder();
+
+    private SSLSocketFactories() {
+    }
+
+    /**
+     * Return the shared socket factory for https.
+     * Same as HttpClientBuilder#useSystemProperties() would create.
+     * @param ignoreHostnameVerification true:Ignore ssl verification
+     * @param properties extension properties
+     * @return socket factory
+     * @throws GeneralSecurityException SSL context could not be created
+     */
+    static SSLConnectionSocketFactory get(boolean ignoreHostnameVerification, Properties properties)
+            throws GeneralSecurityException {
+        String protocols = System.getProperty("https.protocols");
+        String cipherSuites = System.getProperty("https.cipherSuites");
+        String key = ignoreHostnameVerification + "|" + protocols + "|" + cipherSuites;
+        SSLConnectionSocketFactory factory = FACTORIES.get(key);
+        if (factory != null) {
+            return factory;
+        }
+        factory = new CountingSSLConnectionSocketFactory(getSSLContext(ignoreHostnameVerification, properties),
+                split(protocols), split(cipherSuites), createHostnameVerifier());
+        SSLConnectionSocketFactory existing = FACTORIES.putIfAbsent(key, factory);
+        return existing != null ? existing : factory;
+    }
+
+    /**
+     * Return the shared SSLContext.
+     * @param ignoreHostnameVerification true:Ignore ssl verification
+     * @param properties extension properties
+     * @return SSL context
+     * @throws GeneralSecurityException SSL context could not be created
+     */
+    static SSLContext getSSLContext(boolean ignoreHostnameVerification, Properties properties)
+            throws GeneralSecurityException {
+        if (ignoreHostnameVerification) {
+            return getSkipSSLVerifyContext(properties);
+        }
+        return SSLContexts.createSystemDefault();
+    }
+
+    /**
+     * Create the hostname verifier.
+     * @return hostname verifier
+     */
+    static HostnameVerifier createHostnameVerifier() {
+        return new DefaultHostnameVerifier(PublicSuffixMatcherLoader.getDefault());
+    }
+
+    /**
+     * Return supported protocols from the system property.
+     * @return protocols, or null for default
+     */
+    static String[] getSupportedProtocols() {
+        return split(System.getProperty("https.protocols"));
+    }
+
+    /**
+     * Return supported cipher suites from the system property.
+     * @return cipher suites, or null for default
+     */
+    static String[] getSupportedCipherSuites() {
+        return split(System.getProperty("https.cipherSuites"));
+    }
+
+    /**
+     * Number of full TLS handshakes.
+     * @return count
+     */
+    static long getFullHandshakeCount() {
+        return FULL_HANDSHAKES.sum();
+    }
+
+    /**
+     * Number of TLS handshakes that resumed a cached session.
+     * @return count
+     */
+    static long getResumedHandshakeCount() {
+        return RESUMED_HANDSHAKES.sum();
+    }
+
+    /**
+     * Return the SSLContext that skips ssl verification, creating it on first use.
+     * @param properties extension properties
+     * @return SSL context.
+     * @throws GeneralSecurityException security error
+     */
+    private static SSLContext getSkipSSLVerifyContext(Properties properties) throws GeneralSecurityException {
+        SSLContext sslContext = skipSSLVerifyContext;
+        if (sslContext == null) {
+            synchronized (SSLSocketFactories.class) {
+                sslContext = skipSSLVerifyContext;
+                if (sslContext == null) {
+                    sslContext = createSkipSSLVerifyContext();
+                    SSLSessionContext sessionContext = sslContext.getClientSessionContext();
+                    sessionContext.setSessionCacheSize(ClientConfig.getInt(properties,
+                            PROP_SESSION_CACHE_SIZE, DEFAULT_SESSION_CACHE_SIZE));
+                    sessionContext.setSessionTimeout(ClientConfig.getInt(properties,
+                            PROP_SESSION_TIMEOUT, DEFAULT_SESSION_TIMEOUT));
+                    skipSSLVerifyContext = sslContext;
+                }
+            }
+        }
+        return sslContext;
+    }
+
+    /**
+     * Create and return the SSLContext that skips ssl verification.
+     * @return SSL context.
+     * @throws GeneralSecurityException security error
+     */
+    @SuppressWarnings("PMD.ReturnEmptyArrayRatherThanNull")
+    private static SSLContext createSkipSSLVerifyContext() throws GeneralSecurityException {
+        SSLContext sslContext = SSLContext.getInstance("TLSv1.2");
+        TrustManager tm = new X509TrustManager() {
+            public void checkClientTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+            }
+            public void checkServerTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+            }
+            public X509Certificate[] getAcceptedIssuers() {
+                return null;
+            }
+        };
+        sslContext.init(null, new TrustManager[] {tm}, null);
+        return sslContext;
+    }
+
+    private static String[] split(String s) {
+        if (TextUtils.isBlank(s)) {
+            return null;
+        }
+        return s.split(" *, *");
+    }
+
+    /**
+     * Socket factory that counts full and resumed handshakes, and records the connect and TLS phases.
+     */
+    private static final class CountingSSLConnectionSocketFactory extends SSLConnectionSocketFactory {
+
+        /** Context attribute that passes the handshake time to connectSocket. */
+        private static final String TLS_NANOS = CountingSSLConnectionSocketFactory.class.getName() + ".tlsNanos";
+
+        CountingSSLConnectionSocketFactory(SSLContext sslContext, String[] supportedProtocols,
+                String[] supportedCipherSuites, HostnameVerifier hostnameVerifier) {
+            super(sslContext, supportedProtocols, supportedCipherSuites, hostnameVerifier);
+        }
+
+        @Override
+        public Socket connectSocket(int connectTimeout, Socket socket, HttpHost host, InetSocketAddress remoteAddress,
+                InetSocketAddress localAddress, HttpContext context) throws IOException {
+            if (!Metrics.isEnabled() || context == null) {
+                return super.connectSocket(connectTimeout, socket, host, remoteAddress, localAddress, context);
+            }
+            String key = Metrics.hostKey(host.getSchemeName(), host.getHostName(), host.getPort());
+            Metrics.recordDns(key);
+            long start = System.nanoTime();
+            Socket connected = super.connectSocket(connectTimeout, socket, host, remoteAddress, localAddress, context);
+            long elapsed = System.nanoTime() - start;
+            // The handshake is done in createLayeredSocket, called by super.connectSocket.
+            Object tls = context.removeAttribute(TLS_NANOS);
+            Metrics.recorder().recordPhase(key, Phase.CONNECT, elapsed - (tls instanceof Long ? (Long) tls : 0));
+            return connected;
+        }
+
+        @Override
+        public Socket createLayeredSocket(Socket socket, String target, int port, HttpContext context)
+                throws IOException {
+            long start = System.currentTimeMillis();
+            long startNanos = System.nanoTime();
+            Socket layered = super.createLayeredSocket(socket, target, port, context);
+            if (Metrics.isEnabled()) {
+                long elapsed = System.nanoTime() - startNanos;
+                Metrics.recorder().recordPhase(Metrics.hostKey("https", target, port), Phase.TLS, elapsed);
+                if (context != null) {
+                    context.setAttribute(TLS_NANOS, elapsed);
+                }
+            }
+            if (layered instanceof SSLSocket) {
+                SSLSession session = ((SSLSocket) layered).getSession();
+                // A resumed session keeps the creation time of the original handshake.
+                if (session.getCreationTime() < start) {
+                    RESUMED_HANDSHAKES.increment();
+                    log.debug("TLS session resumed. host:{}", target);
+                } else {
+                    FULL_HANDSHAKES.increment();
+                    log.debug("TLS full handshake. host:{}", target);
+                }
+            }
+            return layered;
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/**
+ * personium.io
+ * Copyright 2026 Personium Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.httpclient;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.ref.Cleaner;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.ContextFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Leak guard for resources handed to scripts.
+ * Registered resources are closed when the script ends (the Rhino Context is released).
+ * If no Context is active, they are closed when the owner becomes unreachable.
+ */
+final class ScriptResources {
+
+    /** Logger. */
+    private static final Logger log = LoggerFactory.getLogger(ScriptResources.class);
+
+    /** Key of the Context thread local. */
+    private static final Object KEY = ScriptResources.class;
+
+    /** Context factories the listener is added to. */
+    private static final Set<ContextFactory> FACTORIES = Collections.newSetFromMap(new WeakHashMap<>());
+
+    /** Cleaner for resources registered outside of a Context. */
+    private static final Cleaner CLEANER = Cleaner.create();
+
+    /** Closes the resources of a released Context. */
+    private static final ContextFactory.Listener LISTENER = new ContextFactory.Listener() {
+        @Override
+        public void contextCreated(Context cx) {
+        }
+
+        @Override
+        public void contextReleased(Context cx) {
+            @SuppressWarnings("unchecked")
+            List<Closeable> resources = (List<Closeable>) cx.getThreadLocal(KEY);
+            if (resources == null) {
+                return;
+            }
+            cx.removeThreadLocal(KEY);
+            for (Closeable resource : resources) {
+                closeQuietly(resource);
+            }
+        }
+    };
+
+    private ScriptResources() {
+    }
+
+    /**
+     * Register the resource to be closed at the end of the script.
+     * Closing an already closed resource must be harmless.
+     * @param owner object handed to the script
+     * @param resource resource to close
+     */
+    static void register(Object owner, Closeable resource) {
+        Context cx = Context.getCurrentContext();
+        if (cx == null || !addListener(cx.getFactory())) {
+            CLEANER.register(owner, () -> closeQuietly(resource));
+            return;
+        }
+        @SuppressWarnings("unchecked")
+        List<Closeable> resources = (List<Closeable>) cx.getThreadLocal(KEY);
+        if (resources == null) {
+            resources = new ArrayList<>();
+            cx.putThreadLocal(KEY, resources);
+        }
+        resources.add(resource);
+    }
+
+    /**
+     * Add the listener to the factory once.
+     * @param factory context factory
+     * @return false if the factory is sealed
+     */
+    private static boolean addListener(ContextFactory factory) {
+        synchronized (FACTORIES) {
+            if (FACTORIES.contains(factory)) {
+                return true;
+            }
+            try {
+                factory.addListener(LISTENER);
+            } catch (IllegalStateException e) {
+                log.debug("ContextFactory is sealed.", e);
+                return false;
+            }
+            FACTORIES.add(factory);
+            return true;
+        }
+    }
+
+    /**
+     * Close the resource ignoring errors.
+     * @param resource resource to close
+     */
+    static void closeQuietly(Closeable resource) {
+        try {
+            resource.close();
+        } catch (IOException e) {
+            log.debug("Failed to close resource.", e);
+        }
+    }
+}
@@ -0,0 +1,240 @@
+/**
+ * personium.io
+ * Copyright 2026 Personium Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.httpclient;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
+import org.apache.http.StatusLine;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.util.EntityUtils;
+
+/**
+ * Coalesces identical concurrent requests into one upstream call.
+ * The first caller executes the request and buffers the response; callers arriving while it is
+ * in flight wait for it, and each caller gets its own copy. Nothing is kept after the call completes.
+ */
+final class SingleFlight {
+
+    /** Headers that are always a part of the key, so responses are never shared between users. */
+    private static final String[] CREDENTIAL_HEADERS = {
+        HttpHeaders.AUTHORIZATION, HttpHeaders.PROXY_AUTHORIZATION, "Cookie"
+    };
+
+    /** Calls in flight. */
+    private static final ConcurrentMap<List<Object>, CompletableFuture<Snapshot>> IN_FLIGHT =
+            new ConcurrentHashMap<>();
+
+    private SingleFlight() {
+    }
+
+    /**
+     * Upstream call.
+     */
+    interface Call {
+        /**
+         * Execute the request.
+         * @return response
+         * @throws IOException I/O error
+         * @throws InterruptedException interrupted
+         */
+        CloseableHttpResponse execute() throws IOException, InterruptedException;
+    }
+
+    /**
+     * Create the key of the request.
+     * @param client client the request is executed with. Shared per configuration
+     * @param request request
+     * @param varyHeaders names of the headers that make requests different. null: all headers.
+     *        The credential headers are always included
+     * @return key
+     */
+    static List<Object> key(Object client, HttpRequestBase request, String[] varyHeaders) {
+        List<String> headers = new ArrayList<>();
+        if (varyHeaders == null) {
+            for (Header header : request.getAllHeaders()) {
+                headers.add(header.getName().toLowerCase(Locale.ROOT) + ":" + header.getValue());
+            }
+        } else {
+            for (String name : varyHeaders) {
+                addHeaders(headers, request, name);
+            }
+            for (String name : CREDENTIAL_HEADERS) {
+                if (!containsIgnoreCase(varyHeaders, name)) {
+                    addHeaders(headers, request, name);
+                }
+            }
+        }
+        Collections.sort(headers);
+        return Arrays.asList(client, request.getMethod(), request.getURI().toString(), headers);
+    }
+
+    private static void addHeaders(List<String> headers, HttpRequestBase request, String name) {
+        for (Header header : request.getHeaders(name)) {
+            headers.add(name.toLowerCase(Locale.ROOT) + ":" + header.getValue());
+        }
+    }
+
+    private static boolean containsIgnoreCase(String[] names, String name) {
+        for (String n : names) {
+            if (name.equalsIgnoreCase(n)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Execute the call, or wait for the identical call in flight.
+     * When the call in flight fails with an error other than I/O, the waiter executes its own call.
+     * @param key key of the request
+     * @param call upstream call
+     * @param deadlineNanos System.nanoTime() by which waiting ends. 0: no limit
+     * @return buffered response of the caller
+     * @throws IOException I/O error of the call. SocketTimeoutException when the deadline passes while waiting
+     * @throws InterruptedException interrupted
+     */
+    static CloseableHttpResponse execute(List<Object> key, Call call, long deadlineNanos)
+            throws IOException, InterruptedException {
+        CompletableFuture<Snapshot> created = new CompletableFuture<>();
+        CompletableFuture<Snapshot> flight = IN_FLIGHT.putIfAbsent(key, created);
+        if (flight == null) {
+            try {
+                Snapshot snapshot = Snapshot.of(call.execute());
+                created.complete(snapshot);
+                return snapshot.toResponse();
+            } catch (IOException | InterruptedException | RuntimeException | Error e) {
+                created.completeExceptionally(e);
+                throw e;
+            } finally {
+                IN_FLIGHT.remove(key, created);
+            }
+        }
+        Snapshot snapshot;
+        try {
+            if (deadlineNanos > 0) {
+                snapshot = flight.get(deadlineNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+            } else {
+                snapshot = flight.get();
+            }
+        } catch (TimeoutException e) {
+            // Same as a timeout of the call itself.
+            throw new SocketTimeoutException("Request deadline exceeded.");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            return Snapshot.of(call.execute()).toResponse();
+        }
+        return snapshot.toResponse();
+    }
+
+    /**
+     * Number of calls in flight.
+     * @return size
+     */
+    static int size() {
+        return IN_FLIGHT.size();
+    }
+
+    /**
+     * Buffered response.
+     */
+    private static final class Snapshot {
+        private final StatusLine statusLine;
+        private final Header[] headers;
+        /** Body, or null if the response has no entity. */
+        private final byte[] body;
+        private final Header contentType;
+        private final Header contentEncoding;
+
+        private Snapshot(StatusLine statusLine, Header[] headers, byte[] body, Header contentType,
+                Header contentEncoding) {
+            this.statusLine = statusLine;
+            this.headers = headers;
+            this.body = body;
+            this.contentType = contentType;
+            this.contentEncoding = contentEncoding;
+        }
+
+        /**
+         * Buffer the response and release its connection.
+         * @param res response
+         * @return snapshot
+         * @throws IOException I/O error while reading the body
+         */
+        static Snapshot of(CloseableHttpResponse res) throws IOException {
+            try {
+                HttpEntity entity = res.getEntity();
+                if (entity == null) {
+                    return new Snapshot(res.getStatusLine(), res.getAllHeaders(), null, null, null);
+                }
+                byte[] body = EntityUtils.toByteArray(entity);
+                return new Snapshot(res.getStatusLine(), res.getAllHeaders(), body != null ? body : new byte[0],
+                        entity.getContentType(), entity.getContentEncoding());
+            } finally {
+                res.close();
+            }
+        }
+
+        /**
+         * Create a copy of the response. The body is shared, and must not be modified.
+         * @return response
+         */
+        CloseableHttpResponse toResponse() {
+            BufferedResponse res = new BufferedResponse(statusLine);
+            res.setHeaders(headers);
+            if (body != null) {
+                ByteArrayEntity entity = new ByteArrayEntity(body);
+                entity.setContentType(contentType);
+                entity.setContentEncoding(contentEncoding);
+                res.setEntity(entity);
+            }
+            return res;
+        }
+    }
+
+    /**
+     * Response without a connection.
+     */
+    private static final class BufferedResponse extends BasicHttpResponse implements CloseableHttpResponse {
+        BufferedResponse(StatusLine statusLine) {
+            super(statusLine);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/**
+ * personium.io
+ * Copyright 2026 Personium Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.httpclient;
+
+import java.util.Properties;
+
+import org.apache.http.client.config.RequestConfig;
+
+/**
+ * Timeouts of a request in milliseconds.
+ * Values are resolved in the order of the extension properties, the constructor options
+ * and the options of the call. 0 means no timeout.
+ */
+final class Timeouts {
+
+    /** Property keys (Ext_HttpClient.properties). */
+    static final String PROP_CONNECT = "timeout.connect";
+    static final String PROP_SOCKET = "timeout.socket";
+    static final String PROP_CONNECTION_REQUEST = "timeout.connectionRequest";
+    static final String PROP_DEADLINE = "timeout.deadline";
+
+    /** Value not set at this level. */
+    static final int UNSET = -1;
+
+    /** Timeouts with no value set. */
+    static final Timeouts NONE = new Timeouts(UNSET, UNSET, UNSET, UNSET);
+
+    /** Timeout until a connection is established. */
+    private final int connect;
+
+    /** Timeout waiting for data. */
+    private final int socket;
+
+    /** Timeout leasing a connection from the pool. */
+    private final int connectionRequest;
+
+    /** Max time of the whole request. The request is aborted after this. */
+    private final int deadline;
+
+    /**
+     * Constructor.
+     * @param connect connect timeout, or UNSET
+     * @param socket socket timeout, or UNSET
+     * @param connectionRequest connection request timeout, or UNSET
+     * @param deadline deadline, or UNSET
+     */
+    Timeouts(int connect, int socket, int connectionRequest, int deadline) {
+        this.connect = connect;
+        this.socket = socket;
+        this.connectionRequest = connectionRequest;
+        this.deadline = deadline;
+    }
+
+    /**
+     * Create the defaults from the extension properties.
+     * @param properties extension properties
+     * @return timeouts
+     */
+    static Timeouts create(Properties properties) {
+        return new Timeouts(ClientConfig.getInt(properties, PROP_CONNECT, 0),
+                ClientConfig.getInt(properties, PROP_SOCKET, 0),
+                ClientConfig.getInt(properties, PROP_CONNECTION_REQUEST, 0),
+                ClientConfig.getInt(properties, PROP_DEADLINE, 0));
+    }
+
+    /**
+     * Return the timeouts overridden with the values set in overrides.
+     * @param overrides timeouts to override with
+     * @return timeouts
+     */
+    Timeouts merge(Timeouts overrides) {
+        if (overrides == NONE) {
+            return this;
+        }
+        return new Timeouts(pick(overrides.connect, connect), pick(overrides.socket, socket),
+                pick(overrides.connectionRequest, connectionRequest), pick(overrides.deadline, deadline));
+    }
+
+    /**
+     * Create the request configuration.
+     * @return request configuration
+     */
+    RequestConfig toRequestConfig() {
+        return RequestConfig.custom()
+                .setConnectTimeout(toConfigValue(connect))
+                .setSocketTimeout(toConfigValue(socket))
+                .setConnectionRequestTimeout(toConfigValue(connectionRequest))
+                .build();
+    }
+
+    /**
+     * Max time of the whole request.
+     * @return milliseconds, 0 or UNSET for no limit
+     */
+    int getDeadline() {
+        return deadline;
+    }
+
+    private static int pick(int value, int defaultValue) {
+        return value == UNSET ? defaultValue : value;
+    }
+
+    /**
+     * RequestConfig treats 0 as infinite and -1 as the system default.
+     * @param value timeout
+     * @return value for RequestConfig
+     */
+    private static int toConfigValue(int value) {
+        return value > 0 ? value : -1;
+    }
+}
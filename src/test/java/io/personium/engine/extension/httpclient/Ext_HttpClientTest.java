@@ -17,6 +17,7 @@
 package io.personium.engine.extension.httpclient;
 
 import static com.github.tomakehurst.wiremock.client.WireMock.*;
+import static com.github.tomakehurst.wiremock.stubbing.Scenario.STARTED;
 import static org.junit.Assert.*;
 
 import java.io.BufferedInputStream;
@@ -29,9 +30,46 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import org.apache.commons.codec.binary.Base64;
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.cache.HttpCacheEntry;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.conn.DnsResolver;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.cache.HeapResource;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.message.BasicStatusLine;
+import org.apache.http.util.EntityUtils;
 import org.json.simple.JSONObject;
 import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
@@ -40,9 +78,17 @@ import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.ContextFactory;
+import org.mozilla.javascript.EcmaError;
+import org.mozilla.javascript.JavaScriptException;
+import org.mozilla.javascript.NativeArray;
 import org.mozilla.javascript.NativeObject;
+import org.mozilla.javascript.Scriptable;
 
 import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import com.github.tomakehurst.wiremock.verification.LoggedRequest;
 
 import io.personium.engine.extension.wrapper.PersoniumInputStream;
 
@@ -94,6 +140,9 @@ public class Ext_HttpClientTest {
     @Rule
     public WireMockRule wireMockRule = new WireMockRule();
 
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
     @BeforeClass
     public static void beforeClass() {
 
@@ -106,7 +155,10 @@ public class Ext_HttpClientTest {
 
     @After
     public void after() {
-
+        // The mock server is restarted for each test, so pooled connections become stale.
+        HttpClientRegistry.shutdown();
+        ResponseCache.clear();
+        HostGuard.clear();
     }
 
     /*
@@ -228,11 +280,142 @@ public class Ext_HttpClientTest {
                 .withHeader(DEFAULT_HEADER_KEY, matching("Overridden")));
     }
 
+    /*
+     * http_get_lazy_body.
+     */
+    @Test
+    public void http_get_lazy_body() {
+        stubFor(get(urlEqualTo(PATH_HTTP_GET_TEXT))
+                .willReturn(aResponse()
+                    .withStatus(200)
+                    .withBody("caf\u00e9".getBytes(StandardCharsets.ISO_8859_1))
+                    .withHeader("Content-Type", "text/plain; charset=ISO-8859-1")));
+
+        Ext_HttpClient ext_httpClient = new Ext_HttpClient();
+        ClientConfig config = ClientConfig.create(false, false, false, ext_httpClient.getProperties());
+        NativeObject result = ext_httpClient.get(MOCK_SERVER_URL + PATH_HTTP_GET_TEXT, new NativeObject(), false);
+        // Released before the body is read.
+        assertEquals(0, HttpClientRegistry.getPoolStats(config).getLeased());
+        assertTrue(result.has("body", result));
+        // Decoded with the charset of Content-Type.
+        assertEquals("caf\u00e9", result.get("body"));
+
+        Context cx = new ContextFactory().enterContext();
+        try {
+            Scriptable scope = cx.initStandardObjects();
+            scope.put("res", scope, ext_httpClient.get(MOCK_SERVER_URL + PATH_HTTP_GET_TEXT, new NativeObject(), false));
+            assertEquals("caf\u00e9", cx.evaluateString(scope, "JSON.parse(JSON.stringify(res)).body", "test", 1, null));
+        } finally {
+            Context.exit();
+        }
+    }
+
+    /*
+     * http_get_json.
+     */
+    @Test
+    public void http_get_json() {
+        stubFor(get(urlEqualTo(PATH_HTTP_GET_TEXT))
+                .willReturn(aResponse()
+                    .withStatus(200)
+                    .withBody("{\"d\":{\"__count\":2,\"results\":[{\"__id\":\"a\",\"Name\":\"x\",\"Tags\":[]},"
+                            + "{\"__id\":\"b\",\"Name\":\"y\",\"Tags\":[\"t\"]}],\"a/b\":{}}}")
+                    .withHeader("Content-Type", "application/json")));
+
+        Ext_HttpClient ext_httpClient = new Ext_HttpClient();
+        ClientConfig config = ClientConfig.create(false, false, false, ext_httpClient.getProperties());
+        Context cx = new ContextFactory().enterContext();
+        try {
+            Scriptable scope = cx.initStandardObjects();
+            ext_httpClient.setParentScope(scope);
+            String url = MOCK_SERVER_URL + PATH_HTTP_GET_TEXT;
+
+            // Whole body.
+            scope.put("res", scope, ext_httpClient.getJson(url, new NativeObject(), null));
+            assertEquals("200", cx.evaluateString(scope, "res.status", "test", 1, null));
+            assertEquals("{\"d\":{\"__count\":2,\"results\":[{\"__id\":\"a\",\"Name\":\"x\",\"Tags\":[]},"
+                    + "{\"__id\":\"b\",\"Name\":\"y\",\"Tags\":[\"t\"]}],\"a/b\":{}}}",
+                    cx.evaluateString(scope, "JSON.stringify(res.body)", "test", 1, null));
+            assertEquals(0, HttpClientRegistry.getPoolStats(config).getLeased());
+
+            // Dotted paths and JSON Pointers, with wildcards.
+            NativeArray paths = (NativeArray) cx.newArray(scope,
+                    new Object[] {"d.__count", "/d/results/*/Name", "d.results.1.Tags", "/d/a~1b", "d.none"});
+            scope.put("res", scope, ext_httpClient.getJson(url, new NativeObject(), paths));
+            assertEquals("{\"d\":{\"__count\":2,\"results\":[{\"Name\":\"x\"},{\"Name\":\"y\",\"Tags\":[\"t\"]}],"
+                    + "\"a/b\":{}}}", cx.evaluateString(scope, "JSON.stringify(res.body)", "test", 1, null));
+            assertEquals(true, cx.evaluateString(scope, "res.body.d.results instanceof Array", "test", 1, null));
+
+            // Nothing selected.
+            scope.put("res", scope, ext_httpClient.getJson(url, new NativeObject(), "d.none"));
+            assertEquals(null, cx.evaluateString(scope, "res.body", "test", 1, null));
+
+            // Not JSON.
+            stubFor(get(urlEqualTo(PATH_HTTP_GET_TEXT))
+                    .willReturn(aResponse().withStatus(200).withBody("<html/>")));
+            try {
+                ext_httpClient.getJson(url, new NativeObject(), null);
+                fail("Not JSON.");
+            } catch (EcmaError e) {
+                assertTrue(e.getMessage().contains("Response body is not JSON."));
+                assertEquals(0, HttpClientRegistry.getPoolStats(config).getLeased());
+            }
+
+            // Not JSON, but an error response.
+            stubFor(get(urlEqualTo(PATH_HTTP_GET_TEXT))
+                    .willReturn(aResponse().withStatus(HttpStatus.SC_NOT_FOUND).withBody("<html/>")));
+            NativeObject result = ext_httpClient.getJson(url, new NativeObject(), null);
+            assertEquals(Integer.toString(HttpStatus.SC_NOT_FOUND), result.get("status"));
+            assertNull(result.get("body"));
+            assertEquals(0, HttpClientRegistry.getPoolStats(config).getLeased());
+        } finally {
+            Context.exit();
+        }
+    }
+
+    /*
+     * http_get_native_headers.
+     */
+    @Test
+    public void http_get_native_headers() {
+        stubFor(get(urlEqualTo(PATH_HTTP_GET_TEXT))
+                .willReturn(aResponse()
+                    .withStatus(200)
+                    .withBody("body content")
+                    .withHeader("Content-Type", "text/plain")
+                    .withHeader("Set-Cookie", "a=1", "b=2")));
+
+        NativeObject parameters = new NativeObject();
+        parameters.put("NativeHeaders", parameters, true);
+        Ext_HttpClient ext_httpClient = new Ext_HttpClient(parameters);
+
+        Context cx = new ContextFactory().enterContext();
+        try {
+            Scriptable scope = cx.initStandardObjects();
+            ext_httpClient.setParentScope(scope);
+            NativeObject result = ext_httpClient.get(MOCK_SERVER_URL + PATH_HTTP_GET_TEXT, new NativeObject(), false);
+            scope.put("res", scope, result);
+
+            assertEquals("text/plain", cx.evaluateString(scope, "res.headers['Content-Type']", "test", 1, null));
+            // Found case-insensitively.
+            assertEquals("text/plain", cx.evaluateString(scope, "res.headers['content-type']", "test", 1, null));
+            // Repeated headers are arrays.
+            assertEquals("a=1;b=2", cx.evaluateString(scope, "res.headers['Set-Cookie'].join(';')", "test", 1, null));
+            // Read-only.
+            assertEquals("text/plain", cx.evaluateString(scope,
+                    "res.headers['Content-Type'] = 'x'; res.headers['Content-Type']", "test", 1, null));
+            assertEquals(Boolean.TRUE, cx.evaluateString(scope,
+                    "JSON.parse(JSON.stringify(res.headers))['Set-Cookie'].length == 2", "test", 1, null));
+        } finally {
+            Context.exit();
+        }
+    }
+
     /*
      * http_get_stream.
      */
     @Test
-    public void http_get_stream() {
+    public void http_get_stream() throws IOException {
         stubFor(get(urlEqualTo(PATH_HTTP_GET_STREAM))
                 .willReturn(aResponse()
                     .withStatus(200)
@@ -258,11 +441,1131 @@ public class Ext_HttpClientTest {
 //        InputStreamToFile(res_body, POST_FILE_PATH, POST_WRITE_FILE);
 
         assertEquals(Integer.toString(HttpStatus.SC_OK), status);
+        assertArrayEquals(new byte[] {1, 2, 3, 4}, readAll(res_body));
 
         verify(getRequestedFor(urlEqualTo(PATH_HTTP_GET_STREAM))
                 .withHeader(HEADER_KEY, matching(HEADER_VALUE)));
     }
 
+    /*
+     * http_get_stream_released_at_end_of_script.
+     */
+    @Test
+    public void http_get_stream_released_at_end_of_script() throws Exception {
+        stubFor(get(urlEqualTo(PATH_HTTP_GET_STREAM))
+                .willReturn(aResponse()
+                    .withStatus(200)
+                    .withBody(new byte[1024 * 1024])
+                    .withHeader("Content-Type", "application/octet-stream")));
+
+        Ext_HttpClient ext_httpClient = new Ext_HttpClient();
+        ClientConfig config = ClientConfig.create(false, false, false, ext_httpClient.getProperties());
+
+        Context cx = new ContextFactory().enterContext();
+        try {
+            NativeObject result = ext_httpClient.get(MOCK_SERVER_URL + PATH_HTTP_GET_STREAM, new NativeObject(), true);
+            PersoniumInputStream res_body = (PersoniumInputStream) result.get("body");
+            assertEquals(0, res_body.read());
+            // The script keeps the connection while the stream is open.
+            assertEquals(1, HttpClientRegistry.getPoolStats(config).getLeased());
+        } finally {
+            Context.exit();
+        }
+        assertEquals(0, HttpClientRegistry.getPoolStats(config).getLeased());
+    }
+
+    /*
+     * shared_client_is_reused.
+     */
+    @Test
+    public void shared_client_is_reused() throws Exception {
+        stubFor(get(urlEqualTo(PATH_HTTP_GET_TEXT))
+                .willReturn(aResponse()
+                    .withStatus(HttpStatus.SC_OK)
+                    .withBody("body content")
+                    .withHeader("Content-Type", "text/plain")));
+
+        NativeObject req_headers = new NativeObject();
+        for (int i = 0; i < 3; i++) {
+            NativeObject result = new Ext_HttpClient().get(MOCK_SERVER_URL + PATH_HTTP_GET_TEXT, req_headers, false);
+            assertEquals(Integer.toString(HttpStatus.SC_OK), (String) result.get("status"));
+        }
+        verify(3, getRequestedFor(urlEqualTo(PATH_HTTP_GET_TEXT)));
+
+        Properties props = new Properties();
+        assertSame(HttpClientRegistry.getClient(ClientConfig.create(false, false, false, props)),
+                HttpClientRegistry.getClient(ClientConfig.create(false, false, false, new Properties())));
+        assertNotSame(HttpClientRegistry.getClient(ClientConfig.create(false, false, false, props)),
+                HttpClientRegistry.getClient(ClientConfig.create(true, false, false, props)));
+        props.setProperty(ClientConfig.PROP_POOL_MAX_PER_ROUTE, "5");
+        assertNotSame(HttpClientRegistry.getClient(ClientConfig.create(false, false, false, new Properties())),
+                HttpClientRegistry.getClient(ClientConfig.create(false, false, false, props)));
+    }
+
+    /*
+     * ssl_socket_factories_are_shared.
+     */
+    @Test
+    public void ssl_socket_factories_are_shared() throws Exception {
+        Properties props = new Properties();
+        assertSame(SSLSocketFactories.get(true, props), SSLSocketFactories.get(true, props));
+        assertSame(SSLSocketFactories.get(false, props), SSLSocketFactories.get(false, props));
+        assertNotSame(SSLSocketFactories.get(true, props), SSLSocketFactories.get(false, props));
+    }
+
+    /*
+     * idle_connections_are_evicted.
+     */
+    @Test
+    public void idle_connections_are_evicted() throws Exception {
+        stubFor(get(urlEqualTo(PATH_HTTP_GET_TEXT))
+                .willReturn(aResponse()
+                    .withStatus(HttpStatus.SC_OK)
+                    .withBody("body content")));
+
+        Properties props = new Properties();
+        props.setProperty(HttpClientRegistry.PROP_IDLE_TIMEOUT, "100");
+        props.setProperty(HttpClientRegistry.PROP_EVICTION_INTERVAL, "50");
+        ClientConfig config = ClientConfig.create(false, false, false, props);
+        try (CloseableHttpResponse res = HttpClientRegistry.getClient(config)
+                .execute(new HttpGet(MOCK_SERVER_URL + PATH_HTTP_GET_TEXT))) {
+            EntityUtils.consume(res.getEntity());
+        }
+        assertEquals(1, HttpClientRegistry.getPoolStats(config).getAvailable());
+        long end = System.currentTimeMillis() + 5000;
+        while (HttpClientRegistry.getPoolStats(config).getAvailable() > 0 && System.currentTimeMillis() < end) {
+            Thread.sleep(50);
+        }
+        assertEquals(0, HttpClientRegistry.getPoolStats(config).getAvailable());
+
+        // Keep-Alive header, or the default.
+        KeepAliveStrategy strategy = new KeepAliveStrategy(props);
+        HttpResponse res = new BasicHttpResponse(HttpVersion.HTTP_1_1, HttpStatus.SC_OK, "OK");
+        assertEquals(KeepAliveStrategy.DEFAULT_KEEP_ALIVE, strategy.getKeepAliveDuration(res, null));
+        res.setHeader("Keep-Alive", "timeout=5, max=100");
+        assertEquals(5000, strategy.getKeepAliveDuration(res, null));
+    }
+
+    /*
+     * http_get_coalesced.
+     */
+    @Test
+    public void http_get_coalesced() throws Exception {
+        stubFor(get(urlEqualTo(PATH_HTTP_GET_TEXT))
+                .willReturn(aResponse()
+                    .withStatus(HttpStatus.SC_OK)
+                    .withFixedDelay(500)
+                    .withHeader("Content-Type", "text/plain")
+                    .withBody("body content")));
+
+        NativeObject coalesce = new NativeObject();
+        coalesce.put("VaryHeaders", coalesce, new NativeArray(new Object[] {"Authorization"}));
+        NativeObject parameters = new NativeObject();
+        parameters.put("Coalesce", parameters, coalesce);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<NativeObject>> futures = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                NativeObject headers = new NativeObject();
+                headers.put("Authorization", headers, i % 2 == 0 ? "Bearer a" : "Bearer b");
+                // Not a vary header.
+                headers.put("X-Request-Id", headers, Integer.toString(i));
+                Ext_HttpClient ext_httpClient = new Ext_HttpClient(parameters);
+                futures.add(executor.submit(
+                        () -> ext_httpClient.get(MOCK_SERVER_URL + PATH_HTTP_GET_TEXT, headers, false)));
+            }
+            List<NativeObject> results = new ArrayList<>();
+            for (Future<NativeObject> future : futures) {
+                results.add(future.get());
+            }
+            for (NativeObject result : results) {
+                assertEquals("200", result.get("status"));
+                assertEquals("body content", result.get("body"));
+            }
+            // Each caller has its own response.
+            assertNotSame(results.get(0), results.get(2));
+        } finally {
+            executor.shutdownNow();
+        }
+        // One call per Authorization.
+        verify(2, getRequestedFor(urlEqualTo(PATH_HTTP_GET_TEXT)));
+        assertEquals(0, SingleFlight.size());
+    }
+
+    /*
+     * http_get_coalesced_credentials.
+     * Requests with different credentials never share a response, even if VaryHeaders does not list them.
+     */
+    @Test
+    public void http_get_coalesced_credentials() throws Exception {
+        stubFor(get(urlEqualTo(PATH_HTTP_GET_TEXT))
+                .willReturn(aResponse()
+                    .withStatus(HttpStatus.SC_OK)
+                    .withFixedDelay(500)
+                    .withHeader("Content-Type", "text/plain")
+                    .withBody("body content")));
+
+        NativeObject coalesce = new NativeObject();
+        coalesce.put("VaryHeaders", coalesce, new NativeArray(new Object[] {"Accept"}));
+        NativeObject parameters = new NativeObject();
+        parameters.put("Coalesce", parameters, coalesce);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<NativeObject>> futures = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                NativeObject headers = new NativeObject();
+                headers.put("Authorization", headers, i % 2 == 0 ? "Bearer a" : "Bearer b");
+                Ext_HttpClient ext_httpClient = new Ext_HttpClient(parameters);
+                futures.add(executor.submit(
+                        () -> ext_httpClient.get(MOCK_SERVER_URL + PATH_HTTP_GET_TEXT, headers, false)));
+            }
+            for (Future<NativeObject> future : futures) {
+                assertEquals("200", future.get().get("status"));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        // One call per Authorization.
+        verify(1, getRequestedFor(urlEqualTo(PATH_HTTP_GET_TEXT)).withHeader("Authorization", equalTo("Bearer a")));
+        verify(1, getRequestedFor(urlEqualTo(PATH_HTTP_GET_TEXT)).withHeader("Authorization", equalTo("Bearer b")));
+
+        String[] varyHeaders = {"Accept"};
+        HttpGet a = new HttpGet(MOCK_SERVER_URL);
+        HttpGet b = new HttpGet(MOCK_SERVER_URL);
+        a.setHeader("X-Request-Id", "1");
+        assertEquals(SingleFlight.key(this, a, varyHeaders), SingleFlight.key(this, b, varyHeaders));
+        for (String name : new String[] {"Authorization", "Proxy-Authorization", "Cookie"}) {
+            a.setHeader(name, "a");
+            b.setHeader(name, "b");
+            assertNotEquals(name, SingleFlight.key(this, a, varyHeaders), SingleFlight.key(this, b, varyHeaders));
+            b.setHeader(name, "a");
+        }
+    }
+
+    /*
+     * coalesced_waiter_deadline.
+     * A waiter whose deadline passes gets a TimeoutError, as the caller of a request of its own does.
+     */
+    @Test
+    public void coalesced_waiter_deadline() throws Exception {
+        List<Object> key = Arrays.asList("coalesced_waiter_deadline");
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<CloseableHttpResponse> leader = executor.submit(() -> SingleFlight.execute(key, () -> {
+                release.await();
+                throw new IOException("Leader failed.");
+            }, 0));
+            while (SingleFlight.size() == 0) {
+                Thread.sleep(10);
+            }
+            try {
+                SingleFlight.execute(key, () -> {
+                    throw new AssertionError("Waiter executed.");
+                }, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(50));
+                fail("No timeout.");
+            } catch (SocketTimeoutException e) {
+                assertTrue(e.getMessage().contains("deadline"));
+            }
+            release.countDown();
+            try {
+                leader.get();
+                fail("Leader did not fail.");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof IOException);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(0, SingleFlight.size());
+    }
+
+    /*
+     * io_executor.
+     */
+    @Test
+    public void io_executor() throws Exception {
+        Properties props = new Properties();
+        props.setProperty(IoExecutors.PROP_PINNED_THRESHOLD, "20");
+        try {
+            IoExecutors.shutdown();
+            // Virtual threads where the runtime has them.
+            ExecutorService executor = IoExecutors.get(props);
+            assertEquals(Runtime.version().feature() >= 21, IoExecutors.isVirtual());
+            assertEquals(IoExecutors.isVirtual(), executor.submit(Ext_HttpClientTest::isVirtualThread).get());
+
+            IoExecutors.shutdown();
+            props.setProperty(IoExecutors.PROP_VIRTUAL_THREADS, "false");
+            executor = IoExecutors.get(props);
+            assertFalse(IoExecutors.isVirtual());
+            assertFalse(executor.submit(Ext_HttpClientTest::isVirtualThread).get());
+        } finally {
+            IoExecutors.shutdown();
+        }
+    }
+
+    private static boolean isVirtualThread() {
+        // Thread#isVirtual is not available on Java 17.
+        return Thread.currentThread().toString().startsWith("VirtualThread");
+    }
+
+    /*
+     * http_get_async.
+     */
+    @Test
+    public void http_get_async() {
+        stubFor(get(urlEqualTo(PATH_HTTP_GET_TEXT))
+                .willReturn(aResponse()
+                    .withStatus(HttpStatus.SC_OK)
+                    .withFixedDelay(500)
+                    .withBody("body content")
+                    .withHeader("Content-Type", "text/plain")));
+        stubFor(post(urlEqualTo(PATH_HTTP_POST_TEXT))
+                .willReturn(aResponse()
+                    .withStatus(HttpStatus.SC_CREATED)
+                    .withFixedDelay(500)
+                    .withBody("created")));
+
+        Ext_HttpClient ext_httpClient = new Ext_HttpClient();
+
+        long start = System.currentTimeMillis();
+        int id1 = ext_httpClient.getAsync(MOCK_SERVER_URL + PATH_HTTP_GET_TEXT, new NativeObject(), false);
+        int id2 = ext_httpClient.getAsync(MOCK_SERVER_URL + PATH_HTTP_GET_TEXT, new NativeObject(), false);
+        int id3 = ext_httpClient.postAsync(
+            MOCK_SERVER_URL + PATH_HTTP_POST_TEXT, new NativeObject(), POST_CONTENT_TYPE, POST_PARAMS_TEXT);
+        Scriptable results = ext_httpClient.awaitAll(new NativeArray(new Object[] {id1, id2, id3, 99}), 0);
+        long elapsed = System.currentTimeMillis() - start;
+
+        NativeObject result1 = (NativeObject) results.get(0, results);
+        NativeObject result3 = (NativeObject) results.get(2, results);
+        NativeObject result4 = (NativeObject) results.get(3, results);
+        assertEquals(Integer.toString(HttpStatus.SC_OK), result1.get("status"));
+        assertEquals("body content", result1.get("body"));
+        assertEquals(Integer.toString(HttpStatus.SC_CREATED), result3.get("status"));
+        assertEquals("created", result3.get("body"));
+        assertNotNull(result4.get("error"));
+        // The requests run concurrently.
+        assertTrue("elapsed " + elapsed, elapsed < 1400);
+    }
+
+    /*
+     * http_batch.
+     */
+    @Test
+    public void http_batch() {
+        stubFor(get(urlEqualTo(PATH_HTTP_GET_TEXT))
+                .willReturn(aResponse()
+                    .withStatus(HttpStatus.SC_OK)
+                    .withBody("body content")));
+        stubFor(get(urlEqualTo(PATH_HTTP_GET_STREAM))
+                .willReturn(aResponse()
+                    .withStatus(HttpStatus.SC_OK)
+                    .withFixedDelay(3000)));
+        stubFor(post(urlEqualTo(PATH_HTTP_POST_TEXT))
+                .willReturn(aResponse()
+                    .withStatus(HttpStatus.SC_CREATED)
+                    .withBody("created")));
+
+        NativeObject getRequest = new NativeObject();
+        getRequest.put("url", getRequest, MOCK_SERVER_URL + PATH_HTTP_GET_TEXT);
+        NativeObject postRequest = new NativeObject();
+        postRequest.put("method", postRequest, "post");
+        postRequest.put("url", postRequest, MOCK_SERVER_URL + PATH_HTTP_POST_TEXT);
+        postRequest.put("contentType", postRequest, POST_CONTENT_TYPE);
+        postRequest.put("body", postRequest, POST_PARAMS_TEXT);
+        NativeObject invalidRequest = new NativeObject();
+        invalidRequest.put("method", invalidRequest, "TRACE");
+        invalidRequest.put("url", invalidRequest, MOCK_SERVER_URL + PATH_HTTP_GET_TEXT);
+        NativeObject slowRequest = new NativeObject();
+        slowRequest.put("url", slowRequest, MOCK_SERVER_URL + PATH_HTTP_GET_STREAM);
+
+        NativeObject options = new NativeObject();
+        options.put("Concurrency", options, 2);
+        options.put("Deadline", options, 1000);
+
+        Ext_HttpClient ext_httpClient = new Ext_HttpClient();
+        Scriptable results = ext_httpClient.batch(
+                new NativeArray(new Object[] {getRequest, slowRequest, postRequest, invalidRequest}), options);
+
+        NativeObject result0 = (NativeObject) results.get(0, results);
+        NativeObject result1 = (NativeObject) results.get(1, results);
+        NativeObject result2 = (NativeObject) results.get(2, results);
+        NativeObject result3 = (NativeObject) results.get(3, results);
+        assertEquals(Integer.toString(HttpStatus.SC_OK), result0.get("status"));
+        assertEquals("body content", result0.get("body"));
+        assertTrue(((String) result1.get("error")).contains("deadline"));
+        assertEquals(Integer.toString(HttpStatus.SC_CREATED), result2.get("status"));
+        assertEquals("created", result2.get("body"));
+        assertTrue(((String) result3.get("error")).contains("TRACE"));
+
+        verify(postRequestedFor(urlEqualTo(PATH_HTTP_POST_TEXT))
+                .withRequestBody(equalTo(POST_PARAMS_TEXT)));
+    }
+
+    /*
+     * http_batch_invalid_request.
+     * Invalid descriptors are reported in their elements and do not abort the batch.
+     */
+    @Test
+    public void http_batch_invalid_request() {
+        stubFor(get(urlEqualTo(PATH_HTTP_GET_TEXT))
+                .willReturn(aResponse()
+                    .withStatus(HttpStatus.SC_OK)
+                    .withBody("body content")));
+
+        NativeObject getRequest = new NativeObject();
+        getRequest.put("url", getRequest, MOCK_SERVER_URL + PATH_HTTP_GET_TEXT);
+        NativeObject malformedRequest = new NativeObject();
+        malformedRequest.put("url", malformedRequest, MOCK_SERVER_URL + "/get text");
+
+        Scriptable results = new Ext_HttpClient().batch(
+                new NativeArray(new Object[] {malformedRequest, "not an object", getRequest}), new NativeObject());
+
+        NativeObject result0 = (NativeObject) results.get(0, results);
+        NativeObject result1 = (NativeObject) results.get(1, results);
+        NativeObject result2 = (NativeObject) results.get(2, results);
+        assertTrue(((String) result0.get("error")).contains("Parameter [url] is not a valid URI."));
+        assertTrue(((String) result1.get("error")).contains("Request is not NativeObject."));
+        assertEquals(Integer.toString(HttpStatus.SC_OK), result2.get("status"));
+        assertEquals("body content", result2.get("body"));
+    }
+
+    /*
+     * http_get_timeout.
+     */
+    @Test
+    public void http_get_timeout() {
+        stubFor(get(urlEqualTo(PATH_HTTP_GET_TEXT))
+                .willReturn(aResponse()
+                    .withStatus(HttpStatus.SC_OK)
+                    .withFixedDelay(2000)
+                    .withBody("body content")));
+
+        // Per-call socket timeout.
+        NativeObject options = new NativeObject();
+        options.put("SocketTimeout", options, 200);
+        long start = System.currentTimeMillis();
+        try {
+            new Ext_HttpClient().get(MOCK_SERVER_URL + PATH_HTTP_GET_TEXT, new NativeObject(), false, options);
+            fail("No timeout.");
+        } catch (JavaScriptException e) {
+            NativeObject error = (NativeObject) e.getValue();
+            assertEquals(Ext_HttpClient.TIMEOUT_ERROR_NAME, error.get("name"));
+            assertTrue(((String) error.get("message")).contains("SocketTimeoutException"));
+        }
+        assertTrue(System.currentTimeMillis() - start < 1500);
+
+        // Deadline set by the constructor.
+        NativeObject parameters = new NativeObject();
+        parameters.put("Deadline", parameters, 300);
+        start = System.currentTimeMillis();
+        try {
+            new Ext_HttpClient(parameters).get(MOCK_SERVER_URL + PATH_HTTP_GET_TEXT, new NativeObject(), false);
+            fail("No timeout.");
+        } catch (JavaScriptException e) {
+            NativeObject error = (NativeObject) e.getValue();
+            assertEquals(Ext_HttpClient.TIMEOUT_ERROR_NAME, error.get("name"));
+            assertTrue(((String) error.get("message")).contains("deadline"));
+        }
+        assertTrue(System.currentTimeMillis() - start < 1500);
+
+        // Invalid value.
+        options.put("SocketTimeout", options, -1);
+        try {
+            new Ext_HttpClient().get(MOCK_SERVER_URL + PATH_HTTP_GET_TEXT, new NativeObject(), false, options);
+            fail("No error.");
+        } catch (EcmaError e) {
+            assertTrue(e.getErrorMessage().contains("SocketTimeout"));
+            assertTrue(e.getErrorMessage().contains("non-negative"));
+        }
+    }
+
+    /*
+     * http_circuit_breaker.
+     */
+    @Test
+    public void http_circuit_breaker() {
+        stubFor(get(urlEqualTo(PATH_HTTP_GET_TEXT))
+                .willReturn(aResponse()
+                    .withStatus(HttpStatus.SC_SERVICE_UNAVAILABLE)));
+
+        // Disabled by default.
+        Ext_HttpClient ext_httpClient = new Ext_HttpClient();
+        for (int i = 0; i < HostGuard.DEFAULT_CB_MINIMUM_CALLS + 1; i++) {
+            NativeObject result = ext_httpClient.get(MOCK_SERVER_URL + PATH_HTTP_GET_TEXT, new NativeObject(), false);
+            assertEquals(Integer.toString(HttpStatus.SC_SERVICE_UNAVAILABLE), result.get("status"));
+        }
+        HostGuard.clear();
+        resetAllRequests();
+
+        // Create the guard of the host with the circuit breaker enabled.
+        Properties props = new Properties();
+        props.setProperty(HostGuard.PROP_CB_ENABLED, "true");
+        assertNotNull(HostGuard.get(new HttpGet(MOCK_SERVER_URL), props).getCircuitBreaker());
+        for (int i = 0; i < HostGuard.DEFAULT_CB_MINIMUM_CALLS; i++) {
+            NativeObject result = ext_httpClient.get(MOCK_SERVER_URL + PATH_HTTP_GET_TEXT, new NativeObject(), false);
+            assertEquals(Integer.toString(HttpStatus.SC_SERVICE_UNAVAILABLE), result.get("status"));
+        }
+        // The circuit is open, the call fails without touching the network.
+        try {
+            ext_httpClient.get(MOCK_SERVER_URL + PATH_HTTP_GET_TEXT, new NativeObject(), false);
+            fail("Circuit is not open.");
+        } catch (EcmaError e) {
+            assertTrue(e.getErrorMessage().contains("Circuit breaker is open"));
+        }
+        verify(HostGuard.DEFAULT_CB_MINIMUM_CALLS, getRequestedFor(urlEqualTo(PATH_HTTP_GET_TEXT)));
+    }
+
+    /*
+     * http_get_http2.
+     * WireMock speaks HTTP/1.1 only, so this checks the fallback of the HTTP/2 transport.
+     */
+    @Test
+    public void http_get_http2() {
+        stubFor(get(urlEqualTo(PATH_HTTP_GET_TEXT))
+                .willReturn(aResponse()
+                    .withStatus(HttpStatus.SC_OK)
+                    .withHeader("Content-Type", "text/plain")
+                    .withBody("body content")));
+        stubFor(post(urlEqualTo(PATH_HTTP_POST_TEXT))
+                .willReturn(aResponse()
+                    .withStatus(HttpStatus.SC_CREATED)));
+
+        NativeObject parameters = new NativeObject();
+        parameters.put("Http2", parameters, true);
+        Ext_HttpClient ext_httpClient = new Ext_HttpClient(parameters);
+        NativeObject req_headers = new NativeObject();
+        req_headers.put(HEADER_KEY, req_headers, HEADER_VALUE);
+
+        NativeObject result = ext_httpClient.get(MOCK_SERVER_URL + PATH_HTTP_GET_TEXT, req_headers, false);
+        assertEquals(Integer.toString(HttpStatus.SC_OK), result.get("status"));
+        assertEquals("body content", result.get("body"));
+        verify(getRequestedFor(urlEqualTo(PATH_HTTP_GET_TEXT))
+                .withHeader(HEADER_KEY, matching(HEADER_VALUE)));
+
+        result = ext_httpClient.postParam(MOCK_SERVER_URL + PATH_HTTP_POST_TEXT, req_headers,
+                POST_CONTENT_TYPE, POST_PARAMS_TEXT);
+        assertEquals(Integer.toString(HttpStatus.SC_CREATED), result.get("status"));
+        verify(postRequestedFor(urlEqualTo(PATH_HTTP_POST_TEXT))
+                .withHeader("Content-Type", matching(POST_CONTENT_TYPE))
+                .withRequestBody(equalTo(POST_PARAMS_TEXT)));
+    }
+
+    /*
+     * http2_redirect.
+     * The HTTP/2 transport redirects the same requests as the HTTP/1.1 transport.
+     */
+    @Test
+    public void http2_redirect() throws Exception {
+        stubFor(get(urlEqualTo(PATH_HTTP_GET_STREAM))
+                .willReturn(aResponse()
+                    .withStatus(HttpStatus.SC_MOVED_TEMPORARILY)
+                    .withHeader("Location", PATH_HTTP_GET_TEXT)));
+        stubFor(get(urlEqualTo(PATH_HTTP_GET_TEXT))
+                .willReturn(aResponse()
+                    .withStatus(HttpStatus.SC_OK)
+                    .withBody("body content")));
+        stubFor(post(urlEqualTo(PATH_HTTP_POST_TEXT))
+                .willReturn(aResponse()
+                    .withStatus(HttpStatus.SC_MOVED_TEMPORARILY)
+                    .withHeader("Location", PATH_HTTP_GET_TEXT)));
+
+        NativeObject parameters = new NativeObject();
+        parameters.put("Http2", parameters, true);
+        Ext_HttpClient ext_httpClient = new Ext_HttpClient(parameters);
+        NativeObject req_headers = new NativeObject();
+        req_headers.put(HEADER_KEY, req_headers, HEADER_VALUE);
+
+        NativeObject result = ext_httpClient.get(MOCK_SERVER_URL + PATH_HTTP_GET_STREAM, req_headers, false);
+        assertEquals(Integer.toString(HttpStatus.SC_OK), result.get("status"));
+        assertEquals("body content", result.get("body"));
+        verify(getRequestedFor(urlEqualTo(PATH_HTTP_GET_TEXT))
+                .withHeader(HEADER_KEY, matching(HEADER_VALUE)));
+
+        // POST is not redirected.
+        result = ext_httpClient.postParam(MOCK_SERVER_URL + PATH_HTTP_POST_TEXT, req_headers,
+                POST_CONTENT_TYPE, POST_PARAMS_TEXT);
+        assertEquals(Integer.toString(HttpStatus.SC_MOVED_TEMPORARILY), result.get("status"));
+        verify(1, getRequestedFor(urlEqualTo(PATH_HTTP_GET_TEXT)));
+
+        assertLegacyApi(new Http2Client(new Properties()));
+    }
+
+    /**
+     * Check the deprecated HttpClient API of the client.
+     * @param client client
+     */
+    @SuppressWarnings("deprecation")
+    private static void assertLegacyApi(Http2Client client) {
+        assertNotNull(client.getParams());
+        client.getConnectionManager().shutdown();
+    }
+
+    /*
+     * http_get_gzip.
+     */
+    @Test
+    public void http_get_gzip() throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (GZIPOutputStream out = new GZIPOutputStream(compressed)) {
+            out.write("compressed content".getBytes(StandardCharsets.UTF_8));
+        }
+        stubFor(get(urlEqualTo(PATH_HTTP_GET_TEXT))
+                .willReturn(aResponse()
+                    .withStatus(HttpStatus.SC_OK)
+                    .withHeader("Content-Encoding", "gzip")
+                    .withBody(compressed.toByteArray())));
+
+        NativeObject result = new Ext_HttpClient().get(MOCK_SERVER_URL + PATH_HTTP_GET_TEXT,
+                new NativeObject(), false);
+        assertEquals("compressed content", result.get("body"));
+        verify(getRequestedFor(urlEqualTo(PATH_HTTP_GET_TEXT))
+                .withHeader("Accept-Encoding", equalTo(Compression.DEFAULT_ACCEPT_ENCODING)));
+
+        // Not advertised nor decoded.
+        NativeObject options = new NativeObject();
+        options.put("AcceptEncoding", options, "");
+        result = new Ext_HttpClient().get(MOCK_SERVER_URL + PATH_HTTP_GET_TEXT, new NativeObject(), false, options);
+        assertNotEquals("compressed content", result.get("body"));
+    }
+
+    /*
+     * http_post_gzip_request.
+     */
+    @Test
+    public void http_post_gzip_request() throws IOException {
+        stubFor(post(urlEqualTo(PATH_HTTP_POST_TEXT))
+                .willReturn(aResponse()
+                    .withStatus(HttpStatus.SC_OK)));
+
+        NativeObject parameters = new NativeObject();
+        parameters.put("RequestCompressionThreshold", parameters, 10);
+        Ext_HttpClient ext_httpClient = new Ext_HttpClient(parameters);
+        ext_httpClient.postParam(MOCK_SERVER_URL + PATH_HTTP_POST_TEXT, new NativeObject(),
+                POST_CONTENT_TYPE, POST_PARAMS_TEXT);
+        // Shorter than the threshold.
+        ext_httpClient.postParam(MOCK_SERVER_URL + PATH_HTTP_POST_TEXT, new NativeObject(),
+                POST_CONTENT_TYPE, "key=value");
+
+        List<LoggedRequest> requests = findAll(postRequestedFor(urlEqualTo(PATH_HTTP_POST_TEXT)));
+        assertEquals(2, requests.size());
+        assertEquals("gzip", requests.get(0).getHeader("Content-Encoding"));
+        // WireMock decompresses the recorded body.
+        assertEquals(POST_PARAMS_TEXT, requests.get(0).getBodyAsString());
+        assertFalse(requests.get(1).containsHeader("Content-Encoding"));
+        assertEquals("key=value", requests.get(1).getBodyAsString());
+    }
+
+    /*
+     * metrics.
+     */
+    @Test
+    public void metrics() throws Exception {
+        stubFor(get(urlEqualTo(PATH_HTTP_GET_TEXT))
+                .willReturn(aResponse()
+                    .withStatus(HttpStatus.SC_OK)
+                    .withBody("body content")));
+
+        Properties props = new Properties();
+        props.setProperty(Metrics.PROP_ENABLED, "true");
+        CloseableHttpClient client = HttpClientRegistry.getClient(ClientConfig.create(false, false, false, props));
+        try (CloseableHttpResponse res = RequestExecutor.execute(client,
+                new HttpGet(MOCK_SERVER_URL + PATH_HTTP_GET_TEXT), props, RetryPolicy.create(props), 0)) {
+            assertEquals("body content", EntityUtils.toString(res.getEntity()));
+        }
+        try {
+            RequestExecutor.execute(client, new HttpGet("http://localhost:1" + PATH_HTTP_GET_TEXT), props,
+                    RetryPolicy.create(props), 0);
+            fail("Connected.");
+        } catch (IOException e) {
+            // Connection refused.
+        }
+
+        ObjectName name = new ObjectName(HttpClientMetricsMXBean.OBJECT_NAME);
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        assertEquals(1L, server.getAttribute(name, "RequestCount"));
+        assertEquals(1L, server.getAttribute(name, "ErrorCount"));
+
+        HttpClientMetricsMXBean metrics = (HttpClientMetricsMXBean) Metrics.recorder();
+        assertEquals(Long.valueOf(1), metrics.getRequestCounts().get(MOCK_SERVER_URL + " GET"));
+        assertEquals(Long.valueOf(1), metrics.getStatusCounts().get(MOCK_SERVER_URL + " 2xx"));
+        assertTrue(metrics.getLatencyMicros().containsKey(MOCK_SERVER_URL + " CONNECT"));
+        assertTrue(metrics.getLatencyMicros().containsKey(MOCK_SERVER_URL + " TTFB"));
+        assertTrue(metrics.getLatencyMicros().containsKey(MOCK_SERVER_URL + " BODY"));
+        // Under the same host key as the other phases.
+        assertTrue(metrics.getLatencyMicros().containsKey(MOCK_SERVER_URL + " DNS"));
+        assertEquals("body content".length(), metrics.getResponseBytes().get(MOCK_SERVER_URL).getMax());
+
+        // Disabled by default.
+        HttpClientRegistry.shutdown();
+        HttpClientRegistry.getClient(ClientConfig.create(false, false, false, new Properties()));
+        assertSame(MetricsRecorder.NOOP, Metrics.recorder());
+        assertFalse(server.isRegistered(name));
+    }
+
+    /*
+     * histogram.
+     */
+    @Test
+    public void histogram() {
+        Histogram histogram = new Histogram();
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i);
+        }
+        HttpClientMetricsMXBean.Distribution distribution = histogram.snapshot();
+        assertEquals(100, distribution.getCount());
+        assertEquals(50.5, distribution.getMean(), 0.001);
+        assertEquals(63, distribution.getP50());
+        assertEquals(100, distribution.getP99());
+        assertEquals(100, distribution.getMax());
+    }
+
+    /*
+     * metrics_hosts_are_bounded.
+     */
+    @Test
+    public void metrics_hosts_are_bounded() {
+        JmxMetricsRecorder recorder = new JmxMetricsRecorder(2);
+        for (int i = 0; i < 5; i++) {
+            recorder.recordRequest("http://host" + i + ":80", "GET", 200);
+            recorder.recordResponseSize("http://host" + i + ":80", 10);
+        }
+        recorder.recordRequest("http://host0:80", "GET", 200);
+
+        Map<String, Long> counts = recorder.getRequestCounts();
+        assertEquals(3, counts.size());
+        assertEquals(Long.valueOf(2), counts.get("http://host0:80 GET"));
+        assertEquals(Long.valueOf(1), counts.get("http://host1:80 GET"));
+        assertEquals(Long.valueOf(3), counts.get(JmxMetricsRecorder.OTHER_HOST + " GET"));
+        assertEquals(3, recorder.getResponseBytes().get(JmxMetricsRecorder.OTHER_HOST).getCount());
+        assertEquals(6, recorder.getRequestCount());
+
+        recorder.reset();
+        recorder.recordRequest("http://host4:80", "GET", 200);
+        assertEquals(Long.valueOf(1), recorder.getRequestCounts().get("http://host4:80 GET"));
+    }
+
+    /*
+     * dns_cache.
+     */
+    @Test
+    public void dns_cache() throws Exception {
+        InetAddress first = InetAddress.getByAddress("backend", new byte[] {10, 0, 0, 1});
+        InetAddress second = InetAddress.getByAddress("backend", new byte[] {10, 0, 0, 2});
+        AtomicInteger lookups = new AtomicInteger();
+        DnsResolver delegate = host -> {
+            lookups.incrementAndGet();
+            if (host.startsWith("unknown")) {
+                throw new UnknownHostException(host);
+            }
+            return new InetAddress[] {first, second};
+        };
+        CachingDnsResolver resolver = new CachingDnsResolver(delegate, 2, 200, 200, Runnable::run);
+
+        // Cached and rotated.
+        assertArrayEquals(new InetAddress[] {first, second}, resolver.resolve("backend"));
+        assertArrayEquals(new InetAddress[] {second, first}, resolver.resolve("BACKEND"));
+        assertEquals(1, lookups.get());
+
+        // Unknown hosts are cached too.
+        for (int i = 0; i < 2; i++) {
+            try {
+                resolver.resolve("unknown");
+                fail("Unknown host.");
+            } catch (UnknownHostException e) {
+                assertEquals("unknown", e.getMessage());
+            }
+        }
+        assertEquals(2, lookups.get());
+
+        // Bounded.
+        resolver.resolve("other");
+        assertEquals(2, resolver.size());
+        assertEquals(3, lookups.get());
+
+        // Refreshed when used near expiry, without a lookup on the request path.
+        resolver.resolve("backend");
+        assertEquals(4, lookups.get());
+        Thread.sleep(160);
+        resolver.resolve("backend");
+        assertEquals(5, lookups.get());
+        resolver.resolve("backend");
+        assertEquals(5, lookups.get());
+
+        // Addresses are not cached.
+        resolver.resolve("127.0.0.1");
+        resolver.resolve("::1");
+        assertEquals(7, lookups.get());
+        assertEquals(2, resolver.size());
+
+        // A failed refresh keeps the entry, and the next use refreshes again.
+        AtomicBoolean failing = new AtomicBoolean();
+        AtomicInteger flakyLookups = new AtomicInteger();
+        resolver = new CachingDnsResolver(host -> {
+            flakyLookups.incrementAndGet();
+            if (failing.get()) {
+                throw new UnknownHostException(host);
+            }
+            return new InetAddress[] {first};
+        }, 2, 200, 200, Runnable::run);
+        resolver.resolve("flaky");
+        Thread.sleep(160);
+        failing.set(true);
+        assertArrayEquals(new InetAddress[] {first}, resolver.resolve("flaky"));
+        assertEquals(2, flakyLookups.get());
+        assertArrayEquals(new InetAddress[] {first}, resolver.resolve("flaky"));
+        assertEquals(3, flakyLookups.get());
+    }
+
+    /*
+     * dns_cache_coalesces_lookups.
+     */
+    @Test
+    public void dns_cache_coalesces_lookups() throws Exception {
+        InetAddress address = InetAddress.getByAddress("backend", new byte[] {10, 0, 0, 1});
+        AtomicInteger lookups = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+        CachingDnsResolver resolver = new CachingDnsResolver(host -> {
+            lookups.incrementAndGet();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return new InetAddress[] {address};
+        }, 10, 30000, 5000, Runnable::run);
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<InetAddress[]>> futures = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                futures.add(executor.submit(() -> resolver.resolve("backend")));
+            }
+            Thread.sleep(100);
+            release.countDown();
+            for (Future<InetAddress[]> future : futures) {
+                assertArrayEquals(new InetAddress[] {address}, future.get(5, TimeUnit.SECONDS));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(1, lookups.get());
+    }
+
+    /*
+     * http_get_retry.
+     */
+    @Test
+    public void http_get_retry() {
+        stubFor(get(urlEqualTo(PATH_HTTP_GET_TEXT)).inScenario("retry")
+                .whenScenarioStateIs(STARTED)
+                .willReturn(aResponse()
+                    .withStatus(HttpStatus.SC_SERVICE_UNAVAILABLE))
+                .willSetStateTo("recovered"));
+        stubFor(get(urlEqualTo(PATH_HTTP_GET_TEXT)).inScenario("retry")
+                .whenScenarioStateIs("recovered")
+                .willReturn(aResponse()
+                    .withStatus(HttpStatus.SC_OK)
+                    .withBody("recovered")));
+
+        NativeObject retry = new NativeObject();
+        retry.put("MaxAttempts", retry, 3);
+        retry.put("InitialBackoff", retry, 10);
+        NativeObject options = new NativeObject();
+        options.put("Retry", options, retry);
+        NativeObject result = new Ext_HttpClient().get(MOCK_SERVER_URL + PATH_HTTP_GET_TEXT,
+                new NativeObject(), false, options);
+        assertEquals(Integer.toString(HttpStatus.SC_OK), result.get("status"));
+        assertEquals("recovered", result.get("body"));
+        verify(2, getRequestedFor(urlEqualTo(PATH_HTTP_GET_TEXT)));
+    }
+
+    /*
+     * http_post_not_retried.
+     */
+    @Test
+    public void http_post_not_retried() {
+        stubFor(post(urlEqualTo(PATH_HTTP_POST_TEXT))
+                .willReturn(aResponse()
+                    .withStatus(HttpStatus.SC_SERVICE_UNAVAILABLE)));
+
+        NativeObject retry = new NativeObject();
+        retry.put("MaxAttempts", retry, 3);
+        retry.put("InitialBackoff", retry, 10);
+        NativeObject parameters = new NativeObject();
+        parameters.put("Retry", parameters, retry);
+        NativeObject result = new Ext_HttpClient(parameters).post(MOCK_SERVER_URL + PATH_HTTP_POST_TEXT,
+                new NativeObject(), POST_CONTENT_TYPE, POST_PARAMS_TEXT);
+        assertEquals(Integer.toString(HttpStatus.SC_SERVICE_UNAVAILABLE), result.get("status"));
+        verify(1, postRequestedFor(urlEqualTo(PATH_HTTP_POST_TEXT)));
+    }
+
+    /*
+     * retry_backoff.
+     */
+    @Test
+    public void retry_backoff() {
+        RetryPolicy policy = new RetryPolicy(3, 100, 1000, RetryPolicy.DEFAULT_STATUS_CODES, false);
+        for (int attempt = 1; attempt < 10; attempt++) {
+            long backoff = policy.backoff(attempt);
+            assertTrue(backoff >= 0 && backoff <= 1000);
+        }
+        HttpResponse res = new BasicHttpResponse(HttpVersion.HTTP_1_1, RetryPolicy.SC_TOO_MANY_REQUESTS, null);
+        res.setHeader("Retry-After", "1");
+        assertEquals(1000, policy.backoff(res, 1));
+        res.setHeader("Retry-After", "60");
+        assertEquals(-1, policy.backoff(res, 1));
+    }
+
+    /*
+     * circuit_breaker_half_open.
+     */
+    @Test
+    public void circuit_breaker_half_open() throws Exception {
+        CircuitBreaker circuitBreaker = new CircuitBreaker("test", 4, 2, 50, 100, 1000, 100, 2);
+        assertTrue(circuitBreaker.tryAcquire());
+        circuitBreaker.record(true, 0);
+        assertTrue(circuitBreaker.tryAcquire());
+        circuitBreaker.record(false, 0);
+        assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState());
+        assertFalse(circuitBreaker.tryAcquire());
+
+        Thread.sleep(150);
+        // Two probes are let through.
+        assertTrue(circuitBreaker.tryAcquire());
+        assertTrue(circuitBreaker.tryAcquire());
+        assertFalse(circuitBreaker.tryAcquire());
+        circuitBreaker.record(true, 0);
+        circuitBreaker.record(true, 0);
+        assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState());
+    }
+
+    /*
+     * bulkhead.
+     */
+    @Test
+    public void bulkhead() throws Exception {
+        HostGuard guard = new HostGuard("test", null, null, 0, 1, 0, 20, 10);
+        HostGuard.Permit permit = guard.acquire();
+        try {
+            guard.acquire();
+            fail("Bulkhead is not full.");
+        } catch (HostGuard.HostUnavailableException e) {
+            assertTrue(e.getMessage().contains("Too many concurrent requests"));
+        }
+        permit.release(true);
+        permit.release(true);
+        guard.acquire().release(true);
+
+        // Not limited by default.
+        guard = HostGuard.get(new HttpGet("http://bulkhead.example.com/"), new Properties());
+        guard.acquire();
+        guard.acquire().release(true);
+    }
+
+    /*
+     * host_guards_are_bounded.
+     */
+    @Test
+    public void host_guards_are_bounded() throws Exception {
+        Properties props = new Properties();
+        props.setProperty(HostGuard.PROP_MAX_HOSTS, "2");
+        HostGuard first = HostGuard.get(new HttpGet("http://a.example.com/"), props);
+        Thread.sleep(1);
+        HostGuard.get(new HttpGet("http://b.example.com/"), props);
+        Thread.sleep(1);
+        // Used recently, not dropped.
+        assertSame(first, HostGuard.get(new HttpGet("http://a.example.com/"), props));
+        HostGuard.get(new HttpGet("http://c.example.com/"), props);
+        assertEquals(2, HostGuard.size());
+        assertSame(first, HostGuard.get(new HttpGet("http://a.example.com/"), props));
+
+        // Idle guards are dropped when the map is full.
+        props.setProperty(HostGuard.PROP_IDLE_TIMEOUT, "1");
+        Thread.sleep(5);
+        HostGuard.get(new HttpGet("http://d.example.com/"), props);
+        assertEquals(1, HostGuard.size());
+    }
+
+    /*
+     * rate_limiter.
+     */
+    @Test
+    public void rate_limiter() throws Exception {
+        // 10 per second, 2 at once.
+        RateLimiter limiter = new RateLimiter(10, 2);
+        assertEquals(0, limiter.reserve(0));
+        assertEquals(0, limiter.reserve(0));
+        assertEquals(-1, limiter.reserve(0));
+        long wait = limiter.reserve(TimeUnit.SECONDS.toNanos(1));
+        assertTrue(wait > 0 && wait <= TimeUnit.MILLISECONDS.toNanos(100));
+
+        Properties props = new Properties();
+        props.setProperty(RateLimiter.PROP_RULES, "api.example.com:5, *.example.org:1:3, bad:x");
+        assertNotNull(RateLimiter.get("API.example.com", props));
+        assertSame(RateLimiter.get("a.example.org", props), RateLimiter.get("b.example.org", props));
+        assertNull(RateLimiter.get("example.org", props));
+        assertNull(RateLimiter.get("bad", props));
+
+        HostGuard guard = new HostGuard("test", null, new RateLimiter(1, 1), 0, 1, 0, 20, 10);
+        guard.acquire().release(true);
+        try {
+            guard.acquire();
+            fail("Rate limit is not exceeded.");
+        } catch (HostGuard.HostUnavailableException e) {
+            assertTrue(e.getMessage().contains("Rate limit exceeded"));
+        }
+        // Waits for the next permit.
+        guard = new HostGuard("test", null, new RateLimiter(20, 1), 1000, 1, 0, 20, 10);
+        guard.acquire().release(true);
+        long start = System.nanoTime();
+        guard.acquire().release(true);
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(40));
+    }
+
+    /*
+     * http_get_cached.
+     */
+    @Test
+    public void http_get_cached() {
+        stubFor(get(urlEqualTo(PATH_HTTP_GET_TEXT))
+                .willReturn(aResponse()
+                    .withStatus(HttpStatus.SC_OK)
+                    .withBody("body content")
+                    .withHeader("Content-Type", "text/plain")
+                    .withHeader("Cache-Control", "max-age=60")
+                    .withHeader("ETag", "\"v1\"")));
+        stubFor(get(urlEqualTo(PATH_HTTP_GET_STREAM))
+                .willReturn(aResponse()
+                    .withStatus(HttpStatus.SC_OK)
+                    .withBody("stale content")
+                    .withHeader("Cache-Control", "max-age=0")
+                    .withHeader("ETag", "\"v2\"")));
+        stubFor(get(urlEqualTo(PATH_HTTP_GET_STREAM))
+                .withHeader("If-None-Match", equalTo("\"v2\""))
+                .willReturn(aResponse()
+                    .withStatus(HttpStatus.SC_NOT_MODIFIED)
+                    .withHeader("ETag", "\"v2\"")));
+
+        NativeObject parameters = new NativeObject();
+        parameters.put("Cache", parameters, true);
+        for (int i = 0; i < 3; i++) {
+            // The cache is shared across instances.
+            Ext_HttpClient ext_httpClient = new Ext_HttpClient(parameters);
+            NativeObject result = ext_httpClient.get(MOCK_SERVER_URL + PATH_HTTP_GET_TEXT, new NativeObject(), false);
+            assertEquals(Integer.toString(HttpStatus.SC_OK), result.get("status"));
+            assertEquals("body content", result.get("body"));
+            result = ext_httpClient.get(MOCK_SERVER_URL + PATH_HTTP_GET_STREAM, new NativeObject(), false);
+            assertEquals(Integer.toString(HttpStatus.SC_OK), result.get("status"));
+            assertEquals("stale content", result.get("body"));
+        }
+        verify(1, getRequestedFor(urlEqualTo(PATH_HTTP_GET_TEXT)));
+        // Revalidated with the ETag.
+        verify(2, getRequestedFor(urlEqualTo(PATH_HTTP_GET_STREAM)).withHeader("If-None-Match", equalTo("\"v2\"")));
+
+        // Without the option, every request goes upstream.
+        new Ext_HttpClient().get(MOCK_SERVER_URL + PATH_HTTP_GET_TEXT, new NativeObject(), false);
+        verify(2, getRequestedFor(urlEqualTo(PATH_HTTP_GET_TEXT)));
+    }
+
+    /*
+     * http_get_cached_on_disk.
+     */
+    @Test
+    public void http_get_cached_on_disk() throws Exception {
+        byte[] body = new byte[100 * 1024];
+        new Random(0).nextBytes(body);
+        stubFor(get(urlEqualTo(PATH_HTTP_GET_STREAM))
+                .willReturn(aResponse()
+                    .withStatus(HttpStatus.SC_OK)
+                    .withBody(body)
+                    .withHeader("Content-Type", "application/octet-stream")
+                    .withHeader("Cache-Control", "max-age=60")));
+        stubFor(get(urlEqualTo(PATH_HTTP_GET_TEXT))
+                .willReturn(aResponse()
+                    .withStatus(HttpStatus.SC_OK)
+                    .withBody(body)
+                    .withHeader("Cache-Control", "max-age=60")));
+
+        File dir = temporaryFolder.newFolder("cache");
+        Properties props = new Properties();
+        props.setProperty(ResponseCache.PROP_DISK_DIRECTORY, dir.getPath());
+        props.setProperty(ResponseCache.PROP_DISK_MAX_BYTES, Integer.toString(150 * 1024));
+
+        for (int i = 0; i < 2; i++) {
+            // The second client sees the cache rebuilt from the directory, as after a restart.
+            ResponseCache.clear();
+            try (CloseableHttpClient client = ResponseCache.custom(props).build();
+                 CloseableHttpResponse res = client.execute(new HttpGet(MOCK_SERVER_URL + PATH_HTTP_GET_STREAM))) {
+                assertArrayEquals(body, readAll(res.getEntity().getContent()));
+            }
+            assertEquals(1, dir.list((d, name) -> name.endsWith(DiskResourceFactory.BODY_SUFFIX)).length);
+        }
+        verify(1, getRequestedFor(urlEqualTo(PATH_HTTP_GET_STREAM)));
+
+        // Over cache.disk.maxBytes, the least recently used entry is evicted.
+        try (CloseableHttpClient client = ResponseCache.custom(props).build()) {
+            client.execute(new HttpGet(MOCK_SERVER_URL + PATH_HTTP_GET_TEXT)).close();
+            client.execute(new HttpGet(MOCK_SERVER_URL + PATH_HTTP_GET_STREAM)).close();
+        }
+        verify(2, getRequestedFor(urlEqualTo(PATH_HTTP_GET_STREAM)));
+        assertEquals(1, dir.list((d, name) -> name.endsWith(DiskResourceFactory.BODY_SUFFIX)).length);
+    }
+
+    /*
+     * disk_cache_storage_locking.
+     * A write in progress holds the lock of its key only.
+     */
+    @Test
+    public void disk_cache_storage_locking() throws Exception {
+        File dir = temporaryFolder.newFolder("cache");
+        DiskHttpCacheStorage storage =
+                new DiskHttpCacheStorage(new BoundedHttpCacheStorage(100, 1024 * 1024), dir, 1024 * 1024);
+        storage.putEntry("a", createCacheEntry("a"));
+
+        CountDownLatch updating = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<?> update = executor.submit(() -> {
+                storage.updateEntry("b", existing -> {
+                    updating.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return createCacheEntry("b");
+                });
+                return null;
+            });
+            assertTrue(updating.await(5, TimeUnit.SECONDS));
+            // Other keys are not blocked by the update of "b".
+            assertNotNull(storage.getEntry("a"));
+            storage.putEntry("c", createCacheEntry("c"));
+            assertEquals(2, storage.size());
+            release.countDown();
+            update.get(5, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(3, storage.size());
+
+        // Loaded from the disk when the memory tier does not have it.
+        DiskHttpCacheStorage reloaded =
+                new DiskHttpCacheStorage(new BoundedHttpCacheStorage(100, 1024 * 1024), dir, 1024 * 1024);
+        assertArrayEquals("b".getBytes(StandardCharsets.UTF_8),
+                readAll(reloaded.getEntry("b").getResource().getInputStream()));
+        reloaded.removeEntry("b");
+        assertNull(reloaded.getEntry("b"));
+        assertEquals(2, reloaded.size());
+    }
+
+    private static HttpCacheEntry createCacheEntry(String body) {
+        return new HttpCacheEntry(new Date(), new Date(), new BasicStatusLine(HttpVersion.HTTP_1_1, 200, "OK"),
+                new Header[0], new HeapResource(body.getBytes(StandardCharsets.UTF_8)));
+    }
+
     /*
      * http_post_text.
      */
@@ -302,6 +1605,46 @@ public class Ext_HttpClientTest {
                 .withHeader("Content-Type", matching(POST_CONTENT_TYPE)));
     }
 
+    /*
+     * default_headers.
+     */
+    @Test
+    public void default_headers() {
+        NativeObject default_headers = new NativeObject();
+        default_headers.put("Accept", default_headers, "application/json");
+        default_headers.put("Content-Type", default_headers, "application/json");
+        default_headers.put(DEFAULT_HEADER_KEY, default_headers, DEFAULT_HEADER_VALUE);
+        NativeObject parameters = new NativeObject();
+        parameters.put("DefaultHeaders", parameters, default_headers);
+        Ext_HttpClient ext_httpClient = new Ext_HttpClient(parameters);
+
+        // Without headers of the call.
+        HttpRequestBase request = ext_httpClient.addRequestHeaders(new HttpGet(MOCK_SERVER_URL), null, null);
+        assertEquals(3, request.getAllHeaders().length);
+
+        // Headers of the call override the defaults regardless of case, and are not modified.
+        NativeObject req_headers = new NativeObject();
+        req_headers.put("accept", req_headers, "text/plain");
+        req_headers.put(HEADER_KEY, req_headers, HEADER_VALUE);
+        request = ext_httpClient.addRequestHeaders(new HttpGet(MOCK_SERVER_URL), req_headers, "text/plain");
+        assertEquals(2, req_headers.size());
+        assertEquals(1, request.getHeaders("Accept").length);
+        assertEquals("text/plain", request.getFirstHeader("Accept").getValue());
+        assertEquals(HEADER_VALUE, request.getFirstHeader(HEADER_KEY).getValue());
+        assertEquals(DEFAULT_HEADER_VALUE, request.getFirstHeader(DEFAULT_HEADER_KEY).getValue());
+        // Content-Type is set by the call.
+        assertNull(request.getFirstHeader("Content-Type"));
+
+        // Values are checked by the constructor.
+        default_headers.put("X-Invalid", default_headers, new NativeObject());
+        try {
+            new Ext_HttpClient(parameters);
+            fail("Invalid default header.");
+        } catch (EcmaError e) {
+            assertTrue(e.getMessage().contains("X-Invalid"));
+        }
+    }
+
     /*
      * http_post_text_with_default_headers.
      */
@@ -396,39 +1739,110 @@ public class Ext_HttpClientTest {
     /*
      * http_post_stream.
      */
-//    @Test
-//    public void http_post_stream() {
-//        NativeObject req_headers = new NativeObject();
-//        req_headers.put(HEADER_KEY, req_headers, HEADER_VALUE);
-//
-//        Ext_HttpClient ext_httpClient = new Ext_HttpClient();
-
-        // For Test File operation.
-//      try {
-//          is = FileToInputStream(POST_FILE_PATH + POST_READ_FILE);
-//      } catch (FileNotFoundException e) {
-//          e.printStackTrace();
-//      }
-//      InputStreamToFile(body, POST_FILE_PATH, POST_WRITE_BASE64);
-//      String base64_str = FileToBase64(POST_FILE_PATH + POST_READ_FILE);
-
-//        InputStream is = Base64ToInputStream(BASE64_DATA);
-//        PersoniumInputStream pis = new PersoniumInputStream((InputStream) is);
+    @Test
+    public void http_post_stream() {
+        stubFor(post(urlEqualTo(PATH_HTTP_POST_STREAM))
+                .willReturn(aResponse()
+                    .withStatus(200)
+                    .withBody("body content")
+                    .withHeader("Content-Type", "text/plain")));
+
+        NativeObject req_headers = new NativeObject();
+        req_headers.put(HEADER_KEY, req_headers, HEADER_VALUE);
+
+        Ext_HttpClient ext_httpClient = new Ext_HttpClient();
+
+        InputStream is = Base64ToInputStream(BASE64_DATA);
+        PersoniumInputStream pis = new PersoniumInputStream(is);
 
         /**
-         * ext_httpClient.post stream
-         * String uri, String body, String contentType,
-         * NativeObject headers, boolean respondsAsStream
+         * ext_httpClient.postStream
+         * String uri, NativeObject headers, String contentType, PersoniumInputStream pis
          */
-//        NativeObject result = ext_httpClient.postStream(
-//              PATH_HTTP_POST_STREAM, req_headers, POST_CONTENT_TYPE, pis, "image.jpg");
-//
-//        String status = (String)result.get("status");
-//        String res_headers = (String)result.get("headers");
-//        String res_body = (String)result.get("body");
-//
-//        assertEquals(status, Integer.toString(HttpStatus.SC_OK));
-//    }
+        NativeObject result = ext_httpClient.postStream(
+              MOCK_SERVER_URL + PATH_HTTP_POST_STREAM, req_headers, "image/jpeg", pis);
+
+        String status = (String) result.get("status");
+        String res_body = (String) result.get("body");
+
+        assertEquals(Integer.toString(HttpStatus.SC_OK), status);
+        assertEquals("body content", res_body);
+
+        verify(postRequestedFor(urlEqualTo(PATH_HTTP_POST_STREAM))
+                .withHeader(HEADER_KEY, matching(HEADER_VALUE))
+                .withHeader("Content-Type", matching("image/jpeg"))
+                .withHeader("Transfer-Encoding", matching("chunked"))
+                .withRequestBody(binaryEqualTo(Base64.decodeBase64(BASE64_DATA))));
+    }
+
+    /*
+     * http_post_multipart.
+     */
+    @Test
+    public void http_post_multipart() {
+        stubFor(post(urlEqualTo(PATH_HTTP_POST_STREAM))
+                .willReturn(aResponse()
+                    .withStatus(200)
+                    .withBody("body content")
+                    .withHeader("Content-Type", "text/plain")));
+
+        NativeObject req_headers = new NativeObject();
+        req_headers.put(HEADER_KEY, req_headers, HEADER_VALUE);
+        // Replaced by the multipart Content-Type.
+        req_headers.put("Content-Type", req_headers, "application/json");
+
+        NativeObject field = new NativeObject();
+        field.put("name", field, "title");
+        field.put("body", field, "caf\u00e9");
+        NativeObject file = new NativeObject();
+        file.put("name", file, "file");
+        file.put("body", file, new PersoniumInputStream(Base64ToInputStream(BASE64_DATA)));
+        file.put("contentType", file, "image/jpeg");
+        file.put("fileName", file, "photo.jpg");
+        NativeArray parts = new NativeArray(new Object[] {field, file});
+
+        Ext_HttpClient ext_httpClient = new Ext_HttpClient();
+        NativeObject result = ext_httpClient.postMultipart(MOCK_SERVER_URL + PATH_HTTP_POST_STREAM, req_headers, parts);
+        assertEquals(Integer.toString(HttpStatus.SC_OK), result.get("status"));
+        verify(postRequestedFor(urlEqualTo(PATH_HTTP_POST_STREAM))
+                .withHeader(HEADER_KEY, matching(HEADER_VALUE))
+                .withHeader("Content-Type", matching("multipart/form-data; boundary=.+"))
+                .withHeader("Transfer-Encoding", matching("chunked")));
+        // The mock server does not parse chunked multipart bodies, compare the raw bytes.
+        List<LoggedRequest> requests = findAll(postRequestedFor(urlEqualTo(PATH_HTTP_POST_STREAM)));
+        assertEquals(1, requests.size());
+        String body = new String(requests.get(0).getBody(), StandardCharsets.ISO_8859_1);
+        assertTrue(body.contains("Content-Disposition: form-data; name=\"title\"\r\n"
+                + "Content-Type: text/plain; charset=UTF-8\r\n"));
+        assertTrue(body.contains(new String("\r\n\r\ncaf\u00e9\r\n".getBytes(StandardCharsets.UTF_8),
+                StandardCharsets.ISO_8859_1)));
+        assertTrue(body.contains("Content-Disposition: form-data; name=\"file\"; filename=\"photo.jpg\"\r\n"
+                + "Content-Type: image/jpeg\r\n"));
+        assertTrue(body.contains(new String(Base64.decodeBase64(BASE64_DATA), StandardCharsets.ISO_8859_1)));
+
+        // Invalid part.
+        try {
+            ext_httpClient.postMultipart(MOCK_SERVER_URL + PATH_HTTP_POST_STREAM, req_headers,
+                    new NativeArray(new Object[] {new NativeObject()}));
+            fail("Invalid part.");
+        } catch (EcmaError e) {
+            assertTrue(e.getMessage().contains("Part [0] of parameter [parts] has no name."));
+        }
+    }
+
+    /*
+     * read all bytes of InputStream.
+     */
+    private byte[] readAll(InputStream is) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int len;
+        while ((len = is.read(buffer)) != -1) {
+            out.write(buffer, 0, len);
+        }
+        is.close();
+        return out.toByteArray();
+    }
 
     /*
      * conversion InputStream to File.